@@ -12,7 +12,6 @@
                  [org.dave/cfg "1.0.0"]
                  [uk.ac.susx.mlcl/Byblo "2.1.0"]
                  [cc.mallet/mallet "2.0.7"]
-                 [org.clojure/data.xml "0.0.7"]
                  [edu.berkeley.nlp/berkeleylm "1.1.2"]
                  [com.cybozu.labs/langdetect "1.1-20120112"]
                  [de.bwaldvogel/liblinear "1.92"]]
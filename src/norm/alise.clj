@@ -2,8 +2,10 @@
   "This is where all the normalisation bits happen."
   (:require [norm.config :as config]
             [norm.data :as data]
+            [norm.trie :as trie]
             [norm.utils :as utils]
             [norm.words :as words])
+  (:import [norm.jvm ITrie LksmPredictor Tokens])
   (:gen-class
     :name "norm.Norm"
     :methods [^{:static true}[getComplexNormaliser [] norm.jvm.Normaliser]
@@ -37,92 +39,172 @@
   "decides whether (tkns i) is ill-formed or not, in the context of
   its confusion set cs, using lksm."
   [dict lksm td cs tkns i]
-  (let [exemplars_list (for [w cs]
-                         (form-exemplars dict w tkns i))]
-    (utils/at-least td #(= "pos" %) (map #(predict lksm %) exemplars_list))))
+  (if (instance? LksmPredictor lksm)
+    ; every candidate has the same governors, so they can all be
+    ; classified in one go
+    (let [ctx    (filter #(.contains dict (second %)) (words/indexed-context tkns 3 i))
+          n      (count ctx)
+          counts (.countPositive ^LksmPredictor lksm (mapv second ctx) (mapv first ctx) (vec cs))]
+      (utils/at-least td #(> (* 2 %) n) counts))
+    (let [exemplars_list (for [w cs]
+                           (form-exemplars dict w tkns i))]
+      (utils/at-least td #(= "pos" %) (map #(predict lksm %) exemplars_list)))))
+
+(defn rank-scored
+  "ranks cs by their scores, which are given in the same order as cs"
+  [cs scores]
+  (->> (map vector scores cs)
+    (group-by first)
+    sort
+    (map (comp (partial map second) last))
+    (map vector (range))))
 
 (defn rank-by
   "ranks cs by (partial f original)"
   [f cs original]
-  (->> cs
-    (group-by (partial f original))
-    sort
-    (map last)
-    (map vector (range))))
+  (rank-scored cs (map (partial f original) cs)))
 
 (defn higher-is-better
   "returns -f. For readability"
   [f]
   (comp - f))
 
+(defn similarity-scores
+  "returns a map from each word in cs to a vector of how similar it is to
+  orig by each of the measures choose-candidate uses. Lower is better.
+  These don't depend on context, so they can be worked out once per word."
+  [cs orig]
+  (let [scores (fn [f] (map (partial f orig) cs))]
+    (zipmap cs
+      (map vector
+        (words/levenshtein-all orig cs)
+        (map - (words/ssk-all orig cs))
+        (map - (words/longest-common-subsequence-all orig cs))
+        (scores (higher-is-better words/common-prefix-length))
+        (scores (higher-is-better words/common-suffix-length))))))
+
 (defn choose-candidate
   "given the original word and its confusion set, chooses a
-  candidate to replace it."
-  [cs orig]
-  ;; use only word similarity
-  (let [csmap (atom (zipmap cs (repeat 0)))
-        update-rank (fn [f]
-                      (doseq [[rank candidates] (rank-by f cs orig)]
-                        (doseq [candidate candidates]
-                          (swap! csmap update-in [candidate] #(+ % rank)))))]
-    (dorun
-      (map update-rank
-        [words/levenshtein
-         (higher-is-better words/ssk)
-         (higher-is-better words/longest-common-subsequence)
-         (higher-is-better words/common-prefix-length)
-         (higher-is-better words/common-suffix-length)]))
-    (->> (sort-by last (seq @csmap))
-      first
-      first)))
+  candidate to replace it. scores can be given as returned by
+  similarity-scores for any superset of cs."
+  ([cs orig]
+    (choose-candidate cs orig (similarity-scores cs orig)))
+  ([cs orig scores]
+    ;; use only word similarity
+    (let [csmap (atom (zipmap cs (repeat 0)))
+          update-rank (fn [scores]
+                        (doseq [[rank candidates] (rank-scored cs scores)]
+                          (doseq [candidate candidates]
+                            (swap! csmap update-in [candidate] #(+ % rank)))))
+          score-vs (map #(or (scores %) ((similarity-scores [%] orig) %)) cs)]
+      (dorun
+        (map update-rank
+          (for [k (range 5)]
+            (map #(nth % k) score-vs))))
+      (->> (sort-by last (seq @csmap))
+        first
+        first))))
+
+(defn- simple-normalise-spans
+  "simple-normalise for norm.jvm.Tokens. Tokens are looked up straight from
+  their spans, and only the ones that get replaced become strings."
+  [^ITrie dict nmd ^Tokens tkns]
+  (let [n  (.size tkns)
+        cs (.chars tkns)
+        lookup (if (instance? ITrie nmd)
+                 (fn [i] (.valAt ^ITrie nmd cs (.start tkns i) (.end tkns i) nil))
+                 (fn [i] (nmd (.get tkns i))))]
+    (loop [i 0 rs nil]
+      (cond
+        (= i n)
+          (if rs (.replace tkns rs) tkns)
+        (.contains dict cs (.start tkns i) (.end tkns i))
+          (recur (inc i) rs)
+        :else
+          (if-let [r (lookup i)]
+            (let [^"[Ljava.lang.String;" rs (or rs (make-array String n))]
+              (aset rs i ^String r)
+              (recur (inc i) rs))
+            (recur (inc i) rs))))))
 
 (defn simple-normalise
   "normalises a list of tokens using the simple strategy"
   [dict nmd tkns]
-  (mapv #(if (.contains dict %) % (nmd % %)) tkns))
+  (if (instance? Tokens tkns)
+    (simple-normalise-spans dict nmd tkns)
+    (mapv #(if (.contains ^ITrie dict ^String %) % (nmd % %)) tkns)))
 
 (defn normalise-token
-  "complex-normalises a the token in tkns at index i"
-  [dict lksm get-cs td tkns i]
-  (let [cs (get-cs tkns i)]
+  "complex-normalises a the token in tkns at index i. get-scores takes a
+  word and returns similarity-scores for (at least) its confusion set."
+  [dict lksm get-cs get-scores td tkns i]
+  (let [cs (get-cs tkns i)
+        orig (nth tkns i)]
     (if (ill-formed? dict lksm td cs tkns i)
-      (choose-candidate cs (nth tkns i))
-      (nth tkns i))))
+      (choose-candidate cs orig (get-scores orig))
+      orig)))
 
 (defn complex-normalise
   "normalises a list of tokens using the complex strategy"
-  [dict lksm get-cs td tkns]
+  [dict lksm get-cs get-scores td tkns]
   (let [tkns (vec tkns)]
     (vec
       (for [[i word] (map vector (range) tkns)]
         (if (or (.contains dict word) (not (re-find #"^\w[\w\-\d']*$" word)))
           word
-          (normalise-token dict lksm get-cs td tkns i))))))
+          (normalise-token dict lksm get-cs get-scores td tkns i))))))
 
 (defn get-cs-getter
-  "returns a fn that gets a confusion set when given tkns and i"
-  [dict dm-dict tlm lex-dist phon-dist percent-cutoff]
-  (let [get-raw-cs (partial words/raw-confusion-set dict dm-dict lex-dist phon-dist)]
-    (fn [tkns i]
-      (utils/take-percent percent-cutoff
-        (words/lm-ranked-confusion-set tlm get-raw-cs tkns i)))))
-
+  "returns a fn that gets a confusion set when given tkns and i.
+  get-raw-cs takes a word and returns its raw confusion set."
+  [get-raw-cs tlm percent-cutoff]
+  (fn [tkns i]
+    (words/lm-ranked-confusion-set tlm get-raw-cs tkns i
+      (partial utils/percent-of percent-cutoff))))
+
+
+(defn precomputed-or
+  "wraps get-raw-cs so that confusion sets are taken from table (see
+  norm.train.cs-table) when it has them"
+  [^norm.jvm.ConfusionSetTable table lex-dist phon-dist get-raw-cs]
+  (if (and table (.covers table lex-dist phon-dist))
+    (fn [word]
+      (or (.get table word lex-dist phon-dist) (get-raw-cs word)))
+    get-raw-cs))
 
 (defn get-complex-normaliser-fn
-  "returns a function which normalises token lists using the complex strategy"
+  "returns a function which normalises token lists using the complex strategy.
+  Raw confusion sets and their similarity scores are cached for the most
+  common words. The caches are in the fn's metadata, under :caches."
   []
-  (data/load-and-bind [:dict :lksm :tlm :dm-dict]
-    (partial complex-normalise
-      data/DICT
-      data/LKSM
-      (get-cs-getter
-        data/DICT
-        data/DM-DICT
-        data/TLM
-        (config/opt :confusion-sets :lex-dist)
-        (config/opt :confusion-sets :phon-dist)
-        (config/opt :confusion-sets :post-rank-cutoff))
-      1)))
+  (data/load-and-bind [:dict :lksm :tlm :dm-dict :cs-table]
+    (let [cache-size (config/opt :confusion-sets :cache-size)
+          threads    (config/opt :confusion-sets :search-threads)
+          get-raw-cs (utils/bounded-memoize cache-size
+                       (precomputed-or
+                         data/CS-TABLE
+                         (config/opt :confusion-sets :lex-dist)
+                         (config/opt :confusion-sets :phon-dist)
+                         (partial words/raw-confusion-set
+                           data/DICT
+                           data/DM-DICT
+                           (config/opt :confusion-sets :lex-dist)
+                           (config/opt :confusion-sets :phon-dist)
+                           (when (> threads 1) (trie/search-pool threads)))))
+          get-scores (utils/bounded-memoize cache-size
+                       #(similarity-scores (get-raw-cs %) %))]
+      (with-meta
+        (partial complex-normalise
+          data/DICT
+          data/LKSM
+          (get-cs-getter
+            get-raw-cs
+            data/TLM
+            (config/opt :confusion-sets :post-rank-cutoff))
+          get-scores
+          1)
+        {:caches {"confusion set" (:cache (meta get-raw-cs))
+                  "similarity score" (:cache (meta get-scores))}}))))
 
 (defn get-simple-normaliser-fn
   "returns a function which normalises token lists using the simple strategy"
@@ -132,13 +214,15 @@
 (defn get-duplex-normaliser-fn
   "returns a function which normalises token lists using the duplex strategy"
   []
-  (comp (get-complex-normaliser-fn) (get-simple-normaliser-fn)))
+  (let [complex (get-complex-normaliser-fn)]
+    (with-meta (comp complex (get-simple-normaliser-fn)) (meta complex))))
 
 (defn ^{:static true} -getComplexNormaliser []
   (norm.jvm.Normaliser. (get-complex-normaliser-fn)))
 
 (defn ^{:static true} -getSimpleNormaliser []
-  (norm.jvm.Normaliser. (get-simple-normaliser-fn)))
+  ; simple normalisation doesn't look at context, so batches can be deduped
+  (norm.jvm.Normaliser. (get-simple-normaliser-fn) true))
 
 (defn ^{:static true} -getDuplexNormaliser []
   (norm.jvm.Normaliser. (get-duplex-normaliser-fn)))
@@ -25,7 +25,25 @@
     :default     "simple"
     :validate    #{"simple" "complex" "duplex"}
     :aliases     ["t" "-normaliser-type"]
-    :help-string "Sets the type of normalisation to perform. Must be one of (simple|complex|duplex). Default is simple."))
+    :help-string "Sets the type of normalisation to perform. Must be one of (simple|complex|duplex). Default is simple.")
+  (defopt :threads
+    :default     (.. Runtime getRuntime availableProcessors)
+    :parse       #(Integer. %)
+    :validate    pos?
+    :aliases     ["j" "-threads"]
+    :help-string "Sets the number of threads to normalise tweets with. Default is the number of available processors.")
+  (defopt :chunk-size
+    :default     256
+    :parse       #(Integer. %)
+    :validate    pos?
+    :aliases     ["-chunk-size"]
+    :help-string "Sets the number of tweets handed to a thread at a time. Default is 256.")
+  (defopt :queue-size
+    :default     64
+    :parse       #(Integer. %)
+    :validate    pos?
+    :aliases     ["-queue-size"]
+    :help-string "Sets the number of chunks of tweets which may be read ahead of the normalising threads. Default is 64."))
 
 (defopts :data
   (defopt :dir
@@ -46,6 +64,9 @@
     (defopt :dm-dict
       :aliases     ["-dm-dict"]
       :help-string "Sets the path to the double-metaphone dictionary.")
+    (defopt :cs-table
+      :aliases     ["-cs-table"]
+      :help-string "Sets the path to the precomputed confusion set table.")
     (defopt :lksm
       :aliases     ["-lksm"]
       :help-string "Sets the path to the liblinear model.")
@@ -87,7 +108,19 @@
     :parse       atoi
     :validate    pos?
     :aliases     ["prc" "-post-rank-cutoff"]
-    :help-string "The percentage cutoff to apply to confusion sets post-ranking. Default is 10."))
+    :help-string "The percentage cutoff to apply to confusion sets post-ranking. Default is 10.")
+  (defopt :cache-size
+    :default     100000
+    :parse       atoi
+    :validate    pos?
+    :aliases     ["-cs-cache-size"]
+    :help-string "The number of words to cache confusion sets and similarity scores for. Default is 100000.")
+  (defopt :search-threads
+    :default     1
+    :parse       atoi
+    :validate    pos?
+    :aliases     ["-cs-search-threads"]
+    :help-string "The number of threads to split each long dictionary search over. Worth raising when normalising one tweet at a time, but batch already uses all your processors. Default is 1."))
 
 (defopt :buffer-size
   :default     8192
@@ -173,6 +206,14 @@
       See uk.ac.susx.mlcl.byblo.measures for a list of available measures.
       Default is Lin."))
 
+  (defopts :cs-table
+    (defopt :size
+      :default 10000
+      :parse atoi
+      :validate pos?
+      :aliases ["cn" "-cs-table-size"]
+      :help-string "The number of the most frequent OOV words in the tweet corpus to precompute confusion sets for. Confusion sets run to a couple of thousand words, so the table takes about 10KB per word. Default is 10000."))
+
   (defopts :dpb
     (defopt :num-sents
       :default 40000000
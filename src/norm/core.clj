@@ -13,6 +13,7 @@
             [norm.train.lksm]
             [norm.train.dpb]
             [norm.train.dm-dict]
+            [norm.train.cs-table]
             [norm.train.tlm])
   (:gen-class))
 
@@ -31,6 +32,9 @@ commands are:
       sets the whole system up. Requires TWT, NYT, and DICT.
     clean <input_path> <output_path> <filter>+
       Current available filters are english and duplicates
+    compile-models <id>*
+      compiles trained models into binary files which load much faster.
+      With no ids, compiles all of dict, dm-dict, nmd, lksm, and dpb.
 
 use option -h or --help for a full list of options."))
 
@@ -54,16 +58,17 @@ use option -h or --help for a full list of options."))
           encode (io/encoders outf)
           normalise-token-list ((normaliser-fns (config/opt :batch :normaliser-type)))
           normalise-tweet (fn [tweet]
-                            (assoc tweet "norm_tokens" (normalise-token-list (tweet "tokens"))))]
+                            (assoc tweet "norm_tokens" (normalise-token-list (tweet "tokens"))))
+          ^norm.jvm.BatchPipeline pipeline (io/pipeline (comp encode normalise-tweet))]
 
       (io/open [:r in in_path
                 :w out (or out_path (str in_path ".norm"))]
         (when (= outf "json") (.write out "["))
-        (progress/monitor [#(.progress in) 500]
-          (dorun 
-            (map (comp #(.write out %) encode)
-              (pmap normalise-tweet (io/get-stream inf in)))))
-        (when (= outf "json") (.write out "]")))))
+        (progress/monitor [#(str (.progress in) ", " (.progress pipeline)) 500]
+          (.run pipeline (io/get-stream inf in) out))
+        (when (= outf "json") (.write out "]")))
+      (doseq [[what cache] (:caches (meta normalise-token-list))]
+        (println what "cache:" (str cache)))))
   "train" 
     (fn [args]
       (let [[id & [outpath & extra]] args]
@@ -72,7 +77,7 @@ use option -h or --help for a full list of options."))
             (fail (str "unrecognised args: " extra))
           (not id)
             (fail "No training file id given.")
-          (not (#{"dm-dict" "twt-c" "nmd" "dpb" "tlm" "lksm"} id))
+          (not (#{"dm-dict" "twt-c" "nmd" "cs-table" "dpb" "tlm" "lksm"} id))
             (fail (str "invalid training file: " id))
           :else ;bind the global output path and train
             (binding [io/OUT_PATH (or outpath (data/get-path (keyword id)))]
@@ -84,10 +89,11 @@ use option -h or --help for a full list of options."))
         (fail (str "unrecognised args: " args))
         (do
           (data/verify-readable! :twt :dict :nyt)
-          (data/verify-writeable! :twt-c :dm-dict :nmd :tlm :dpb :lksm)
+          (data/verify-writeable! :twt-c :dm-dict :nmd :cs-table :tlm :dpb :lksm)
           ((commands "train") ["twt-c"])
           ((commands "train") ["dm-dict"])
           ((commands "train") ["nmd"])
+          ((commands "train") ["cs-table"])
           ((commands "train") ["tlm"])
           ((commands "train") ["dpb"])
           ((commands "train") ["lksm"]))))
@@ -99,6 +105,16 @@ use option -h or --help for a full list of options."))
                output destination, and at least
                one filter operation")
         (apply clean/clean args)))
+
+  "compile-models"
+    (fn [args]
+      (let [ids (if (seq args) (map keyword args) (keys data/COMPILABLE))]
+        (if-let [bad (seq (remove data/COMPILABLE ids))]
+          (fail (str "can't compile: " (apply str (interpose " " (map name bad)))))
+          (do
+            (apply data/verify-readable! ids)
+            (doseq [id ids]
+              (data/compile! id))))))
 })
 
 
@@ -1,6 +1,9 @@
 (ns norm.data
-(:import [java.io IOException]
-         [de.bwaldvogel.liblinear Linear FeatureNode])
+(:import [java.io IOException File]
+         [java.nio IntBuffer]
+         [de.bwaldvogel.liblinear Linear]
+         [norm.jvm FrozenTrie ModelFile ModelFile$Writer ModelFile$Reader PhoneticIndex
+                   ConfusionSetTable LmScorer LksmPredictor DependencyBank DependencyBank$Builder])
 (:require [norm.io :as io]
           [norm.trie :as trie]
           [norm.config :as config]))
@@ -16,6 +19,7 @@
   :nyt
   :dpb
   :profiles
+  :cs-table
 ])
 
 (doseq [id (map (comp symbol clojure.string/upper-case name) FILES)]
@@ -29,68 +33,212 @@
     p
     (str (config/opt :data :dir) "/" (name id))))
 
+(defn compiled-path
+  "get the path of the compiled (binary) version of a particular file"
+  [id]
+  (str (get-path id) ".bin"))
+
+(def COMPILABLE
+  "ids of the files which compile-models knows how to compile, along
+  with the kind of model file they compile to"
+  {:dict    ModelFile/TRIE
+   :dm-dict ModelFile/PHONETIC
+   :nmd     ModelFile/TRIE
+   :lksm    ModelFile/LKSM_IDS
+   :dpb     ModelFile/DPB})
+
+(defn compiled?
+  "Returns true if there is a compiled version of the file specified
+  by id which is readable and at least as new as the original."
+  [id]
+  (let [src (File. (get-path id))
+        bin (File. (compiled-path id))]
+    (and (COMPILABLE id)
+         (ModelFile/isReadable bin (COMPILABLE id))
+         (>= (.lastModified bin) (.lastModified src)))))
+
 (defn atoi "make an integer of a" [a]
   (Integer. a))
 
 (defn atod "make a double of a" [a]
   (Double. a))
 
-(defn load-dpb-data
-  "load dependency bank data from the specified path. returns
-  a tuple of the form [word_id_map, dependency_bank]"
+(defn load-dpb
+  "loads the dependency bank at path as a norm.jvm.DependencyBank over
+  dict. It's a fn which takes a governor and an offset and returns the
+  pair's score in the dependency bank, but .score can take the governor's
+  dict id instead."
+  [path dict]
+  (let [b (DependencyBank$Builder. dict)]
+    (doseq [[word & offset_scores] (apply
+                                     (partial io/parse-tsv path identity)
+                                     (flatten (repeat [atoi atod])))
+            [off score] (partition 2 offset_scores)]
+      (.put b word (int off) (double score)))
+    (.build b)))
+
+(defn load-lksm-ids
+  "loads the feature ids and iv word ids which go along with the
+  lksm model at path. returns a tuple of the form [f-ids iv-ids offsets],
+  where offsets are the offsets which have feature ids"
   [path]
-  (into {} 
-    (for [[word & offest_scores] (apply
-                                   (partial io/parse-tsv path identity)
-                                   (flatten (repeat [atoi atod])))] 
-      [word (apply hash-map offest_scores)])))
+  (let [f-ids (into {} (io/parse-tsv (str path "-f-ids") read-string read-string))]
+    [f-ids
+     (into {} (io/parse-tsv (str path "-iv-ids") identity read-string))
+     (filter integer? (keys f-ids))]))
 
-(defn load-dpb
-  "loads the dependency bank at the specified path.
-  returns a fn which takes a governor, a dependent, and an offset
-  and returns the triple's score in the dependency bank"
+(defn- int-array-of
+  "makes an int array of size n from a map of index to value"
+  [n m]
+  (let [a (int-array n)]
+    (doseq [[i v] m] (aset-int a i v))
+    a))
+
+(defn write-lksm-ids!
+  "writes the lksm feature ids and iv word ids to w. iv word ids go in
+  a trie, and the ids of the [0 iv-id] and [1 iv-id] features go in arrays
+  indexed by iv-id, so that lookups don't need any hashing."
+  [^ModelFile$Writer w [f-ids iv-ids]]
+  (let [n      (inc (reduce max -1 (vals iv-ids)))
+        by     (fn [t] (for [[k id] f-ids :when (and (vector? k) (= t (first k)) (second k))]
+                         [(second k) id]))
+        offs   (filter (comp integer? key) f-ids)]
+    (.write ^FrozenTrie (trie/freeze (trie/from-sorted (sort-by first (map (fn [[w id]] [w 1 id]) iv-ids)))) w)
+    (.putInts w ^ints (int-array-of n (by 0)))
+    (.putInts w ^ints (int-array-of n (by 1)))
+    (.putInts w ^ints (int-array (map key offs)))
+    (.putInts w ^ints (int-array (map val offs)))
+    (.putLong w (long (f-ids :dpb-score 0)))))
+
+(defn read-lksm-ids
+  "reads lksm ids written by write-lksm-ids! and returns a tuple of the
+  form [f-ids iv-ids offsets], where f-ids and iv-ids are fns"
+  [^ModelFile$Reader r]
+  (let [iv-ids (FrozenTrie/read r)
+        gov    (.getInts r)
+        dep    (.getInts r)
+        ints   (fn [^IntBuffer b] (for [i (range (.limit b))] (.get b (int i))))
+        offs   (zipmap (ints (.getInts r)) (ints (.getInts r)))
+        dpb    (.getLong r)
+        lookup (fn [^IntBuffer b iv]
+                 (when (and iv (< iv (.limit b)))
+                   (let [id (.get b (int iv))]
+                     (when (pos? id) id))))]
+    [(fn [k]
+       (cond
+         (vector? k)        (lookup (if (= 0 (first k)) gov dep) (second k))
+         (= k :dpb-score)   (when (pos? dpb) dpb)
+         :else              (offs k)))
+     iv-ids
+     (keys offs)]))
+
+(defn lksm-predictor
+  "makes a norm.jvm.LksmPredictor for model from the lksm ids (see
+  load-lksm-ids). iv-words are all the words iv-ids knows about."
+  [model [f-ids iv-ids offsets] iv-words]
+  (let [feature (fn [t w] (or (f-ids [t (iv-ids w)]) 0))]
+    (LksmPredictor. model
+      (into-array String iv-words)
+      (int-array (map (partial feature 0) iv-words))
+      (int-array (map (partial feature 1) iv-words))
+      (int-array offsets)
+      (int-array (map f-ids offsets)))))
+
+(defn load-lksm
+  "loads the liblinear model at path, along with its ids, as a
+  norm.jvm.LksmPredictor. It's a fn which takes a [gov dep offset]
+  exemplar and returns \"pos\" or \"neg\"."
   [path]
-  (let [data (load-dpb-data path)]
-   (fn [w offset]
-     (or (get-in data [w offset]) 0))))
-
-(defn load-lksm [path]
-  (let [model (Linear/loadModel (java.io.File. path))
-        f-ids (into {} (io/parse-tsv (str path "-f-ids") read-string read-string))
-        iv-ids (into {} (io/parse-tsv (str path "-iv-ids") identity read-string))]
-    (fn [[gov dep off]]
-      (let [v (sort (filter identity (map f-ids [[0 (iv-ids gov)] [1 (iv-ids dep)] off])))]
-        ({1.0 "pos" 0.0 "neg"}
-          (Linear/predict
-            model
-            (into-array FeatureNode 
-              (mapv #(FeatureNode. % 1.0) v)
-            )))))))
+  (let [model (Linear/loadModel (java.io.File. path))]
+    (if (compiled? :lksm)
+      (let [[_ iv-ids _ :as ids] (read-lksm-ids (ModelFile$Reader. (str path ".bin") ModelFile/LKSM_IDS))]
+        (lksm-predictor model ids (trie/words iv-ids)))
+      (let [[_ iv-ids _ :as ids] (load-lksm-ids path)]
+        (lksm-predictor model ids (keys iv-ids))))))
 
 (defn load-dict [path]
   (let [exclude   (config/opt :dict :exclude)
         include   (seq (config/opt :dict :include))
         from-file (filter not-empty (io/lines-in path))
         all       (filter (complement exclude) (concat include from-file))]
-    (reduce conj (trie/trie) (map vector all (repeat 1)))))
+    (trie/freeze (trie/from-sorted-parallel (map vector (sort all) (repeat 1))))))
 
-(defn load-tlm [path]
-  (let [tlm (edu.berkeley.nlp.lm.io.LmReaders/readLmBinary path)]
-    (fn [tkns]
-      (.scoreSentence tlm tkns))))
+(declare load-)
 
-(defn load-
-  "loads the file specified by the id."
+(defn- loaded-dict
+  "the dict, if it's already been loaded, otherwise loads it"
+  []
+  (if (bound? #'DICT) DICT (load- :dict)))
+
+(defn load-dm-dict
+  "loads the double metaphone dictionary at path as a PhoneticIndex
+  over dict"
+  [path dict]
+  (let [entries (sort-by first (io/parse-tsv path))]
+    (PhoneticIndex. dict
+      (into-array String (map first entries))
+      (into-array (map #(into-array String (rest %)) entries)))))
+
+(defn load-cs-table
+  "maps the confusion set table at path (see norm.train.cs-table) over
+  dict. Returns nil if there isn't one, since it's only ever a shortcut."
+  [path dict]
+  (when (ModelFile/isReadable (File. path) ModelFile/CS_TABLE)
+    (ConfusionSetTable/load path dict)))
+
+(defn load-tlm
+  "loads the trigram language model at path as a norm.jvm.LmScorer"
+  [path]
+  (LmScorer. (edu.berkeley.nlp.lm.io.LmReaders/readLmBinary path)))
+
+(defn load-text
+  "loads the file specified by the id from its original text form."
   [id]
   (let [path (get-path id)]
-    (io/doing-done (str "Loading " id " from " path)
+    (case id
+      :nmd (trie/freeze (trie/from-sorted (sort-by first (map (fn [[k v]] [k 1 v]) (io/parse-tsv path)))))
+      :dict (load-dict path)
+      :dm-dict (load-dm-dict path (loaded-dict))
+      :cs-table (load-cs-table path (loaded-dict))
+      :tlm (load-tlm path)
+      :lksm (load-lksm path)
+      :dpb (load-dpb path (loaded-dict)))))
+
+(defn load-
+  "loads the file specified by the id. Tries are mapped straight from
+  their compiled versions if those are up to date."
+  [id]
+  (cond
+    (and (compiled? id) (= ModelFile/TRIE (COMPILABLE id)))
+      (io/doing-done (str "Mapping " id " from " (compiled-path id))
+        (FrozenTrie/load (compiled-path id)))
+    (and (compiled? id) (= ModelFile/PHONETIC (COMPILABLE id)))
+      (let [dict (loaded-dict)]
+        (io/doing-done (str "Mapping " id " from " (compiled-path id))
+          (PhoneticIndex/load (compiled-path id) dict)))
+    (and (compiled? id) (= ModelFile/DPB (COMPILABLE id)))
+      (let [dict (loaded-dict)]
+        (io/doing-done (str "Mapping " id " from " (compiled-path id))
+          (DependencyBank/load (compiled-path id) dict)))
+    :else
+      (io/doing-done (str "Loading " id " from " (get-path id))
+        (load-text id))))
+
+(defn compile!
+  "compiles the file specified by id into a binary model file which
+  load- can map into memory instead of parsing."
+  [id]
+  (let [out (compiled-path id)]
+    (io/doing-done (str "Compiling " id " to " out)
       (case id
-        :nmd (into {} (io/parse-tsv path))
-        :dict (load-dict path)
-        :dm-dict (trie/trie (map #(vector (first %) 1 (rest %)) (io/parse-tsv path)))
-        :tlm (load-tlm path)
-        :lksm (load-lksm path)
-        :dpb (load-dpb path)))))
+        :lksm (let [w (ModelFile$Writer. out ModelFile/LKSM_IDS)]
+                (try
+                  (write-lksm-ids! w (load-lksm-ids (get-path id)))
+                  (.close w)
+                  (finally (.abort w))))
+        :dm-dict (.save ^PhoneticIndex (load-text id) out)
+        :dpb (.save ^DependencyBank (load-text id) out)
+        (.save ^FrozenTrie (load-text id) out)))))
 
 (defn can-read?
   "Returns true if the location specified by the path is readable."
@@ -129,9 +277,15 @@
 
 (defmacro load-and-bind
   "loads the files with the given ids, binds them to data/FILE where FILE
-  is the same as the id but with no colon and uppercase. Then executes body."
+  is the same as the id but with no colon and uppercase. Then executes body.
+  Files are loaded in order, and each can see the ones before it (the
+  dm-dict uses the dict, for instance)."
   [ids & body]
-  `(clojure.core/binding ~(vec (mapcat (fn [id] [(symbol (str "norm.data/" (.toUpperCase (name id)))) `(norm.data/load- ~id)]) ids) )
-     (do ~@body)))
+  (reduce
+    (fn [body id]
+      `(clojure.core/binding [~(symbol (str "norm.data/" (.toUpperCase (name id)))) (norm.data/load- ~id)]
+         ~body))
+    `(do ~@body)
+    (reverse ids)))
 
 
@@ -5,7 +5,8 @@
             [norm.words :as words]
             [norm.config :as config]
             [norm.json])
-  (:import [cmu.arktweetnlp Twokenize])
+  (:import [cmu.arktweetnlp Twokenize]
+           [norm.jvm Tokens])
   (:use [clojure.string :only (join lower-case)]))
 
 (def ^:dynamic IN)
@@ -31,18 +32,30 @@
     (reader filename (config/opt :buffer-size))))
 
 (defn reader-gz
-  "Progress reporting file reader. call .progress for progress string"
+  "Progress reporting gzip file reader. call .progress for progress string.
+  BGZF files (e.g. from writer-gz or bgzip) are inflated on all your
+  processors."
   ([filename buffer_size]
     (norm.jvm.ProgressReportingBufferedFileReader/makeGzip filename buffer_size))
   ([filename]
     (reader-gz filename (config/opt :buffer-size))))
 
+(defn line-reader
+  "Reads the lines of a file in big chunks, which get decoded and split on
+  all your processors. Use lines to get them out, and call .progress for
+  progress string. Gzipped files are inflated first, like with reader-gz."
+  ([filename buffer_size]
+    (norm.jvm.ChunkedLineReader. filename buffer_size (.availableProcessors (Runtime/getRuntime))))
+  ([filename]
+    (line-reader filename (config/opt :buffer-size))))
+
 (defn writer-gz
-  "Creates a gzip file writer for the given path"
+  "Creates a gzip file writer for the given path. It writes BGZF, deflating
+  on all your processors, which any gzip reader can read."
   ([filename buffer_size]
     (-> filename
       (java.io.FileOutputStream.)
-      (java.util.zip.GZIPOutputStream.)
+      (norm.jvm.ParallelGzipOutputStream.)
       (java.io.OutputStreamWriter.)
       (java.io.BufferedWriter. buffer_size)))
   ([filename]
@@ -66,6 +79,17 @@
     (cons line (lazy-seq (line-seq-with-close rdr)))
     (.close rdr)))
 
+(defn lines
+  "Returns the lines from in as a lazy sequence of strings. in can be a
+  java.io.BufferedReader or a norm.jvm.ChunkedLineReader (see line-reader)."
+  [in]
+  (if (instance? norm.jvm.ChunkedLineReader in)
+    ((fn batches []
+       (lazy-seq
+         (when-let [batch (.nextBatch ^norm.jvm.ChunkedLineReader in)]
+           (concat batch (batches))))))
+    (line-seq in)))
+
 (defn lines-in
   "Returns a lazy seq of the lines in the specified file.
   closes the file when all lines have been read."
@@ -102,7 +126,7 @@
     (.write out "\n")))
 
 (defn- consume-raw [line]
-  {"text" line "tokens" (vec (words/tokenise-lower line))})
+  {"text" line "tokens" (words/tokenise-lower-spans line)})
 
 (defn- raw-seq [^java.io.Reader in]
   (map consume-raw (line-seq-with-close in)))
@@ -125,12 +149,16 @@
     (if-not (obj "text")
       ; if we can't find text or tokens, it is an error. throw exception.
       (throw (Exception. (str "Bad JSON object. No 'text' or 'tokens' field:\n" obj)))
-      (conj obj ["tokens" (vec (words/tokenise-lower (obj "text")))]))))
+      (conj obj ["tokens" (words/tokenise-lower-spans (obj "text"))]))))
 
 (defn- json-seq
-  "Returns a lazy seq of tweet objects in the given stream"
+  "Returns a lazy seq of tweet objects in the given stream. Unless they're
+  going to be written back out as json, only their text and tokens are kept."
   [^java.io.BufferedReader in]
-  (map consume-json (norm.json/objects-in in)))
+  (map consume-json
+    (norm.json/objects-in in
+      (when-not (= "json" (config/opt :batch :output-format))
+        ["text" "tokens"]))))
 
 (defn get-stream
   "Returns a lazy seq of tweet objects from the given input stream
@@ -138,16 +166,36 @@
   [format in]
   (({"raw" raw-seq, "tkn" tkn-seq, "json" json-seq} format) in))
 
+(defn- join-with
+  "joins tkns with sep and adds end, straight from the spans if tkns is a
+  norm.jvm.Tokens."
+  [sep end tkns]
+  (if (instance? Tokens tkns)
+    (.join ^Tokens tkns sep end)
+    (str (join sep tkns) end)))
+
 (def encoders
   {"raw" (fn [tweet]
-           (str (join " " (tweet "norm_tokens")) "\n"))
+           (join-with " " "\n" (tweet "norm_tokens")))
    "tkn" (fn [tweet]
-           (str (join "\n" (tweet "norm_tokens")) "\n\n"))
+           (join-with "\n" "\n\n" (tweet "norm_tokens")))
    "json" (fn [tweet]
             (str (json/write-str tweet) ",\n"))
   }
 )
 
+(defn pipeline
+  "Returns a norm.jvm.BatchPipeline which maps f (which must return strings)
+  over items on the given number of threads, a chunk at a time, and writes the
+  results in order. Call (.run p items writer) to run it, and .progress for a
+  progress string."
+  ([f]
+    (pipeline f (config/opt :batch :threads)
+                (config/opt :batch :chunk-size)
+                (config/opt :batch :queue-size)))
+  ([f threads chunk_size queue_size]
+    (norm.jvm.BatchPipeline. f threads chunk_size queue_size)))
+
 (defn open-
   "Returns a reader or writer, depending on the specified mode. f can
   be either a path string or a java.io.File object. 
@@ -155,7 +203,8 @@
     :w (buffered writer)
     :wz (gzip writer)
     :r (progress tracking buffered reader)
-    :rz (progress tracking gzip reader)"
+    :rz (progress tracking gzip reader)
+    :rl (progress tracking line reader, gzipped or not, for lines only. see line-reader)"
   [mode f buffer_size]
   (let [path (if (instance? java.io.File f) (.getAbsolutePath f) f)
         func (case mode
@@ -163,6 +212,7 @@
               :wz writer-gz
               :r  reader
               :rz reader-gz
+              :rl line-reader
               (throw (Exception. (str "Invalid write mode " mode))))]
     (func path buffer_size)))
 
@@ -112,6 +112,18 @@
       (let [[item remaining_tkns] (parse-value tkns)]
         (cons item (lazy-seq (lazy-list remaining_tkns)))))))
 
-(defn objects-in [^java.io.Reader rdr]
+(defn seq-objects-in
+  "objects-in, but done with the lazy seq parser above. It's slow, but it's
+  simple, so objects-in gets checked against it."
+  [^java.io.Reader rdr]
   (lazy-list (drop-while #(not= % ["sym" \{]) (tokens (char-seq rdr)))))
 
+(defn objects-in
+  "a lazy seq of the values in a json list of objects in rdr, read by a
+  norm.jvm.JsonReader. If ks are given, the objects only get those keys,
+  and the other values aren't built at all."
+  ([^java.io.Reader rdr]
+    (objects-in rdr nil))
+  ([^java.io.Reader rdr ks]
+    (iterator-seq (norm.jvm.JsonReader. rdr ks))))
+
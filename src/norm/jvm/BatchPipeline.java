@@ -0,0 +1,233 @@
+package norm.jvm;
+
+import clojure.lang.IFn;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a fn over a stream of items on a pool of worker threads and writes
+ * what it returns, in the original order, to a Writer.
+ *
+ * One thread reads items and groups them into batches, which go onto a
+ * bounded queue. The workers take batches off the queue, apply the fn to
+ * every item in them, and concatenate the resulting strings. Finished
+ * batches wait in a reorder buffer until all the ones before them have been
+ * written, and then each is written with a single call to write.
+ *
+ * Only so many batches are allowed to be anywhere between the reader and the
+ * writer at once, so if the writer (or one slow batch) holds things up, the
+ * reader stops reading rather than filling up the heap.
+ *
+ * If the fn, the reader, or the writer throws, everything stops and run
+ * throws it.
+ */
+public class BatchPipeline {
+
+  private final IFn f;
+  private final int threads;
+  private final int batchSize;
+
+  private final BlockingQueue<Batch> queue;
+  private final Semaphore inFlight;
+
+  // the reorder buffer, guarded by itself
+  private final Map<Long, String> done = new HashMap<Long, String>();
+  private long numBatches = -1; // set once the reader has finished
+
+  private volatile Throwable failure = null;
+  private final List<Thread> workers = new ArrayList<Thread>();
+
+  private final AtomicInteger queued    = new AtomicInteger(0);
+  private final AtomicLong itemsRead    = new AtomicLong(0);
+  private final AtomicLong itemsWritten = new AtomicLong(0);
+  private volatile long started = 0;
+
+  private static final Batch END = new Batch(-1, null);
+
+  private static final class Batch {
+    final long seq;
+    final Object[] items;
+
+    Batch (long seq, Object[] items) {
+      this.seq = seq;
+      this.items = items;
+    }
+  }
+
+  /**
+   * f should take an item and return a String. threads workers take batches
+   * of batchSize items from a queue which holds up to queueSize batches.
+   */
+  public BatchPipeline (IFn f, int threads, int batchSize, int queueSize) {
+    if (threads < 1 || batchSize < 1 || queueSize < 1) {
+      throw new IllegalArgumentException("threads, batch size, and queue size must be positive");
+    }
+    this.f = f;
+    this.threads = threads;
+    this.batchSize = batchSize;
+    this.queue = new ArrayBlockingQueue<Batch>(queueSize + threads);
+    // queued, being worked on, or waiting to be written
+    this.inFlight = new Semaphore(queueSize + 2 * threads);
+  }
+
+  /**
+   * Runs f over items, writing the results to out. Blocks until everything
+   * has been written.
+   */
+  public void run (final Iterable<?> items, Writer out) throws Exception {
+    started = System.currentTimeMillis();
+
+    for (int i = 0; i < threads; i++) {
+      Thread t = new Thread(new Runnable() {
+        public void run () {
+          work();
+        }
+      }, "batch-worker-" + i);
+      t.setDaemon(true);
+      workers.add(t);
+    }
+    Thread reader = new Thread(new Runnable() {
+      public void run () {
+        read(items.iterator());
+      }
+    }, "batch-reader");
+    reader.setDaemon(true);
+    workers.add(reader);
+
+    for (Thread t : workers) t.start();
+
+    try {
+      write(out);
+    } catch (Throwable e) {
+      fail(e);
+    }
+    if (failure != null) {
+      if (failure instanceof Exception) throw (Exception) failure;
+      throw (Error) failure;
+    }
+    for (Thread t : workers) t.join();
+  }
+
+  private void fail (Throwable e) {
+    synchronized (done) {
+      if (failure == null) failure = e;
+      done.notifyAll();
+    }
+    for (Thread t : workers) t.interrupt();
+  }
+
+  private void read (Iterator<?> it) {
+    long seq = 0;
+    try {
+      while (it.hasNext() && failure == null) {
+        Object[] batch = new Object[batchSize];
+        int n = 0;
+        while (n < batchSize && it.hasNext()) batch[n++] = it.next();
+        if (n < batchSize) {
+          Object[] shorter = new Object[n];
+          System.arraycopy(batch, 0, shorter, 0, n);
+          batch = shorter;
+        }
+        inFlight.acquire();
+        itemsRead.addAndGet(n);
+        queued.incrementAndGet();
+        queue.put(new Batch(seq++, batch));
+      }
+      synchronized (done) {
+        numBatches = seq;
+        done.notifyAll();
+      }
+      for (int i = 0; i < threads; i++) queue.put(END);
+    } catch (InterruptedException e) {
+      // somebody else failed
+    } catch (Throwable e) {
+      fail(e);
+    }
+  }
+
+  private void work () {
+    StringBuilder sb = new StringBuilder();
+    try {
+      while (failure == null) {
+        Batch b = queue.take();
+        if (b == END) return;
+        queued.decrementAndGet();
+        sb.setLength(0);
+        for (Object item : b.items) sb.append((String) f.invoke(item));
+        synchronized (done) {
+          done.put(b.seq, sb.toString());
+          done.notifyAll();
+        }
+      }
+    } catch (InterruptedException e) {
+      // somebody else failed
+    } catch (Throwable e) {
+      fail(e);
+    }
+  }
+
+  private void write (Writer out) throws InterruptedException, IOException {
+    for (long seq = 0; ; seq++) {
+      String s;
+      synchronized (done) {
+        while (failure == null && !done.containsKey(seq) && numBatches != seq) {
+          done.wait();
+        }
+        if (failure != null || numBatches == seq) return;
+        s = done.remove(seq);
+      }
+      out.write(s);
+      inFlight.release();
+      itemsWritten.addAndGet(batchItems(seq));
+    }
+  }
+
+  // every batch is full except maybe the last one
+  private long batchItems (long seq) {
+    return Math.min(batchSize, itemsRead.get() - seq * batchSize);
+  }
+
+  /**
+   * The number of batches waiting for a worker.
+   */
+  public int queued () {
+    return queued.get();
+  }
+
+  /**
+   * The number of finished batches waiting to be written.
+   */
+  public int waiting () {
+    synchronized (done) {
+      return done.size();
+    }
+  }
+
+  /**
+   * The number of items written so far.
+   */
+  public long written () {
+    return itemsWritten.get();
+  }
+
+  /**
+   * Returns a string saying how many items have been written, how fast
+   * they're going, and how full the queues are.
+   */
+  public String progress () {
+    long n = written();
+    long ms = Math.max(1, System.currentTimeMillis() - started);
+    return String.format("%d done, %.0f/s, %d queued, %d to write",
+                         n, n * 1000.0 / ms, queued(), waiting());
+  }
+}
@@ -0,0 +1,181 @@
+package norm.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The bits of the BGZF format (what bgzip writes) that ParallelGzipInputStream
+ * and ParallelGzipOutputStream share.
+ *
+ * A BGZF file is an ordinary multi-member gzip file, where each member holds
+ * at most 64K of data and says in its header how long it is. So the members
+ * can be found without inflating anything, and inflated (or deflated) on as
+ * many threads as you like. Anything which reads gzip can still read it.
+ */
+final class Bgzf {
+
+  private Bgzf () {}
+
+  /** The most uncompressed data bgzip puts in a member. */
+  static final int BLOCK_SIZE = 0xff00;
+
+  static final int HEADER_SIZE  = 18;
+  static final int TRAILER_SIZE = 8;
+  static final int MAX_MEMBER_SIZE = 1 << 16;
+
+  /** The empty member bgzip puts at the end of a file. */
+  static final byte[] EOF = {
+    0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+    0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+  };
+
+  /**
+   * Inflating and deflating is shared out among these, whichever stream
+   * it's for, so opening lots of files at once doesn't mean lots of threads.
+   */
+  static final ExecutorService POOL = Executors.newFixedThreadPool(
+    Runtime.getRuntime().availableProcessors(),
+    new ThreadFactory() {
+      public Thread newThread (Runnable r) {
+        Thread t = new Thread(r, "gzip");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+  /**
+   * Does f start with the gzip magic number?
+   */
+  static boolean isGzipped (File f) throws IOException {
+    InputStream in = new FileInputStream(f);
+    try {
+      return in.read() == 0x1f && in.read() == 0x8b;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Is h (HEADER_SIZE bytes) the header of a BGZF member?
+   */
+  static boolean isHeader (byte[] h) {
+    return (h[0] & 0xff) == 0x1f && (h[1] & 0xff) == 0x8b && h[2] == 8 && h[3] == 4
+        && h[10] == 6 && h[11] == 0 && h[12] == 'B' && h[13] == 'C' && h[14] == 2 && h[15] == 0;
+  }
+
+  /**
+   * The size of the whole member whose header is h.
+   */
+  static int memberSize (byte[] h) {
+    return ((h[16] & 0xff) | (h[17] & 0xff) << 8) + 1;
+  }
+
+  private static int getInt (byte[] b, int i) {
+    return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+  }
+
+  private static void putInt (byte[] b, int i, int v) {
+    b[i]     = (byte) v;
+    b[i + 1] = (byte) (v >>> 8);
+    b[i + 2] = (byte) (v >>> 16);
+    b[i + 3] = (byte) (v >>> 24);
+  }
+
+  /**
+   * Inflates the given members, one after the other, checking their CRCs
+   * and sizes as it goes.
+   */
+  static byte[] inflate (List<byte[]> members) throws IOException {
+    int total = 0;
+    for (byte[] m : members) total += getInt(m, m.length - 4);
+    byte[] out = new byte[total];
+    Inflater inflater = new Inflater(true);
+    CRC32 crc = new CRC32();
+    try {
+      int off = 0;
+      for (byte[] m : members) {
+        int size = getInt(m, m.length - 4);
+        inflater.reset();
+        inflater.setInput(m, HEADER_SIZE, m.length - HEADER_SIZE - TRAILER_SIZE);
+        int n = 0;
+        while (n < size && !inflater.finished()) {
+          int r = inflater.inflate(out, off + n, size - n);
+          if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+          n += r;
+        }
+        if (n != size) throw new ZipException("Corrupt gzip member");
+        crc.reset();
+        crc.update(out, off, size);
+        if ((int) crc.getValue() != getInt(m, m.length - 8)) throw new ZipException("Corrupt gzip member (bad CRC)");
+        off += size;
+      }
+    } catch (DataFormatException e) {
+      throw new ZipException(e.getMessage());
+    } finally {
+      inflater.end();
+    }
+    return out;
+  }
+
+  /**
+   * Deflates len bytes of data into BGZF members of at most BLOCK_SIZE
+   * bytes each.
+   */
+  static byte[] deflate (byte[] data, int len, int level) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + HEADER_SIZE);
+    byte[] member = new byte[MAX_MEMBER_SIZE];
+    Deflater deflater = new Deflater(level, true);
+    Deflater stored = null;
+    CRC32 crc = new CRC32();
+    try {
+      for (int off = 0; off < len; off += BLOCK_SIZE) {
+        int n = Math.min(BLOCK_SIZE, len - off);
+        int clen = deflate(deflater, data, off, n, member);
+        if (clen < 0) {
+          // didn't compress enough to fit, so store it as is instead
+          if (stored == null) stored = new Deflater(Deflater.NO_COMPRESSION, true);
+          clen = deflate(stored, data, off, n, member);
+        }
+        int size = HEADER_SIZE + clen + TRAILER_SIZE;
+        System.arraycopy(EOF, 0, member, 0, 16);
+        member[16] = (byte) (size - 1);
+        member[17] = (byte) ((size - 1) >>> 8);
+        crc.reset();
+        crc.update(data, off, n);
+        putInt(member, HEADER_SIZE + clen, (int) crc.getValue());
+        putInt(member, HEADER_SIZE + clen + 4, n);
+        out.write(member, 0, size);
+      }
+    } finally {
+      deflater.end();
+      if (stored != null) stored.end();
+    }
+    return out.toByteArray();
+  }
+
+  // deflates into member after the header, returning the compressed length,
+  // or -1 if it doesn't fit
+  private static int deflate (Deflater d, byte[] data, int off, int len, byte[] member) {
+    final int max = MAX_MEMBER_SIZE - HEADER_SIZE - TRAILER_SIZE;
+    d.reset();
+    d.setInput(data, off, len);
+    d.finish();
+    int clen = 0;
+    while (!d.finished() && clen < max) {
+      clen += d.deflate(member, HEADER_SIZE + clen, max - clen);
+    }
+    return d.finished() ? clen : -1;
+  }
+}
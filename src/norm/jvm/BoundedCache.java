@@ -0,0 +1,153 @@
+package norm.jvm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe cache which holds at most a fixed number of entries,
+ * throwing away the least useful ones once it's full.
+ *
+ * "Useful" is decided by segmented LRU: new entries go into a probationary
+ * segment, and only get promoted to the protected segment (80% of the
+ * space) if they're asked for again. Entries are evicted from the least
+ * recently used end of the probationary segment, so a burst of things that
+ * are only seen once (which, token frequencies being what they are, is most
+ * things) can't push out the ones that keep coming up.
+ *
+ * Keys are hashed into stripes, each with its own lock and its share of the
+ * space. Hits, misses and evictions are counted.
+ */
+public class BoundedCache {
+
+  private static final int STRIPE_BITS = 4;
+  private static final Object NULL = new Object();
+
+  private final Stripe[]   stripes  = new Stripe[1 << STRIPE_BITS];
+  private final int        capacity;
+  private final AtomicLong hits      = new AtomicLong(0);
+  private final AtomicLong misses    = new AtomicLong(0);
+  private final AtomicLong evictions = new AtomicLong(0);
+
+  /**
+   * A cache of at most (about) capacity entries.
+   */
+  public BoundedCache (int capacity) {
+    if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+    this.capacity = capacity;
+    int each = (capacity + stripes.length - 1) / stripes.length;
+    for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe(each);
+  }
+
+  private Stripe stripe (Object key) {
+    int h = key == null ? 0 : key.hashCode() * 0x9e3779b9;
+    return stripes[h >>> (32 - STRIPE_BITS)];
+  }
+
+  /**
+   * The value cached for key, or notFound if there isn't one.
+   */
+  public Object get (Object key, Object notFound) {
+    Object v = stripe(key).get(key);
+    if (v == null) {
+      misses.incrementAndGet();
+      return notFound;
+    }
+    hits.incrementAndGet();
+    return v == NULL ? null : v;
+  }
+
+  /**
+   * Caches value for key. value can be null.
+   */
+  public void put (Object key, Object value) {
+    stripe(key).put(key, value == null ? NULL : value);
+  }
+
+  public long hits () {
+    return hits.get();
+  }
+
+  public long misses () {
+    return misses.get();
+  }
+
+  public long evictions () {
+    return evictions.get();
+  }
+
+  public int capacity () {
+    return capacity;
+  }
+
+  /**
+   * The number of entries in the cache.
+   */
+  public int size () {
+    int n = 0;
+    for (Stripe s : stripes) n += s.size();
+    return n;
+  }
+
+  public String toString () {
+    return String.format("%d hits, %d misses, %d evictions, %d/%d entries",
+                         hits(), misses(), evictions(), size(), capacity);
+  }
+
+  private final class Stripe {
+    // both in access order, least recently used first
+    final LinkedHashMap<Object, Object> probation = new LinkedHashMap<Object, Object>(16, 0.75f, true);
+    final LinkedHashMap<Object, Object> protect   = new LinkedHashMap<Object, Object>(16, 0.75f, true);
+    final int capacity;
+    final int protectCapacity;
+
+    Stripe (int capacity) {
+      this.capacity = capacity;
+      this.protectCapacity = Math.max(1, capacity * 4 / 5);
+    }
+
+    synchronized int size () {
+      return probation.size() + protect.size();
+    }
+
+    synchronized Object get (Object key) {
+      Object v = protect.get(key);
+      if (v != null) return v;
+      v = probation.remove(key);
+      if (v != null) {
+        // second time lucky
+        protect.put(key, v);
+        trim();
+      }
+      return v;
+    }
+
+    synchronized void put (Object key, Object value) {
+      if (protect.containsKey(key)) {
+        protect.put(key, value);
+      } else {
+        probation.put(key, value);
+        trim();
+      }
+    }
+
+    private void trim () {
+      while (protect.size() > protectCapacity) {
+        // demoted, but gets another chance
+        Iterator<Map.Entry<Object, Object>> it = protect.entrySet().iterator();
+        Map.Entry<Object, Object> e = it.next();
+        Object k = e.getKey();
+        Object v = e.getValue();
+        it.remove();
+        probation.put(k, v);
+      }
+      while (probation.size() + protect.size() > capacity) {
+        Iterator<Object> it = (probation.isEmpty() ? protect : probation).keySet().iterator();
+        it.next();
+        it.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+}
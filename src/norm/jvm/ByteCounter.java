@@ -0,0 +1,8 @@
+package norm.jvm;
+
+/**
+ * Something which can say how many bytes of its input it has got through.
+ */
+public interface ByteCounter {
+  long getByteCount ();
+}
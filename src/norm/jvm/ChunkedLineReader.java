@@ -0,0 +1,195 @@
+package norm.jvm;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads the lines of a file in big chunks, and decodes and splits the chunks
+ * on several threads. Batches of lines come out in the order they're in in
+ * the file.
+ *
+ * Chunks are cut just after a '\n', which can't be part of a multi-byte
+ * character in UTF-8 (or any other charset which agrees with ASCII on it),
+ * so each chunk can be decoded on its own. Lines end at "\n", "\r\n" or
+ * "\r", just as they do for BufferedReader.readLine.
+ *
+ * A few chunks are read ahead of whoever's asking for lines, so memory use
+ * is bounded. Progress is counted in bytes of the file whose lines have
+ * been handed out.
+ *
+ * Gzipped files are inflated by a ParallelGzipInputStream first, and then
+ * progress is in compressed bytes inflated so far, which runs a few chunks
+ * ahead of the lines.
+ */
+public class ChunkedLineReader implements Closeable {
+
+  public static final int MIN_CHUNK_SIZE = 1 << 20;
+
+  private final InputStream     in;
+  private final ByteCounter     counter;
+  private final Charset         charset;
+  private final ExecutorService executor;
+  private final int             ahead;
+  private final ProgressEstimate estimate;
+  private final LinkedList<Future<String[]>> pending = new LinkedList<Future<String[]>>();
+  private final LinkedList<Integer>          pendingBytes = new LinkedList<Integer>();
+
+  private byte[]  buf;
+  private int     carry = 0;     // bytes at the start of buf left over from the last chunk
+  private boolean eof = false;
+  private volatile long consumed = 0;
+
+  /**
+   * Reads path in chunks of (at least) chunkSize bytes, decoding them with
+   * the default charset on the given number of threads.
+   */
+  public ChunkedLineReader (String path, int chunkSize, int threads) throws IOException {
+    this(new File(path), chunkSize, threads, Charset.defaultCharset());
+  }
+
+  public ChunkedLineReader (File f, int chunkSize, int threads, Charset charset) throws IOException {
+    if (Bgzf.isGzipped(f)) {
+      ParallelGzipInputStream gz = new ParallelGzipInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+      this.in = gz;
+      this.counter = gz;
+    } else {
+      this.in = new FileInputStream(f);
+      this.counter = new ByteCounter() {
+        public long getByteCount () {
+          return consumed;
+        }
+      };
+    }
+    this.charset = charset;
+    this.buf = new byte[Math.max(chunkSize, MIN_CHUNK_SIZE)];
+    this.ahead = 2 * threads;
+    this.estimate = new ProgressEstimate(f.length());
+    this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread (Runnable r) {
+        Thread t = new Thread(r, "line-decoder");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Reads the next chunk of whole lines, and sets it decoding. Returns
+   * false if there's nothing left to read.
+   */
+  private boolean readChunk () throws IOException {
+    int n = carry;
+    int end;
+    while (true) {
+      while (n < buf.length && !eof) {
+        int r = in.read(buf, n, buf.length - n);
+        if (r < 0) {
+          eof = true;
+        } else {
+          n += r;
+        }
+      }
+      if (eof) {
+        end = n;
+        break;
+      }
+      end = n;
+      while (end > 0 && buf[end - 1] != '\n') end--;
+      if (end > 0) break;
+      // no line break in the whole buffer, so make room for more
+      byte[] bigger = new byte[buf.length * 2];
+      System.arraycopy(buf, 0, bigger, 0, n);
+      buf = bigger;
+    }
+    if (end == 0) return false;
+
+    final byte[] chunk = new byte[end];
+    System.arraycopy(buf, 0, chunk, 0, end);
+    carry = n - end;
+    System.arraycopy(buf, end, buf, 0, carry);
+
+    pending.add(executor.submit(new Callable<String[]>() {
+      public String[] call () {
+        return lines(new String(chunk, charset));
+      }
+    }));
+    pendingBytes.add(end);
+    return true;
+  }
+
+  /**
+   * Splits s into lines, the way BufferedReader.readLine would.
+   */
+  static String[] lines (String s) {
+    List<String> lines = new ArrayList<String>();
+    int start = 0;
+    final int n = s.length();
+    for (int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      if (c == '\n' || c == '\r') {
+        lines.add(s.substring(start, i));
+        if (c == '\r' && i + 1 < n && s.charAt(i + 1) == '\n') i++;
+        start = i + 1;
+      }
+    }
+    if (start < n) lines.add(s.substring(start));
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  /**
+   * The next batch of lines, or null if there aren't any more.
+   */
+  public String[] nextBatch () throws IOException {
+    while (pending.size() < ahead && readChunk()) {}
+    if (pending.isEmpty()) return null;
+    try {
+      String[] batch = pending.removeFirst().get();
+      consumed += pendingBytes.removeFirst();
+      return batch;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * The number of bytes (uncompressed) whose lines have been handed out.
+   */
+  public long byteCount () {
+    return consumed;
+  }
+
+  /**
+   * This returns a string saying how much of the file has been consumed and
+   * how long it might take to finish consuming.
+   */
+  public String progress () {
+    return estimate.report(counter.getByteCount());
+  }
+
+  public void close () throws IOException {
+    executor.shutdownNow();
+    pending.clear();
+    pendingBytes.clear();
+    in.close();
+  }
+}
@@ -0,0 +1,251 @@
+package norm.jvm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import clojure.lang.PersistentVector;
+
+/**
+ * Raw confusion sets worked out ahead of time for a fixed set of words
+ * (the most common OOV words in the tweet corpus, say), so that looking one
+ * up is just that.
+ *
+ * The words are kept in a FrozenTrie and numbered by their ids in it. The
+ * confusion set of word k is the entries offsets[k]..offsets[k+1), each of
+ * which is a dict word id along with its lexical and phonetic distances
+ * from the word. An entry which came from the phonetic search has a lexical
+ * distance of -1 and vice versa, and the entries are in the order
+ * words/raw-confusion-set gives them, so a confusion set for smaller
+ * distances than the table was built with can be had by leaving entries out.
+ *
+ * Like PhoneticIndex, a saved table only makes sense with the dict it was
+ * built against, and checks that it's loaded with that one.
+ */
+public class ConfusionSetTable {
+
+  private final FrozenTrie dict;
+  private final FrozenTrie words;
+  private final int        lexDist;
+  private final int        phonDist;
+  private final IntBuffer  offsets;
+  private final IntBuffer  ids;
+  private final ByteBuffer lex;
+  private final ByteBuffer phon;
+
+  private ConfusionSetTable (FrozenTrie dict, FrozenTrie words, int lexDist, int phonDist,
+                             IntBuffer offsets, IntBuffer ids, ByteBuffer lex, ByteBuffer phon) {
+    this.dict = dict;
+    this.words = words;
+    this.lexDist = lexDist;
+    this.phonDist = phonDist;
+    this.offsets = offsets;
+    this.ids = ids;
+    this.lex = lex;
+    this.phon = phon;
+  }
+
+  /**
+   * Collects confusion sets for a table.
+   */
+  public static class Builder {
+    private final FrozenTrie dict;
+    private final int lexDist;
+    private final int phonDist;
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    private static final class Entry {
+      final String word;
+      final int[] ids;
+      final byte[] lex;
+      final byte[] phon;
+
+      Entry (String word, int[] ids, byte[] lex, byte[] phon) {
+        this.word = word;
+        this.ids = ids;
+        this.lex = lex;
+        this.phon = phon;
+      }
+    }
+
+    /**
+     * For a table of confusion sets over dict with the given maximum
+     * distances.
+     */
+    public Builder (FrozenTrie dict, int lexDist, int phonDist) {
+      this.dict = dict;
+      this.lexDist = lexDist;
+      this.phonDist = phonDist;
+    }
+
+    /**
+     * Adds the confusion set cs of word. lex[i] and phon[i] are the
+     * distances of cs[i] from word, or -1 if cs[i] came from the other
+     * search. Words in cs which aren't in the dict are left out.
+     */
+    public synchronized Builder add (String word, String[] cs, byte[] lex, byte[] phon) {
+      if (cs.length != lex.length || cs.length != phon.length) {
+        throw new IllegalArgumentException("Need exactly one lex and one phon distance per candidate");
+      }
+      int[] is = new int[cs.length];
+      byte[] ls = new byte[cs.length];
+      byte[] ps = new byte[cs.length];
+      int n = 0;
+      for (int i = 0; i < cs.length; i++) {
+        int id = dict.wordId(cs[i]);
+        if (id < 0) continue;
+        is[n] = id;
+        ls[n] = lex[i];
+        ps[n] = phon[i];
+        n++;
+      }
+      entries.add(new Entry(word, copy(is, n), copy(ls, n), copy(ps, n)));
+      return this;
+    }
+
+    private static int[] copy (int[] a, int n) {
+      int[] b = new int[n];
+      System.arraycopy(a, 0, b, 0, n);
+      return b;
+    }
+
+    private static byte[] copy (byte[] a, int n) {
+      byte[] b = new byte[n];
+      System.arraycopy(a, 0, b, 0, n);
+      return b;
+    }
+
+    public synchronized ConfusionSetTable build () {
+      Collections.sort(entries, new Comparator<Entry>() {
+        public int compare (Entry a, Entry b) {
+          return a.word.compareTo(b.word);
+        }
+      });
+      Trie.Builder b = new Trie.Builder();
+      for (Entry e : entries) b.add(e.word, 1, null);
+      FrozenTrie words = new FrozenTrie(b.build());
+
+      // in id order, the last one wins if a word was added twice
+      Entry[] byId = new Entry[words.count()];
+      for (Entry e : entries) byId[words.wordId(e.word)] = e;
+      int[] offsets = new int[byId.length + 1];
+      for (int k = 0; k < byId.length; k++) offsets[k + 1] = offsets[k] + byId[k].ids.length;
+      int[] ids = new int[offsets[byId.length]];
+      byte[] lex = new byte[ids.length];
+      byte[] phon = new byte[ids.length];
+      for (int k = 0; k < byId.length; k++) {
+        System.arraycopy(byId[k].ids, 0, ids, offsets[k], byId[k].ids.length);
+        System.arraycopy(byId[k].lex, 0, lex, offsets[k], byId[k].ids.length);
+        System.arraycopy(byId[k].phon, 0, phon, offsets[k], byId[k].ids.length);
+      }
+      return new ConfusionSetTable(dict, words, lexDist, phonDist, IntBuffer.wrap(offsets),
+                                   IntBuffer.wrap(ids), ByteBuffer.wrap(lex), ByteBuffer.wrap(phon));
+    }
+  }
+
+  /**
+   * The number of words with confusion sets in the table.
+   */
+  public int count () {
+    return words.count();
+  }
+
+  /**
+   * Returns true if the table can give confusion sets for these distances.
+   */
+  public boolean covers (int lexDist, int phonDist) {
+    return lexDist <= this.lexDist && phonDist <= this.phonDist;
+  }
+
+  /**
+   * The raw confusion set of word for the given distances, as a vector, or
+   * null if it isn't in the table or the distances are bigger than the ones
+   * it was built with.
+   */
+  public List<String> get (String word, int lexDist, int phonDist) {
+    if (!covers(lexDist, phonDist)) return null;
+    int k = words.wordId(word);
+    if (k < 0) return null;
+    String[] names = dict.wordsById();
+    int from = offsets.get(k);
+    int to = offsets.get(k + 1);
+    Object[] cs = new Object[to - from];
+    int n = 0;
+    for (int i = from; i < to; i++) {
+      int l = lex.get(i);
+      int p = phon.get(i);
+      if ((l >= 0 && l <= lexDist) || (p >= 0 && p <= phonDist)) cs[n++] = names[ids.get(i)];
+    }
+    if (n < cs.length) {
+      Object[] shorter = new Object[n];
+      System.arraycopy(cs, 0, shorter, 0, n);
+      cs = shorter;
+    }
+    @SuppressWarnings("unchecked")
+    List<String> v = PersistentVector.create(cs);
+    return v;
+  }
+
+  public String toString () {
+    return "{words " + words.count() + ", candidates " + ids.limit()
+      + ", lex-dist " + lexDist + ", phon-dist " + phonDist + "}";
+  }
+
+  /*****************************************************
+  ***                                                ***
+  ***                SAVING AND LOADING              ***
+  ***                                                ***
+  ******************************************************/
+
+  /**
+   * Writes this table's sections to w.
+   */
+  public void write (ModelFile.Writer w) throws IOException {
+    dict.writeFingerprint(w);
+    w.putLong(lexDist);
+    w.putLong(phonDist);
+    words.write(w);
+    w.putInts(offsets);
+    w.putInts(ids);
+    w.putBytes(lex);
+    w.putBytes(phon);
+  }
+
+  /**
+   * Reads a table over dict from the next sections of r. Throws if it was
+   * built against a different dictionary.
+   */
+  public static ConfusionSetTable read (ModelFile.Reader r, FrozenTrie dict) throws IOException {
+    if (!dict.sameAs(r)) {
+      throw new IOException("Confusion set table was built against a different dictionary. Retrain it.");
+    }
+    int lexDist = (int) r.getLong();
+    int phonDist = (int) r.getLong();
+    FrozenTrie words = FrozenTrie.read(r);
+    return new ConfusionSetTable(dict, words, lexDist, phonDist,
+                                 r.getInts(), r.getInts(), r.getBytes(), r.getBytes());
+  }
+
+  /**
+   * Saves this table as a model file at path.
+   */
+  public void save (String path) throws IOException {
+    ModelFile.Writer w = new ModelFile.Writer(path, ModelFile.CS_TABLE);
+    try {
+      write(w);
+      w.close();
+    } finally {
+      w.abort();
+    }
+  }
+
+  /**
+   * Maps the table saved at path, which must have been built against dict.
+   */
+  public static ConfusionSetTable load (String path, FrozenTrie dict) throws IOException {
+    return read(new ModelFile.Reader(path, ModelFile.CS_TABLE), dict);
+  }
+}
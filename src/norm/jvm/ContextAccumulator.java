@@ -0,0 +1,131 @@
+package norm.jvm;
+
+import java.util.Arrays;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Counts context features for a fixed set of words, from lots of threads
+ * at once.
+ *
+ * Each word (by id) gets its own little open-addressing int -> int table
+ * of feature id -> count, so counting doesn't box anything or build any
+ * persistent maps, and threads only wait for each other when they're
+ * counting for the same word. Once counting is done, each word's counts
+ * come out as a sorted SparseDoubleVector.
+ */
+public class ContextAccumulator {
+
+  private final Row[] rows;
+
+  public ContextAccumulator (int numWords) {
+    rows = new Row[numWords];
+    for (int i = 0; i < numWords; i++) rows[i] = new Row();
+  }
+
+  /**
+   * Adds one to the count of the feature fid for the word with the given id.
+   */
+  public void add (int word, int fid) {
+    rows[word].add(fid);
+  }
+
+  /**
+   * The count of the feature fid for the word with the given id.
+   */
+  public int get (int word, int fid) {
+    return rows[word].get(fid);
+  }
+
+  /**
+   * The number of different features counted for the word with the given id.
+   */
+  public int size (int word) {
+    return rows[word].size();
+  }
+
+  /**
+   * The word's counts as a SparseDoubleVector, with keys in ascending order.
+   */
+  public SparseDoubleVector toVector (int word, int cardinality) {
+    return rows[word].toVector(cardinality);
+  }
+
+  /**
+   * Forgets the counts for the word with the given id, e.g. once they've
+   * been turned into a vector.
+   */
+  public void clear (int word) {
+    rows[word] = new Row();
+  }
+
+  private static final class Row {
+    // fid + 1, or 0 for an empty slot
+    int[] keys   = new int[4];
+    int[] counts = new int[4];
+    int   size   = 0;
+
+    private static int slot (int fid, int mask) {
+      int h = fid * 0x9e3779b9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int find (int key) {
+      int mask = keys.length - 1;
+      int i = slot(key, mask);
+      while (keys[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+      return i;
+    }
+
+    synchronized void add (int fid) {
+      int i = find(fid + 1);
+      if (keys[i] == 0) {
+        keys[i] = fid + 1;
+        if (++size * 4 > keys.length * 3) {
+          grow();
+          i = find(fid + 1);
+        }
+      }
+      counts[i]++;
+    }
+
+    synchronized int get (int fid) {
+      return counts[find(fid + 1)];
+    }
+
+    synchronized int size () {
+      return size;
+    }
+
+    private void grow () {
+      int[] ks = keys;
+      int[] cs = counts;
+      keys = new int[ks.length * 2];
+      counts = new int[ks.length * 2];
+      for (int j = 0; j < ks.length; j++) {
+        if (ks[j] != 0) {
+          int i = find(ks[j]);
+          keys[i] = ks[j];
+          counts[i] = cs[j];
+        }
+      }
+    }
+
+    synchronized SparseDoubleVector toVector (int cardinality) {
+      if (size == 0) return new SparseDoubleVector(cardinality, 0);
+      // pack each (fid, count) into a long so one sort orders both
+      long[] packed = new long[size];
+      int n = 0;
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != 0) packed[n++] = ((long) (keys[i] - 1) << 32) | (counts[i] & 0xffffffffL);
+      }
+      Arrays.sort(packed);
+      int[] ks = new int[size];
+      double[] vs = new double[size];
+      for (int i = 0; i < size; i++) {
+        ks[i] = (int) (packed[i] >>> 32);
+        vs[i] = (int) packed[i];
+      }
+      return new SparseDoubleVector(ks, vs, cardinality, size);
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package norm.jvm;
+
+import java.io.Reader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams the sentences out of Stanford CoreNLP xml (as in the annotated
+ * Gigaword NYT files), one at a time, without building any elements.
+ *
+ * Each call to nextSentence reads the next DOC/sentences/sentence and keeps
+ * its tokens (lower cased) and its basic dependencies as governor/dependent
+ * index pairs, in buffers that get reused for the next sentence. Indices are
+ * 1-based, like in the xml, so 0 is the root. Any index which isn't a
+ * number comes out as -1.
+ *
+ * Everything else (the text, parses, other kinds of dependencies,
+ * coreference, ...) is skipped.
+ */
+public class CoreNlpXmlReader {
+
+  private final XMLStreamReader xml;
+
+  // names of the elements we're in, outermost first
+  private String[] path = new String[16];
+  private int depth = 0;
+
+  private int sentenceDepth = -1;   // -1 when not in a sentence
+  private final StringBuilder text = new StringBuilder();
+  private boolean capturing = false;
+
+  private String[] tokens = new String[64];
+  private int numTokens = 0;
+  private String word;              // of the current token
+
+  private int[] governors = new int[64];
+  private int[] dependents = new int[64];
+  private int numDeps = 0;
+  private int governor;             // of the current dep
+  private int dependent;
+
+  public CoreNlpXmlReader (Reader in) throws XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    this.xml = factory.createXMLStreamReader(in);
+  }
+
+  // the name of the element i levels up from the current one (0 is the
+  // current one), or "" if there isn't one
+  private String up (int i) {
+    return depth - 1 - i >= 0 ? path[depth - 1 - i] : "";
+  }
+
+  private void push (String name) {
+    if (depth == path.length) {
+      String[] bigger = new String[depth * 2];
+      System.arraycopy(path, 0, bigger, 0, depth);
+      path = bigger;
+    }
+    path[depth++] = name;
+  }
+
+  /**
+   * The index in s, or -1 if s isn't one.
+   */
+  static int parseIndex (CharSequence s) {
+    int start = 0;
+    int end = s.length();
+    while (start < end && Character.isWhitespace(s.charAt(start))) start++;
+    while (end > start && Character.isWhitespace(s.charAt(end - 1))) end--;
+    if (end == start || end - start > 9) return -1;
+    int n = 0;
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') return -1;
+      n = n * 10 + (c - '0');
+    }
+    return n;
+  }
+
+  private void startElement (String name) {
+    push(name);
+    if (sentenceDepth < 0) {
+      if (name.equals("sentence") && up(1).equals("sentences") && up(2).equals("DOC")) {
+        sentenceDepth = depth;
+        numTokens = 0;
+        numDeps = 0;
+      }
+      return;
+    }
+    final int level = depth - sentenceDepth;
+    if (level == 2 && name.equals("token") && up(1).equals("tokens")) {
+      word = null;
+    } else if (level == 3 && name.equals("word") && up(1).equals("token")) {
+      text.setLength(0);
+      capturing = true;
+    } else if (level == 2 && name.equals("dep") && up(1).equals("basic-dependencies")) {
+      governor = -1;
+      dependent = -1;
+    } else if (level == 3 && (name.equals("governor") || name.equals("dependent")) && up(1).equals("dep")
+               && up(2).equals("basic-dependencies")) {
+      text.setLength(0);
+      capturing = true;
+    }
+  }
+
+  // returns true if it's the end of a sentence
+  private boolean endElement () {
+    String name = path[depth - 1];
+    boolean endOfSentence = false;
+    if (sentenceDepth >= 0) {
+      final int level = depth - sentenceDepth;
+      if (level == 0) {
+        sentenceDepth = -1;
+        endOfSentence = true;
+      } else if (capturing && name.equals("word")) {
+        word = text.toString().toLowerCase();
+      } else if (capturing && name.equals("governor")) {
+        governor = parseIndex(text);
+      } else if (capturing && name.equals("dependent")) {
+        dependent = parseIndex(text);
+      } else if (level == 2 && name.equals("token") && up(1).equals("tokens")) {
+        addToken(word == null ? "" : word);
+      } else if (level == 2 && name.equals("dep") && up(1).equals("basic-dependencies")) {
+        addDep(governor, dependent);
+      }
+    }
+    capturing = false;
+    path[--depth] = null;
+    return endOfSentence;
+  }
+
+  private void addToken (String t) {
+    if (numTokens == tokens.length) {
+      String[] bigger = new String[numTokens * 2];
+      System.arraycopy(tokens, 0, bigger, 0, numTokens);
+      tokens = bigger;
+    }
+    tokens[numTokens++] = t;
+  }
+
+  private void addDep (int g, int d) {
+    if (numDeps == governors.length) {
+      int[] gs = new int[numDeps * 2];
+      int[] ds = new int[numDeps * 2];
+      System.arraycopy(governors, 0, gs, 0, numDeps);
+      System.arraycopy(dependents, 0, ds, 0, numDeps);
+      governors = gs;
+      dependents = ds;
+    }
+    governors[numDeps] = g;
+    dependents[numDeps] = d;
+    numDeps++;
+  }
+
+  /**
+   * Reads the next sentence. Returns false (and closes the reader) if there
+   * aren't any more.
+   */
+  public boolean nextSentence () throws XMLStreamException {
+    while (xml.hasNext()) {
+      switch (xml.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          startElement(xml.getLocalName());
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          if (endElement()) return true;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          if (capturing) text.append(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+          break;
+        default:
+          break;
+      }
+    }
+    xml.close();
+    return false;
+  }
+
+  /** The number of tokens in the current sentence. */
+  public int tokenCount () {
+    return numTokens;
+  }
+
+  /** The ith (from 0) token of the current sentence. */
+  public String token (int i) {
+    return tokens[i];
+  }
+
+  /** The number of basic dependencies in the current sentence. */
+  public int depCount () {
+    return numDeps;
+  }
+
+  /** The governor index of the kth dependency. */
+  public int governor (int k) {
+    return governors[k];
+  }
+
+  /** The dependent index of the kth dependency. */
+  public int dependent (int k) {
+    return dependents[k];
+  }
+}
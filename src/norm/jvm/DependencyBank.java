@@ -0,0 +1,145 @@
+package norm.jvm;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import clojure.lang.AFn;
+
+/**
+ * The dependency bank: for every dict word and offset from -3 to 3, how
+ * often (as a proportion of all the dependencies seen) the word governed an
+ * OOV word that far away from it.
+ *
+ * The scores are in one float table with a row of seven per word, indexed
+ * by the word's id in the dict, so a lookup by id (or by the dict node the
+ * word ends at) is just arithmetic. Words and offsets which weren't seen
+ * score 0.
+ *
+ * Works as a fn of a word and an offset, for code that doesn't know about
+ * ids. Like PhoneticIndex, a saved bank only makes sense with the dict it
+ * was built against, and checks that it's loaded with that one.
+ */
+public class DependencyBank extends AFn {
+
+  public static final int MIN_OFFSET = -3;
+  public static final int MAX_OFFSET = 3;
+  public static final int WIDTH = MAX_OFFSET - MIN_OFFSET + 1;
+
+  private final FrozenTrie  dict;
+  private final FloatBuffer scores;
+
+  private DependencyBank (FrozenTrie dict, FloatBuffer scores) {
+    this.dict = dict;
+    this.scores = scores;
+  }
+
+  /**
+   * Collects scores for a bank.
+   */
+  public static class Builder {
+    private final FrozenTrie dict;
+    private final float[] scores;
+
+    /**
+     * For a bank over dict.
+     */
+    public Builder (FrozenTrie dict) {
+      this.dict = dict;
+      this.scores = new float[dict.count() * WIDTH];
+    }
+
+    /**
+     * Sets the score of word at offset. Words which aren't in the dict, and
+     * offsets which are out of range, are left out.
+     */
+    public Builder put (String word, int off, double score) {
+      int id = dict.wordId(word);
+      if (id >= 0 && off >= MIN_OFFSET && off <= MAX_OFFSET) {
+        scores[id * WIDTH + off - MIN_OFFSET] = (float) score;
+      }
+      return this;
+    }
+
+    public DependencyBank build () {
+      return new DependencyBank(dict, FloatBuffer.wrap(scores.clone()));
+    }
+  }
+
+  /**
+   * The score of the word with the given dict id at offset off.
+   */
+  public float score (int id, int off) {
+    if (id < 0 || off < MIN_OFFSET || off > MAX_OFFSET) return 0f;
+    return scores.get(id * WIDTH + off - MIN_OFFSET);
+  }
+
+  /**
+   * The score of the word which ends at the given dict node.
+   */
+  public float scoreAtNode (int node, int off) {
+    return score(dict.wordId(node), off);
+  }
+
+  /**
+   * The score of word at offset off.
+   */
+  public float score (String word, int off) {
+    return score(dict.wordId(word), off);
+  }
+
+  public Object invoke (Object word, Object off) {
+    return score((String) word, ((Number) off).intValue());
+  }
+
+  public String toString () {
+    int n = 0;
+    for (int i = 0; i < scores.limit(); i++) {
+      if (scores.get(i) != 0f) n++;
+    }
+    return "{words " + dict.count() + ", scores " + n + "}";
+  }
+
+  /*****************************************************
+  ***                                                ***
+  ***                SAVING AND LOADING              ***
+  ***                                                ***
+  ******************************************************/
+
+  /**
+   * Writes this bank's sections to w.
+   */
+  public void write (ModelFile.Writer w) throws IOException {
+    dict.writeFingerprint(w);
+    w.putFloats(scores);
+  }
+
+  /**
+   * Reads a bank over dict from the next sections of r. Throws if it was
+   * built against a different dictionary.
+   */
+  public static DependencyBank read (ModelFile.Reader r, FrozenTrie dict) throws IOException {
+    if (!dict.sameAs(r)) {
+      throw new IOException("Dependency bank was built against a different dictionary. Recompile it.");
+    }
+    return new DependencyBank(dict, r.getFloats());
+  }
+
+  /**
+   * Saves this bank as a model file at path.
+   */
+  public void save (String path) throws IOException {
+    ModelFile.Writer w = new ModelFile.Writer(path, ModelFile.DPB);
+    try {
+      write(w);
+      w.close();
+    } finally {
+      w.abort();
+    }
+  }
+
+  /**
+   * Maps the bank saved at path, which must have been built against dict.
+   */
+  public static DependencyBank load (String path, FrozenTrie dict) throws IOException {
+    return read(new ModelFile.Reader(path, ModelFile.DPB), dict);
+  }
+}
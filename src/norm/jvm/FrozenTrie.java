@@ -0,0 +1,808 @@
+package norm.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import clojure.lang.AFn;
+import clojure.lang.IMapEntry;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
+import clojure.lang.IteratorSeq;
+import clojure.lang.MapEntry;
+import clojure.lang.PersistentVector;
+import clojure.lang.Util;
+
+/**
+ * A read-only Trie packed into a handful of primitive arrays.
+ *
+ * Nodes are numbered in level order, starting with the root at 0, so the
+ * children of a node are contiguous and sorted by their label. The children
+ * of node i are the nodes first[i] up to (but not including) first[i+1].
+ * A node is just an int, so walking the trie is a few array reads rather
+ * than a pointer chase per character.
+ *
+ * Build one from a normal Trie once you're done adding things to it. The
+ * arrays are held as buffers so that a FrozenTrie can also be saved to a
+ * model file and then used straight from the mapped file. Data objects
+ * which are Strings, collections of Strings or numbers survive being saved.
+ */
+public class FrozenTrie extends AFn implements IPersistentMap, IObj, ITrie {
+
+  private final int        _size;      // number of nodes
+  private final long       _count;     // number of words
+  private final CharBuffer _labels;    // the char on the edge into each node
+  private final IntBuffer  _first;     // index of each node's first child
+  private final LongBuffer _freq;
+  private final LongBuffer _tfreq;
+  private final LongBuffer _terminal;  // bitset
+  private final Object[]   _data;      // null if there's no data at all
+  private final IntBuffer  _values;    // or, if loaded from a file, offsets
+  private final ByteBuffer _pool;      // of encoded data in the pool
+
+  private IPersistentMap metadata;
+
+  // the number of words before each long of _terminal, made when first needed
+  private volatile int[] _rank;
+  // the words by id, made when first needed
+  private volatile String[] _byId;
+
+  private FrozenTrie (FrozenTrie t, IPersistentMap meta) {
+    _size     = t._size;
+    _count    = t._count;
+    _labels   = t._labels;
+    _first    = t._first;
+    _freq     = t._freq;
+    _tfreq    = t._tfreq;
+    _terminal = t._terminal;
+    _data     = t._data;
+    _values   = t._values;
+    _pool     = t._pool;
+    _rank     = t._rank;
+    _byId     = t._byId;
+    metadata  = meta;
+  }
+
+  private FrozenTrie (int size, long count, CharBuffer labels, IntBuffer first, LongBuffer freq,
+                      LongBuffer tfreq, LongBuffer terminal, IntBuffer values, ByteBuffer pool) {
+    _size     = size;
+    _count    = count;
+    _labels   = labels;
+    _first    = first;
+    _freq     = freq;
+    _tfreq    = tfreq;
+    _terminal = terminal;
+    _data     = null;
+    _values   = values;
+    _pool     = pool;
+  }
+
+  /**
+   * Freezes the given trie.
+   */
+  public FrozenTrie (Trie t) {
+    // lay the nodes out in level order
+    ArrayList<Trie> nodes = new ArrayList<Trie>();
+    nodes.add(t);
+    for (int i = 0; i < nodes.size(); i++) {
+      for (Trie child : nodes.get(i)._nodes) nodes.add(child);
+    }
+
+    _size = nodes.size();
+    char[] labels   = new char[_size];
+    int[]  first    = new int[_size + 1];
+    long[] freq     = new long[_size];
+    long[] tfreq    = new long[_size];
+    long[] terminal = new long[(_size + 63) >>> 6];
+
+    Object[] data = null;
+    long count = 0;
+    int next = 1;
+    for (int i = 0; i < _size; i++) {
+      Trie node = nodes.get(i);
+      first[i] = next;
+      for (int j = 0; j < node._keys.length; j++) {
+        labels[next++] = node._keys[j];
+      }
+      freq[i] = node._freq;
+      tfreq[i] = node._tfreq;
+      if (node._terminal) {
+        terminal[i >>> 6] |= 1L << i;
+        count++;
+      }
+      if (node._data != null) {
+        if (data == null) data = new Object[_size];
+        data[i] = node._data;
+      }
+    }
+    first[_size] = next;
+
+    _labels   = CharBuffer.wrap(labels);
+    _first    = IntBuffer.wrap(first);
+    _freq     = LongBuffer.wrap(freq);
+    _tfreq    = LongBuffer.wrap(tfreq);
+    _terminal = LongBuffer.wrap(terminal);
+    _data     = data;
+    _values   = null;
+    _pool     = null;
+    _count    = count;
+  }
+
+  /*****************************************************
+  ***                                                ***
+  ***                SAVING AND LOADING              ***
+  ***                                                ***
+  ******************************************************/
+
+  /**
+   * Writes this trie's sections to w.
+   */
+  public void write (ModelFile.Writer w) throws IOException {
+    w.putLong(_size);
+    w.putLong(_count);
+    w.putChars(_labels);
+    w.putInts(_first);
+    w.putLongs(_freq);
+    w.putLongs(_tfreq);
+    w.putLongs(_terminal);
+    if (_values != null) {
+      w.putInts(_values);
+      w.putBytes(_pool);
+    } else {
+      // encode the data objects into a pool of bytes, with an offset into the
+      // pool for each node (or -1 for no data)
+      int[] values = new int[_size];
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream pool = new DataOutputStream(bytes);
+      for (int i = 0; i < _size; i++) {
+        Object o = nodeData(i);
+        values[i] = o == null ? -1 : pool.size();
+        if (o != null) encode(o, pool);
+      }
+      pool.flush();
+      w.putInts(values);
+      w.putBytes(bytes.toByteArray());
+    }
+  }
+
+  /**
+   * Reads a trie from the next sections of r. The trie is backed by the
+   * mapped file.
+   */
+  public static FrozenTrie read (ModelFile.Reader r) {
+    int size = (int) r.getLong();
+    long count = r.getLong();
+    CharBuffer labels = r.getChars();
+    IntBuffer first = r.getInts();
+    LongBuffer freq = r.getLongs();
+    LongBuffer tfreq = r.getLongs();
+    LongBuffer terminal = r.getLongs();
+    IntBuffer values = r.getInts();
+    ByteBuffer pool = r.getBytes();
+    return new FrozenTrie(size, count, labels, first, freq, tfreq, terminal, values, pool);
+  }
+
+  /**
+   * Writes enough about this trie for a model which refers to its words by
+   * id to check, with sameAs, that it's being loaded against the same one.
+   */
+  public void writeFingerprint (ModelFile.Writer w) throws IOException {
+    w.putLong(_count);
+    w.putLong(_size);
+    w.putLong(hashCode());
+  }
+
+  /**
+   * Reads a fingerprint written by writeFingerprint, and returns true if
+   * it's this trie's.
+   */
+  public boolean sameAs (ModelFile.Reader r) {
+    boolean same = r.getLong() == _count;
+    same &= r.getLong() == _size;
+    same &= r.getLong() == hashCode();
+    return same;
+  }
+
+  /**
+   * Saves this trie as a model file at path.
+   */
+  public void save (String path) throws IOException {
+    ModelFile.Writer w = new ModelFile.Writer(path, ModelFile.TRIE);
+    try {
+      write(w);
+      w.close();
+    } finally {
+      w.abort();
+    }
+  }
+
+  /**
+   * Maps the trie saved at path.
+   */
+  public static FrozenTrie load (String path) throws IOException {
+    return read(new ModelFile.Reader(path, ModelFile.TRIE));
+  }
+
+  // data objects in the pool are a tag byte followed by the object.
+  private static final byte STRING = 0;
+  private static final byte STRINGS = 1;
+  private static final byte NUMBER = 2;
+
+  private static void encode (Object o, DataOutputStream out) throws IOException {
+    if (o instanceof String) {
+      out.writeByte(STRING);
+      out.writeUTF((String) o);
+    } else if (o instanceof Number) {
+      out.writeByte(NUMBER);
+      out.writeLong(((Number) o).longValue());
+    } else if (o instanceof Collection) {
+      Collection<?> c = (Collection<?>) o;
+      out.writeByte(STRINGS);
+      out.writeInt(c.size());
+      for (Object s : c) {
+        if (!(s instanceof String)) {
+          throw new IllegalArgumentException("Can't save trie data which isn't strings or numbers: " + o);
+        }
+        out.writeUTF((String) s);
+      }
+    } else {
+      throw new IllegalArgumentException("Can't save trie data which isn't strings or numbers: " + o);
+    }
+  }
+
+  private static Object decode (ByteBuffer pool, int offset) {
+    // DataOutputStream writes big-endian
+    ByteBuffer in = pool.duplicate().order(ByteOrder.BIG_ENDIAN);
+    in.position(offset);
+    switch (in.get()) {
+      case STRING:
+        return readUTF(in);
+      case NUMBER:
+        return in.getLong();
+      default:
+        int n = in.getInt();
+        Object[] strings = new Object[n];
+        for (int i = 0; i < n; i++) strings[i] = readUTF(in);
+        return PersistentVector.create(strings);
+    }
+  }
+
+  // reads a string written by DataOutputStream.writeUTF
+  private static String readUTF (ByteBuffer in) {
+    int len = ((in.get() & 0xff) << 8) | (in.get() & 0xff);
+    char[] cs = new char[len];
+    int n = 0;
+    int end = in.position() + len;
+    while (in.position() < end) {
+      int a = in.get() & 0xff;
+      if (a < 0x80) {
+        cs[n++] = (char) a;
+      } else if ((a & 0xe0) == 0xc0) {
+        cs[n++] = (char) (((a & 0x1f) << 6) | (in.get() & 0x3f));
+      } else {
+        int b = in.get() & 0x3f;
+        cs[n++] = (char) (((a & 0x0f) << 12) | (b << 6) | (in.get() & 0x3f));
+      }
+    }
+    return new String(cs, 0, n);
+  }
+
+  public IObj withMeta (IPersistentMap meta) {
+    return new FrozenTrie(this, meta);
+  }
+
+  public IPersistentMap meta () { return metadata; }
+
+  /*****************************************************
+  ***                                                ***
+  ***                 NODE LEVEL STUFF               ***
+  ***                                                ***
+  ******************************************************/
+
+  /**
+   * The number of nodes in the trie
+   */
+  public int size () {
+    return _size;
+  }
+
+  /**
+   * Returns the child of the given node along the edge labelled c, or -1 if
+   * there isn't one.
+   */
+  public int child (int node, char c) {
+    int lo = _first.get(node);
+    int hi = _first.get(node + 1) - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      char l = _labels.get(mid);
+      if (l < c) lo = mid + 1;
+      else if (l > c) hi = mid - 1;
+      else return mid;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the node at the end of the path s, or -1 if there isn't one.
+   */
+  public int endNode (String s) {
+    int node = 0;
+    for (int i = 0; i < s.length() && node >= 0; i++) {
+      node = child(node, s.charAt(i));
+    }
+    return node;
+  }
+
+  /**
+   * Returns the node at the end of the path cs[start..end), or -1.
+   */
+  public int endNode (char[] cs, int start, int end) {
+    int node = 0;
+    for (int i = start; i < end && node >= 0; i++) {
+      node = child(node, cs[i]);
+    }
+    return node;
+  }
+
+  public boolean isTerminal (int node) {
+    return (_terminal.get(node >>> 6) & (1L << node)) != 0;
+  }
+
+  /**
+   * Returns the node whose child the given node is, or -1 for the root.
+   */
+  public int parent (int node) {
+    if (node <= 0) return -1;
+    // the last node whose children start at or before this one
+    int lo = 0;
+    int hi = _size - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (_first.get(mid) <= node) lo = mid;
+      else hi = mid - 1;
+    }
+    return lo;
+  }
+
+  /**
+   * Returns the string spelled out by the path to the given node.
+   */
+  public String word (int node) {
+    int depth = 0;
+    for (int n = node; n > 0; n = parent(n)) depth++;
+    char[] cs = new char[depth];
+    for (int n = node; n > 0; n = parent(n)) cs[--depth] = _labels.get(n);
+    return new String(cs);
+  }
+
+  private int[] rank () {
+    int[] rank = _rank;
+    if (rank == null) {
+      rank = new int[_terminal.limit() + 1];
+      for (int i = 0; i < _terminal.limit(); i++) {
+        rank[i + 1] = rank[i] + Long.bitCount(_terminal.get(i));
+      }
+      _rank = rank;
+    }
+    return rank;
+  }
+
+  /**
+   * Words are numbered from 0 in the order their nodes are in (i.e. by
+   * length, and then alphabetically). Returns the number of the word which
+   * ends at the given node, or -1 if no word ends there.
+   */
+  public int wordId (int node) {
+    if (node < 0 || !isTerminal(node)) return -1;
+    long below = _terminal.get(node >>> 6) & ((1L << node) - 1);
+    return rank()[node >>> 6] + Long.bitCount(below);
+  }
+
+  /**
+   * The number of the given word, or -1 if it isn't in the trie.
+   */
+  public int wordId (String s) {
+    return wordId(endNode(s));
+  }
+
+  /**
+   * The node the word with the given number ends at. See wordId.
+   */
+  public int wordNode (int id) {
+    if (id < 0 || id >= _count) throw new IndexOutOfBoundsException(Integer.toString(id));
+    int[] rank = rank();
+    // the last long with fewer than id + 1 words before it
+    int lo = 0;
+    int hi = rank.length - 2;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (rank[mid] <= id) lo = mid;
+      else hi = mid - 1;
+    }
+    long bits = _terminal.get(lo);
+    for (int k = id - rank[lo]; k > 0; k--) bits &= bits - 1;
+    return (lo << 6) + Long.numberOfTrailingZeros(bits);
+  }
+
+  /**
+   * The word with the given number.
+   */
+  public String wordAt (int id) {
+    return word(wordNode(id));
+  }
+
+  /**
+   * All of the words, indexed by their numbers. This is made the first time
+   * it's asked for and then kept, for code that needs to turn lots of ids
+   * back into words quickly. Don't change it.
+   */
+  public String[] wordsById () {
+    String[] byId = _byId;
+    if (byId == null) {
+      byId = new String[(int) _count];
+      Cursor c = cursor("");
+      while (c.advance()) byId[wordId(c.node())] = c.word();
+      _byId = byId;
+    }
+    return byId;
+  }
+
+  public long nodeFreq (int node) {
+    return _freq.get(node);
+  }
+
+  public long nodeTfreq (int node) {
+    return _tfreq.get(node);
+  }
+
+  public Object nodeData (int node) {
+    if (_data != null) {
+      return _data[node];
+    } else if (_values != null) {
+      int offset = _values.get(node);
+      return offset < 0 ? null : decode(_pool, offset);
+    } else {
+      return null;
+    }
+  }
+
+  /*****************************************************
+  ***                                                ***
+  ***                  LOOKING STUFF UP              ***
+  ***                                                ***
+  ******************************************************/
+
+  public boolean contains (String s) {
+    int node = endNode(s);
+    return node >= 0 && isTerminal(node);
+  }
+
+  public boolean contains (char[] cs, int start, int end) {
+    int node = endNode(cs, start, end);
+    return node >= 0 && isTerminal(node);
+  }
+
+  public Object valAt (char[] cs, int start, int end, Object notFound) {
+    int node = endNode(cs, start, end);
+    return node >= 0 && isTerminal(node) ? nodeData(node) : notFound;
+  }
+
+  public Long freq (String prefix) {
+    int node = endNode(prefix);
+    return node < 0 ? 0 : _freq.get(node);
+  }
+
+  public Long tfreq (String prefix) {
+    int node = endNode(prefix);
+    return node < 0 ? 0 : _tfreq.get(node);
+  }
+
+  /**
+   * Finds the n nearest strings to s in this trie, within a levenshtein
+   * distance of d. See Trie.findNearest
+   */
+  public List<String> findNearest (final String s, final int n, final int d) {
+    NearestSearch ns = NearestSearch.get(s, n, d);
+    if (d >= 0) nearest(ns, 0, 0);
+    return ns.results();
+  }
+
+  /**
+   * Like findNearest, but searches in parallel on executor. See
+   * Trie.findNearestParallel.
+   */
+  public List<String> findNearestParallel (String s, int n, int d, ExecutorService executor) {
+    if (executor == null || s.length() < Trie.PARALLEL_MIN_LENGTH || d < Trie.PARALLEL_MIN_DISTANCE) {
+      return findNearest(s, n, d);
+    }
+    List<Shard> shards = new ArrayList<Shard>();
+    shards.add(new Shard(new char[0], 0, false));
+    for (int c = _first.get(0); c < _first.get(1); c++) {
+      shards.add(new Shard(new char[]{_labels.get(c)}, c, false));
+      for (int g = _first.get(c); g < _first.get(c + 1); g++) {
+        shards.add(new Shard(new char[]{_labels.get(c), _labels.get(g)}, g, true));
+      }
+    }
+    return NearestSearch.search(s, n, d, shards, executor).results();
+  }
+
+  // the word at the end of path, and maybe everything under it too
+  private final class Shard implements NearestSearch.Shard {
+    final char[]  path;
+    final int     node;
+    final boolean whole;
+
+    Shard (char[] path, int node, boolean whole) {
+      this.path = path;
+      this.node = node;
+      this.whole = whole;
+    }
+
+    public void search (NearestSearch ns) {
+      int depth = 0;
+      for (char c : path) {
+        if (ns.push(++depth, c) > ns.bound()) return;
+      }
+      if (whole) {
+        nearest(ns, node, depth);
+      } else if (isTerminal(node)) {
+        ns.offer(depth, _freq.get(node), node);
+      }
+    }
+  }
+
+  /**
+   * Like findNearest, but returns the nodes the words end at, so that no
+   * Strings need to be made.
+   */
+  public int[] findNearestNodes (final String s, final int n, final int d) {
+    NearestSearch ns = NearestSearch.get(s, n, d);
+    if (d >= 0) nearest(ns, 0, 0);
+    return ns.nodeResults();
+  }
+
+  private void nearest (NearestSearch ns, int node, int depth) {
+    if (isTerminal(node)) {
+      ns.offer(depth, _freq.get(node), node);
+    }
+    final int end = _first.get(node + 1);
+    for (int c = _first.get(node); c < end; c++) {
+      if (ns.push(depth + 1, _labels.get(c)) <= ns.bound()) {
+        nearest(ns, c, depth + 1);
+      }
+    }
+  }
+
+  /**
+   * A cursor over the words starting with prefix.
+   */
+  public Cursor cursor (String prefix) {
+    return new Cursor(this, prefix, "", TrieCursor.ALL);
+  }
+
+  public static final class Cursor extends TrieCursor {
+    private final FrozenTrie t;
+    private int[] nodes = new int[16];
+    private int[] next  = new int[16]; // the next child to visit at each depth
+    private int   top   = 0;
+
+    Cursor (FrozenTrie t, String prefix, String s, int mode) {
+      super(prefix, s, mode);
+      this.t = t;
+      nodes[0] = t.endNode(prefix);
+      if (nodes[0] < 0) finish();
+      else next[0] = t._first.get(nodes[0]);
+    }
+
+    /**
+     * The node at the end of the current path.
+     */
+    public int node () {
+      return nodes[top];
+    }
+
+    protected boolean terminal () {
+      return t.isTerminal(nodes[top]);
+    }
+
+    protected boolean down () {
+      int c = next[top];
+      if (c >= t._first.get(nodes[top] + 1)) return false;
+      next[top] = c + 1;
+      if (++top == nodes.length) {
+        nodes = Arrays.copyOf(nodes, nodes.length * 2);
+        next = Arrays.copyOf(next, next.length * 2);
+      }
+      nodes[top] = c;
+      next[top] = t._first.get(c);
+      push(t._labels.get(c));
+      return true;
+    }
+
+    protected void up () {
+      top--;
+      pop();
+    }
+  }
+
+  public Iterator<String> iterateWords () {
+    return cursor("").strings();
+  }
+
+  public Iterator<String> iterateWithPrefix (String s) {
+    return cursor(s).strings();
+  }
+
+  public Iterator<String> iterateWithSuffix (String s) {
+    return new Cursor(this, "", s, TrieCursor.SUFFIX).strings();
+  }
+
+  public Iterator<String> iterateContaining (String s, boolean contiguous) {
+    return new Cursor(this, "", s, contiguous ? TrieCursor.SUBSTRING : TrieCursor.SUBSEQUENCE).strings();
+  }
+
+  public List<String> findWithPrefix (String s) {
+    return cursor(s).toList();
+  }
+
+  public List<String> findWithSuffix (String s) {
+    return new Cursor(this, "", s, TrieCursor.SUFFIX).toList();
+  }
+
+  public List<String> findContaining (String s, boolean contiguous) {
+    return new Cursor(this, "", s, contiguous ? TrieCursor.SUBSTRING : TrieCursor.SUBSEQUENCE).toList();
+  }
+
+  public List<String> words () {
+    return cursor("").toList();
+  }
+
+  // CLOJURE STUFF
+
+  @Override
+  public Object valAt (Object key) {
+    return valAt(key, null);
+  }
+
+  @Override
+  public Object valAt (Object key, Object notFound) {
+    int node = endNode((String) key);
+    return node >= 0 && isTerminal(node) ? nodeData(node) : notFound;
+  }
+
+  @Override
+  public Object invoke (Object arg1) {
+    return valAt(arg1);
+  }
+
+  @Override
+  public Object invoke (Object arg1, Object notFound) {
+    return valAt(arg1, notFound);
+  }
+
+  @Override
+  public boolean containsKey (Object key) {
+    return contains((String) key);
+  }
+
+  @Override
+  public IMapEntry entryAt (Object key) {
+    int node = endNode((String) key);
+    return node >= 0 && isTerminal(node) ? new MapEntry(key, nodeData(node)) : null;
+  }
+
+  @Override
+  public int count () { return (int) _count; }
+
+  @Override
+  public ISeq seq () {
+    return _count == 0 ? null : IteratorSeq.create(iterator());
+  }
+
+  /**
+   * Iterates over [word [tfreq data]] entries in alphabetical order, like
+   * Trie does.
+   */
+  @Override
+  public Iterator<MapEntry> iterator () {
+    final Cursor cursor = cursor("");
+    return new Iterator<MapEntry>() {
+      private MapEntry head = advance();
+
+      private MapEntry advance () {
+        if (!cursor.advance()) return null;
+        int n = cursor.node();
+        return new MapEntry(cursor.word(),
+                            PersistentVector.create(new Object[]{new Long(_tfreq.get(n)), nodeData(n)}));
+      }
+
+      public boolean hasNext () {
+        return head != null;
+      }
+
+      public MapEntry next () {
+        if (head == null) throw new NoSuchElementException();
+        MapEntry v = head;
+        head = advance();
+        return v;
+      }
+
+      public void remove () {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  public IPersistentMap assoc (Object key, Object val) {
+    throw new UnsupportedOperationException("FrozenTries are read-only");
+  }
+
+  @Override
+  public IPersistentMap assocEx (Object key, Object val) {
+    throw new UnsupportedOperationException("FrozenTries are read-only");
+  }
+
+  @Override
+  public IPersistentMap without (Object key) {
+    throw new UnsupportedOperationException("FrozenTries are read-only");
+  }
+
+  @Override
+  public IPersistentCollection cons (Object o) {
+    throw new UnsupportedOperationException("FrozenTries are read-only");
+  }
+
+  @Override
+  public IPersistentCollection empty () {
+    return new FrozenTrie(new Trie());
+  }
+
+  @Override
+  public boolean equiv (Object o) {
+    if (o == this) return true;
+    if (!(o instanceof FrozenTrie)) return false;
+    FrozenTrie t = (FrozenTrie) o;
+    if (_size != t._size
+        || !_labels.equals(t._labels)
+        || !_first.equals(t._first)
+        || !_freq.equals(t._freq)
+        || !_tfreq.equals(t._tfreq)
+        || !_terminal.equals(t._terminal)) {
+      return false;
+    }
+    for (int i = 0; i < _size; i++) {
+      if (!Util.equiv(nodeData(i), t.nodeData(i))) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean equals (Object o) {
+    return equiv(o);
+  }
+
+  @Override
+  public int hashCode () {
+    return _labels.hashCode() ^ _first.hashCode();
+  }
+
+  @Override
+  public String toString () {
+    return "{count " + _count + ", freq " + _freq.get(0) + "}";
+  }
+}
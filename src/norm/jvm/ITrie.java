@@ -0,0 +1,71 @@
+package norm.jvm;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The read-only bits of a trie. Code which only looks things up shouldn't
+ * care whether it's been given a Trie or a FrozenTrie.
+ */
+public interface ITrie {
+
+  /**
+   * Returns true if s is a word (i.e. not just a prefix) in the trie.
+   */
+  boolean contains (String s);
+
+  /**
+   * Like contains, but for the word in cs[start..end), so that tokens don't
+   * need to be Strings to be looked up.
+   */
+  boolean contains (char[] cs, int start, int end);
+
+  /**
+   * The data for the word in cs[start..end), or notFound if it isn't a word
+   * in the trie.
+   */
+  Object valAt (char[] cs, int start, int end, Object notFound);
+
+  /**
+   * The frequency of the given prefix.
+   */
+  Long freq (String prefix);
+
+  /**
+   * The frequency of the given word.
+   */
+  Long tfreq (String prefix);
+
+  List<String> findNearest (String s, int n, int d);
+
+  /**
+   * Same as findNearest, but long queries are split up and run on executor.
+   */
+  List<String> findNearestParallel (String s, int n, int d, ExecutorService executor);
+
+  List<String> findWithPrefix (String s);
+
+  List<String> findWithSuffix (String s);
+
+  List<String> findContaining (String s, boolean contiguous);
+
+  List<String> words ();
+
+  /**
+   * The words starting with prefix, one at a time. See TrieCursor.
+   */
+  TrieCursor cursor (String prefix);
+
+  /**
+   * Lazy versions of words, findWithPrefix, findWithSuffix and
+   * findContaining, which make each String as it's asked for.
+   */
+  Iterator<String> iterateWords ();
+
+  Iterator<String> iterateWithPrefix (String s);
+
+  Iterator<String> iterateWithSuffix (String s);
+
+  Iterator<String> iterateContaining (String s, boolean contiguous);
+}
@@ -0,0 +1,257 @@
+package norm.jvm;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives out unique ids for small int tuples (e.g. n-gram features made of
+ * word ids) and counts how often each one is seen, in thread-safe goodness.
+ *
+ * Tuples are hashed into one of a number of stripes, each of which is an
+ * open-addressing hash table with its own lock, so threads only get in each
+ * other's way when they hit the same stripe. The tables hold nothing but
+ * primitive arrays: the tuples themselves are copied into a flat pool of
+ * ints, so looking one up or adding one doesn't allocate (except when a
+ * stripe needs to grow, which it does without blocking the others).
+ *
+ * Ids are handed out densely from 0 in the order tuples are first seen.
+ * tuples() exports the id -> tuple mapping, and a table made from that
+ * mapping gives the same ids back, so ids can be kept across runs.
+ */
+public class IntTupleIds {
+
+  private static final int STRIPE_BITS = 6;
+
+  private final Stripe[]      stripes = new Stripe[1 << STRIPE_BITS];
+  private final AtomicInteger next    = new AtomicInteger(0);
+
+  public IntTupleIds () {
+    for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe();
+  }
+
+  /**
+   * Makes a table where tuples[i] has id i.
+   */
+  public IntTupleIds (int[][] tuples) {
+    this();
+    for (int i = 0; i < tuples.length; i++) {
+      int h = hash(tuples[i]);
+      if (stripe(h).put(tuples[i], h, false) != i) {
+        throw new IllegalArgumentException("Duplicate tuple: " + Arrays.toString(tuples[i]));
+      }
+    }
+  }
+
+  private static int hash (final int[] ks) {
+    int h = ks.length * 0x9e3779b9;
+    for (int i = 0; i < ks.length; i++) {
+      h ^= ks[i] * 0xcc9e2d51;
+      h = Integer.rotateLeft(h, 15) * 0x1b873593;
+    }
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    return h;
+  }
+
+  private Stripe stripe (int h) {
+    return stripes[h >>> (32 - STRIPE_BITS)];
+  }
+
+  /**
+   * Returns the id of ks, or -1 if it hasn't been seen.
+   */
+  public int get (final int[] ks) {
+    int h = hash(ks);
+    return stripe(h).get(ks, h);
+  }
+
+  /**
+   * Returns the id of ks, giving it one if it hasn't been seen.
+   */
+  public int put (final int[] ks) {
+    int h = hash(ks);
+    return stripe(h).put(ks, h, false);
+  }
+
+  /**
+   * Like put, but also adds one to the number of times ks has been seen.
+   */
+  public int count (final int[] ks) {
+    int h = hash(ks);
+    return stripe(h).put(ks, h, true);
+  }
+
+  /**
+   * The number of tuples which have ids.
+   */
+  public int size () {
+    return next.get();
+  }
+
+  /**
+   * The tuples, indexed by id.
+   */
+  public int[][] tuples () {
+    int[][] result = new int[size()][];
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        for (int e = 0; e < s.size; e++) {
+          if (s.ids[e] < result.length) {
+            result[s.ids[e]] = Arrays.copyOfRange(s.pool, s.offsets[e], s.offsets[e + 1]);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The number of times each tuple has been counted, indexed by id.
+   */
+  public long[] frequencies () {
+    long[] result = new long[size()];
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        for (int e = 0; e < s.size; e++) {
+          if (s.ids[e] < result.length) result[s.ids[e]] = s.freqs[e];
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes the id -> tuple mapping to w.
+   */
+  public void write (ModelFile.Writer w) throws IOException {
+    int[][] tuples = tuples();
+    int[] offsets = new int[tuples.length + 1];
+    for (int i = 0; i < tuples.length; i++) offsets[i + 1] = offsets[i] + tuples[i].length;
+    int[] pool = new int[offsets[tuples.length]];
+    for (int i = 0; i < tuples.length; i++) {
+      System.arraycopy(tuples[i], 0, pool, offsets[i], tuples[i].length);
+    }
+    w.putInts(offsets);
+    w.putInts(pool);
+  }
+
+  /**
+   * Reads a mapping written by write. Ids stay the same.
+   */
+  public static IntTupleIds read (ModelFile.Reader r) {
+    IntBuffer offsets = r.getInts();
+    IntBuffer pool = r.getInts();
+    int[][] tuples = new int[offsets.limit() - 1][];
+    for (int i = 0; i < tuples.length; i++) {
+      tuples[i] = new int[offsets.get(i + 1) - offsets.get(i)];
+      for (int j = 0; j < tuples[i].length; j++) tuples[i][j] = pool.get(offsets.get(i) + j);
+    }
+    return new IntTupleIds(tuples);
+  }
+
+  /**
+   * Saves the id -> tuple mapping as a model file at path.
+   */
+  public void save (String path) throws IOException {
+    ModelFile.Writer w = new ModelFile.Writer(path, ModelFile.TUPLE_IDS);
+    try {
+      write(w);
+      w.close();
+    } finally {
+      w.abort();
+    }
+  }
+
+  /**
+   * Loads a mapping saved at path.
+   */
+  public static IntTupleIds load (String path) throws IOException {
+    return read(new ModelFile.Reader(path, ModelFile.TUPLE_IDS));
+  }
+
+  private final class Stripe {
+    // slots hold entry index + 1, or 0 if empty
+    int[]  slots   = new int[16];
+    // per entry
+    int[]  hashes  = new int[8];
+    int[]  ids     = new int[8];
+    long[] freqs   = new long[8];
+    int[]  offsets = new int[9];  // entry e's tuple is pool[offsets[e]..offsets[e+1])
+    int[]  pool    = new int[32];
+    int    size    = 0;
+
+    private boolean matches (int e, int[] ks) {
+      int off = offsets[e];
+      if (offsets[e + 1] - off != ks.length) return false;
+      for (int i = 0; i < ks.length; i++) {
+        if (pool[off + i] != ks[i]) return false;
+      }
+      return true;
+    }
+
+    // returns the slot holding ks, or the empty slot where it should go
+    private int find (int[] ks, int h) {
+      int mask = slots.length - 1;
+      int i = h & mask;
+      while (slots[i] != 0) {
+        int e = slots[i] - 1;
+        if (hashes[e] == h && matches(e, ks)) return i;
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    synchronized int get (int[] ks, int h) {
+      int slot = slots[find(ks, h)];
+      return slot == 0 ? -1 : ids[slot - 1];
+    }
+
+    synchronized int put (int[] ks, int h, boolean count) {
+      int i = find(ks, h);
+      int e;
+      if (slots[i] != 0) {
+        e = slots[i] - 1;
+      } else {
+        e = add(ks, h);
+        slots[i] = e + 1;
+        if (size * 2 > slots.length) rehash();
+      }
+      if (count) freqs[e]++;
+      return ids[e];
+    }
+
+    private int add (int[] ks, int h) {
+      int e = size++;
+      if (e == hashes.length) {
+        int cap = hashes.length * 2;
+        hashes = Arrays.copyOf(hashes, cap);
+        ids = Arrays.copyOf(ids, cap);
+        freqs = Arrays.copyOf(freqs, cap);
+        offsets = Arrays.copyOf(offsets, cap + 1);
+      }
+      int off = offsets[e];
+      if (off + ks.length > pool.length) {
+        pool = Arrays.copyOf(pool, Math.max(pool.length * 2, off + ks.length));
+      }
+      System.arraycopy(ks, 0, pool, off, ks.length);
+      offsets[e + 1] = off + ks.length;
+      hashes[e] = h;
+      ids[e] = next.getAndIncrement();
+      return e;
+    }
+
+    private void rehash () {
+      int[] ss = new int[slots.length * 2];
+      int mask = ss.length - 1;
+      for (int e = 0; e < size; e++) {
+        int i = hashes[e] & mask;
+        while (ss[i] != 0) i = (i + 1) & mask;
+        ss[i] = e + 1;
+      }
+      slots = ss;
+    }
+  }
+}
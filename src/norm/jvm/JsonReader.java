@@ -0,0 +1,366 @@
+package norm.jvm;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import clojure.lang.ITransientCollection;
+import clojure.lang.ITransientMap;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentVector;
+
+/**
+ * Reads json values one at a time from a Reader, through a fixed size char
+ * buffer, so memory use doesn't depend on how big the input is. Values come
+ * out as clojure data: maps, vectors, strings, longs, doubles, booleans and
+ * nils.
+ *
+ * Like norm.json/objects-in, it isn't fussy: everything before the first
+ * '{' is skipped, and then it's a list of values which ends at a ']' or the
+ * end of the input (so a json array of tweets, or tweets one after the
+ * other, both work). Commas are optional.
+ *
+ * If it's given some keys, the top-level objects only get those, and the
+ * values of all the other keys are skipped over without being built.
+ */
+public class JsonReader implements Iterator<Object> {
+
+  /**
+   * Thrown for input that isn't json.
+   */
+  public static class ParseException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ParseException (String message) {
+      super(message);
+    }
+  }
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final Reader        in;
+  private final Set<String>   keep;      // null for all of them
+  private final char[]        buf = new char[BUFFER_SIZE];
+  private int                 pos = 0;
+  private int                 limit = 0;
+  private boolean             eof = false;
+  private final StringBuilder sb = new StringBuilder();
+
+  private boolean started = false;
+  private boolean done = false;
+  private Object  next = null;
+  private boolean ready = false;
+
+  public JsonReader (Reader in) {
+    this(in, null);
+  }
+
+  /**
+   * Reads values from in, keeping only the given keys of top-level objects,
+   * or all of them if keep is null.
+   */
+  public JsonReader (Reader in, Collection<String> keep) {
+    this.in = in;
+    this.keep = keep == null ? null : new HashSet<String>(keep);
+  }
+
+  /*****************************************************
+  ***                                                ***
+  ***                     BUFFERING                  ***
+  ***                                                ***
+  ******************************************************/
+
+  private boolean fill () throws IOException {
+    if (eof) return false;
+    int n = in.read(buf, 0, buf.length);
+    if (n < 0) {
+      eof = true;
+      in.close();
+      return false;
+    }
+    pos = 0;
+    limit = n;
+    return true;
+  }
+
+  // the next char, without moving past it, or -1 at the end
+  private int peek () throws IOException {
+    while (pos == limit) {
+      if (!fill()) return -1;
+    }
+    return buf[pos];
+  }
+
+  private int read () throws IOException {
+    int c = peek();
+    if (c >= 0) pos++;
+    return c;
+  }
+
+  private int skipWhitespace () throws IOException {
+    while (true) {
+      int c = peek();
+      if (c < 0 || !Character.isWhitespace(c)) return c;
+      pos++;
+    }
+  }
+
+  private static ParseException bad (int c) {
+    return new ParseException(c < 0 ? "Unexpected end of input" : "Bad character: " + (char) c);
+  }
+
+  /*****************************************************
+  ***                                                ***
+  ***                      VALUES                    ***
+  ***                                                ***
+  ******************************************************/
+
+  private Object parseValue (Set<String> keep) throws IOException {
+    int c = skipWhitespace();
+    switch (c) {
+      case '{': pos++; return parseObject(keep);
+      case '[': pos++; return parseList();
+      case '"': pos++; return parseString();
+      case 'n': literal("null"); return null;
+      case 't': literal("true"); return Boolean.TRUE;
+      case 'f': literal("false"); return Boolean.FALSE;
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) return parseNumber();
+        throw bad(c);
+    }
+  }
+
+  private Object parseObject (Set<String> keep) throws IOException {
+    ITransientMap m = PersistentArrayMap.EMPTY.asTransient();
+    while (true) {
+      int c = skipWhitespace();
+      if (c == '}') {
+        pos++;
+        return m.persistent();
+      } else if (c == ',') {
+        pos++;
+      } else if (c == '"') {
+        pos++;
+        String key = parseString();
+        if (skipWhitespace() != ':') throw new ParseException("Expected ':' after \"" + key + "\"");
+        pos++;
+        if (keep == null || keep.contains(key)) {
+          m = m.assoc(key, parseValue(null));
+        } else {
+          skipValue();
+        }
+      } else {
+        throw bad(c);
+      }
+    }
+  }
+
+  private Object parseList () throws IOException {
+    ITransientCollection v = PersistentVector.EMPTY.asTransient();
+    while (true) {
+      int c = skipWhitespace();
+      if (c == ']') {
+        pos++;
+        return v.persistent();
+      } else if (c == ',') {
+        pos++;
+      } else {
+        v = v.conj(parseValue(null));
+      }
+    }
+  }
+
+  private String parseString () throws IOException {
+    // most strings have no escapes and are all in the buffer already
+    for (int i = pos; i < limit; i++) {
+      char c = buf[i];
+      if (c == '"') {
+        String s = new String(buf, pos, i - pos);
+        pos = i + 1;
+        return s;
+      }
+      if (c == '\\' || Character.isISOControl(c)) break;
+    }
+    sb.setLength(0);
+    while (true) {
+      int c = read();
+      if (c == '"') {
+        return sb.toString();
+      } else if (c == '\\') {
+        sb.append(escape(read()));
+      } else if (c < 0) {
+        throw bad(c);
+      } else if (Character.isISOControl(c)) {
+        throw new ParseException("Control character in string literal");
+      } else {
+        sb.append((char) c);
+      }
+    }
+  }
+
+  private char escape (int c) throws IOException {
+    switch (c) {
+      case '"':  return '"';
+      case '\\': return '\\';
+      case '/':  return '/';
+      case 'b':  return '\b';
+      case 'f':  return '\f';
+      case 'n':  return '\n';
+      case 'r':  return '\r';
+      case 't':  return '\t';
+      case 'u':
+        char[] hex = new char[4];
+        for (int i = 0; i < 4; i++) {
+          int h = read();
+          if (h < 0) throw bad(h);
+          hex[i] = (char) h;
+        }
+        return (char) Integer.parseInt(new String(hex), 16);
+      default:
+        throw new ParseException("Bad escape: \\" + (char) c);
+    }
+  }
+
+  private static boolean isNumChar (int c) {
+    return (c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '-';
+  }
+
+  private Object parseNumber () throws IOException {
+    sb.setLength(0);
+    boolean dec = false;
+    while (isNumChar(peek())) {
+      char c = (char) read();
+      dec |= c == '.' || c == 'e' || c == 'E';
+      sb.append(c);
+    }
+    String s = sb.toString();
+    return dec ? (Object) Double.valueOf(s) : (Object) Long.valueOf(s);
+  }
+
+  private void literal (String word) throws IOException {
+    for (int i = 0; i < word.length(); i++) {
+      int c = read();
+      if (c != word.charAt(i)) throw bad(c);
+    }
+  }
+
+  /*****************************************************
+  ***                                                ***
+  ***                     SKIPPING                   ***
+  ***                                                ***
+  ******************************************************/
+
+  // like parseValue, but doesn't build anything
+  private void skipValue () throws IOException {
+    int c = skipWhitespace();
+    switch (c) {
+      case '{': pos++; skipUntil('}'); return;
+      case '[': pos++; skipUntil(']'); return;
+      case '"': pos++; skipString(); return;
+      case 'n': literal("null"); return;
+      case 't': literal("true"); return;
+      case 'f': literal("false"); return;
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          while (isNumChar(peek())) pos++;
+          return;
+        }
+        throw bad(c);
+    }
+  }
+
+  // skips the rest of an object or list, up to and including end
+  private void skipUntil (char end) throws IOException {
+    while (true) {
+      int c = skipWhitespace();
+      if (c == end) {
+        pos++;
+        return;
+      } else if (c == ',' || (c == ':' && end == '}')) {
+        pos++;
+      } else {
+        skipValue();
+      }
+    }
+  }
+
+  private void skipString () throws IOException {
+    while (true) {
+      while (pos < limit) {
+        char c = buf[pos++];
+        if (c == '"') return;
+        if (c == '\\') {
+          escape(read());
+        } else if (Character.isISOControl(c)) {
+          throw new ParseException("Control character in string literal");
+        }
+      }
+      if (!fill()) throw bad(-1);
+    }
+  }
+
+  /*****************************************************
+  ***                                                ***
+  ***                     ITERATING                  ***
+  ***                                                ***
+  ******************************************************/
+
+  // skips everything before the first '{'
+  private void start () throws IOException {
+    while (true) {
+      int c = skipWhitespace();
+      if (c < 0 || c == '{') return;
+      if (c == '[' || c == ']' || c == ',' || c == ':' || c == '}') {
+        pos++;
+      } else {
+        skipValue();
+      }
+    }
+  }
+
+  private void advance () throws IOException {
+    if (!started) {
+      started = true;
+      start();
+    }
+    while (true) {
+      int c = skipWhitespace();
+      if (c < 0 || c == ']') {
+        done = true;
+        return;
+      } else if (c == ',') {
+        pos++;
+      } else {
+        next = parseValue(keep);
+        ready = true;
+        return;
+      }
+    }
+  }
+
+  public boolean hasNext () {
+    if (!ready && !done) {
+      try {
+        advance();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return ready;
+  }
+
+  public Object next () {
+    if (!hasNext()) throw new NoSuchElementException();
+    Object v = next;
+    next = null;
+    ready = false;
+    return v;
+  }
+
+  public void remove () {
+    throw new UnsupportedOperationException();
+  }
+}
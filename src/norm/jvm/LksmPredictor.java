@@ -0,0 +1,156 @@
+package norm.jvm;
+
+import java.util.Arrays;
+import java.util.List;
+import clojure.lang.AFn;
+import de.bwaldvogel.liblinear.Model;
+
+/**
+ * The lksm classifier, with the work of turning exemplars into liblinear
+ * features done once, up front.
+ *
+ * An exemplar [gov dep off] has (at most) three features: gov as a
+ * governor, dep as a dependent, and the offset. Every iv word's two feature
+ * indices are kept in int arrays, numbered by the word's id in a FrozenTrie,
+ * and the offsets' are in an array too. Classifying an exemplar is then a
+ * couple of trie lookups and adding up three weights and the bias straight
+ * from the model's weight vector, the same way Linear.predictValues does it,
+ * without making any FeatureNodes.
+ *
+ * Works as a fn of exemplars, returning "pos" or "neg", so it can be used
+ * anywhere the old closure could.
+ */
+public class LksmPredictor extends AFn {
+
+  private final FrozenTrie words;
+  private final int[]      govFeatures;   // by word id, 0 if none
+  private final int[]      depFeatures;
+  private final int        minOffset;
+  private final int[]      offFeatures;   // by offset - minOffset
+
+  private final double[]   w;
+  private final int        n;             // features with weights, counting the bias
+  private final int        nrW;           // weights per feature
+  private final int        nrClass;
+  private final int[]      labels;
+  private final double     bias;
+
+  /**
+   * A predictor for model, where govFeatures[i] and depFeatures[i] are the
+   * feature indices of ivWords[i] as a governor and as a dependent (or 0 if
+   * it hasn't got one), and offFeatures[i] is the index of offsets[i].
+   */
+  public LksmPredictor (Model model, String[] ivWords, int[] govFeatures, int[] depFeatures,
+                        int[] offsets, int[] offFeatures) {
+    String[] sorted = ivWords.clone();
+    Arrays.sort(sorted);
+    Trie.Builder b = new Trie.Builder();
+    for (String s : sorted) b.add(s, 1, null);
+    this.words = new FrozenTrie(b.build());
+    this.govFeatures = new int[words.count()];
+    this.depFeatures = new int[words.count()];
+    for (int i = 0; i < ivWords.length; i++) {
+      int id = words.wordId(ivWords[i]);
+      this.govFeatures[id] = govFeatures[i];
+      this.depFeatures[id] = depFeatures[i];
+    }
+
+    int min = 0;
+    int max = -1;
+    for (int i = 0; i < offsets.length; i++) {
+      if (i == 0 || offsets[i] < min) min = offsets[i];
+      if (i == 0 || offsets[i] > max) max = offsets[i];
+    }
+    this.minOffset = min;
+    this.offFeatures = new int[max - min + 1];
+    for (int i = 0; i < offsets.length; i++) this.offFeatures[offsets[i] - min] = offFeatures[i];
+
+    this.w = model.getFeatureWeights();
+    this.bias = model.getBias();
+    this.n = bias >= 0 ? model.getNrFeature() + 1 : model.getNrFeature();
+    this.nrW = n == 0 ? 1 : w.length / n;
+    this.nrClass = model.getNrClass();
+    this.labels = model.getLabels();
+  }
+
+  private int feature (int[] features, String word) {
+    if (word == null) return 0;
+    int id = words.wordId(word);
+    return id < 0 ? 0 : features[id];
+  }
+
+  private int offFeature (int off) {
+    int i = off - minOffset;
+    return i < 0 || i >= offFeatures.length ? 0 : offFeatures[i];
+  }
+
+  private void add (double[] dec, int f, double value) {
+    if (f < 1 || f > n) return;
+    for (int c = 0; c < nrW; c++) dec[c] += w[(f - 1) * nrW + c] * value;
+  }
+
+  private double predict (int g, int d, int o, double[] dec) {
+    // liblinear adds them up in index order
+    int t;
+    if (g > d) { t = g; g = d; d = t; }
+    if (d > o) { t = d; d = o; o = t; }
+    if (g > d) { t = g; g = d; d = t; }
+    Arrays.fill(dec, 0.0);
+    add(dec, g, 1.0);
+    add(dec, d, 1.0);
+    add(dec, o, 1.0);
+    if (bias >= 0) add(dec, n, bias);
+
+    if (nrClass == 2) return dec[0] > 0 ? labels[0] : labels[1];
+    int best = 0;
+    for (int c = 1; c < nrClass; c++) {
+      if (dec[c] > dec[best]) best = c;
+    }
+    return labels[best];
+  }
+
+  /**
+   * The label liblinear would give the exemplar [gov dep off].
+   */
+  public double predict (String gov, String dep, int off) {
+    return predict(feature(govFeatures, gov), feature(depFeatures, dep), offFeature(off), new double[nrW]);
+  }
+
+  private static String name (double label) {
+    if (label == 1.0) return "pos";
+    if (label == 0.0) return "neg";
+    return null;
+  }
+
+  /**
+   * Classifies the exemplar [gov dep off] as "pos" or "neg".
+   */
+  public Object invoke (Object exemplar) {
+    List<?> e = (List<?>) exemplar;
+    return name(predict((String) e.get(0), (String) e.get(1), ((Number) e.get(2)).intValue()));
+  }
+
+  /**
+   * Classifies every exemplar [govs[j] deps[i] offs[j]], and returns the
+   * number of "pos"es for each dep. This is all of a token's exemplars,
+   * one set per candidate, in one go.
+   */
+  public int[] countPositive (List<String> govs, List<? extends Number> offs, List<String> deps) {
+    final int m = govs.size();
+    int[] gs = new int[m];
+    int[] os = new int[m];
+    for (int j = 0; j < m; j++) {
+      gs[j] = feature(govFeatures, govs.get(j));
+      os[j] = offFeature(offs.get(j).intValue());
+    }
+    double[] dec = new double[nrW];
+    int[] counts = new int[deps.size()];
+    for (int i = 0; i < counts.length; i++) {
+      int d = feature(depFeatures, deps.get(i));
+      for (int j = 0; j < m; j++) {
+        if (predict(gs[j], d, os[j], dec) == 1.0) counts[i]++;
+      }
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,159 @@
+package norm.jvm;
+
+import java.util.ArrayList;
+import java.util.List;
+import clojure.lang.PersistentVector;
+import edu.berkeley.nlp.lm.ArrayEncodedNgramLanguageModel;
+import edu.berkeley.nlp.lm.NgramLanguageModel;
+import edu.berkeley.nlp.lm.WordIndexer;
+
+/**
+ * Scores the candidates for one token against the same bit of context with
+ * a language model, all in one go.
+ *
+ * Scoring "l w r" with scoreSentence makes a list, looks all of its words
+ * up and scores every n-gram of "<s> l w r </s>", for every candidate w.
+ * Here the context is looked up once, the n-grams which don't include w are
+ * scored once, and only the ones that do get scored per candidate, straight
+ * off an int[] of word ids. The sums come out exactly the same as
+ * scoreSentence's, since they're added up in the same order.
+ *
+ * That needs an ArrayEncodedNgramLanguageModel, which is what
+ * MakeLmBinaryFromArpa makes (norm.train.tlm). Any other kind of model gets
+ * scoreSentence per candidate.
+ */
+public class LmScorer {
+
+  private final NgramLanguageModel<String>            lm;
+  private final ArrayEncodedNgramLanguageModel<String> alm;   // null if lm isn't one
+  private final int                                   order;
+
+  public LmScorer (NgramLanguageModel<String> lm) {
+    this.lm = lm;
+    this.alm = lm instanceof ArrayEncodedNgramLanguageModel ? (ArrayEncodedNgramLanguageModel<String>) lm : null;
+    this.order = lm.getLmOrder();
+  }
+
+  public NgramLanguageModel<String> model () {
+    return lm;
+  }
+
+  /**
+   * The log probability of the sentence, with start and end symbols.
+   */
+  public float scoreSentence (List<String> words) {
+    return lm.scoreSentence(words);
+  }
+
+  /**
+   * The scoreSentence of left + [c] + right, for each candidate c.
+   */
+  public float[] score (List<String> left, List<String> candidates, List<String> right) {
+    final int n = candidates.size();
+    final float[] scores = new float[n];
+    if (alm == null) {
+      List<String> s = new ArrayList<String>(left);
+      final int slot = s.size();
+      s.add(null);
+      s.addAll(right);
+      for (int i = 0; i < n; i++) {
+        s.set(slot, candidates.get(i));
+        scores[i] = lm.scoreSentence(s);
+      }
+      return scores;
+    }
+
+    WordIndexer<String> wi = alm.getWordIndexer();
+    // <s> left _ right </s>
+    final int[] ids = new int[left.size() + right.size() + 3];
+    final int slot = left.size() + 1;
+    ids[0] = wi.getIndexPossiblyUnk(wi.getStartSymbol());
+    for (int j = 0; j < left.size(); j++) ids[j + 1] = wi.getIndexPossiblyUnk(left.get(j));
+    for (int j = 0; j < right.size(); j++) ids[slot + 1 + j] = wi.getIndexPossiblyUnk(right.get(j));
+    ids[ids.length - 1] = wi.getIndexPossiblyUnk(wi.getEndSymbol());
+
+    // the n-grams ending at k, for each k past <s>. the ones ending before
+    // the slot are the same for everyone.
+    float prefix = 0f;
+    for (int k = 1; k < slot; k++) prefix += logProb(ids, k);
+    for (int i = 0; i < n; i++) {
+      ids[slot] = wi.getIndexPossiblyUnk(candidates.get(i));
+      float s = prefix;
+      for (int k = slot; k < ids.length; k++) s += logProb(ids, k);
+      scores[i] = s;
+    }
+    return scores;
+  }
+
+  private float logProb (int[] ids, int k) {
+    return alm.getLogProb(ids, Math.max(0, k - order + 1), k + 1);
+  }
+
+  /**
+   * The indices of the k highest scores, highest first. Equal scores come in
+   * the order they're in in scores, like a stable sort would leave them.
+   */
+  public static int[] topK (float[] scores, int k) {
+    k = Math.max(0, Math.min(k, scores.length));
+    // a heap with the worst of the best k so far at the top
+    int[] heap = new int[k];
+    int size = 0;
+    for (int i = 0; i < scores.length; i++) {
+      if (size < k) {
+        heap[size] = i;
+        siftUp(scores, heap, size++);
+      } else if (k > 0 && better(scores, i, heap[0])) {
+        heap[0] = i;
+        siftDown(scores, heap, size);
+      }
+    }
+    // pop them all off, worst first
+    int[] result = new int[size];
+    while (size > 0) {
+      result[--size] = heap[0];
+      heap[0] = heap[size];
+      siftDown(scores, heap, size);
+    }
+    return result;
+  }
+
+  private static boolean better (float[] scores, int a, int b) {
+    return scores[a] > scores[b] || (scores[a] == scores[b] && a < b);
+  }
+
+  private static void siftUp (float[] scores, int[] heap, int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (!better(scores, heap[parent], heap[i])) break;
+      int t = heap[parent]; heap[parent] = heap[i]; heap[i] = t;
+      i = parent;
+    }
+  }
+
+  private static void siftDown (float[] scores, int[] heap, int size) {
+    int i = 0;
+    while (true) {
+      int worst = i;
+      int l = 2 * i + 1;
+      int r = l + 1;
+      if (l < size && better(scores, heap[worst], heap[l])) worst = l;
+      if (r < size && better(scores, heap[worst], heap[r])) worst = r;
+      if (worst == i) return;
+      int t = heap[worst]; heap[worst] = heap[i]; heap[i] = t;
+      i = worst;
+    }
+  }
+
+  /**
+   * The k candidates which score best between left and right, best first,
+   * as a vector.
+   */
+  public List<String> best (List<String> left, List<String> candidates, List<String> right, int k) {
+    int[] top = topK(score(left, candidates, right), k);
+    Object[] result = new Object[top.length];
+    for (int i = 0; i < top.length; i++) result[i] = candidates.get(top[i]);
+    @SuppressWarnings("unchecked")
+    List<String> v = PersistentVector.create(result);
+    return v;
+  }
+}
@@ -0,0 +1,127 @@
+package norm.jvm;
+
+import java.util.ArrayList;
+import clojure.lang.ISeq;
+import clojure.lang.IteratorSeq;
+import clojure.lang.MapEntry;
+import clojure.lang.Seqable;
+
+/**
+ * Like StringCounts, but for int or long keys (e.g. ids, or a pair of ids
+ * packed into a long), which are stored unboxed.
+ */
+public class LongCounts implements Seqable {
+
+  private static final int STRIPE_BITS = 7;
+
+  private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+  public LongCounts () {
+    for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe();
+  }
+
+  private static int hash (long k) {
+    k *= 0x9e3779b97f4a7c15L;
+    return (int) (k ^ (k >>> 32));
+  }
+
+  private Stripe stripe (int h) {
+    return stripes[h >>> (32 - STRIPE_BITS)];
+  }
+
+  /**
+   * Adds n to k's count and returns the new count.
+   */
+  public long add (long k, long n) {
+    int h = hash(k);
+    return stripe(h).add(k, h, n);
+  }
+
+  /**
+   * k's count, or 0 if it hasn't been counted.
+   */
+  public long get (long k) {
+    int h = hash(k);
+    return stripe(h).get(k, h);
+  }
+
+  /**
+   * The number of different keys counted.
+   */
+  public int size () {
+    int size = 0;
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        size += s.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * A snapshot of the counts as a seq of [key count] entries, in no
+   * particular order.
+   */
+  public ISeq seq () {
+    ArrayList<MapEntry> entries = new ArrayList<MapEntry>();
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        for (int i = 0; i < s.keys.length; i++) {
+          if (s.used[i]) entries.add(new MapEntry(s.keys[i], s.counts[i]));
+        }
+      }
+    }
+    return IteratorSeq.create(entries.iterator());
+  }
+
+  private static final class Stripe {
+    long[]    keys   = new long[16];
+    long[]    counts = new long[16];
+    boolean[] used   = new boolean[16];
+    int       size   = 0;
+
+    // the slot holding k, or the empty slot where it should go
+    private int find (long k, int h) {
+      int mask = keys.length - 1;
+      int i = h & mask;
+      while (used[i] && keys[i] != k) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    synchronized long get (long k, int h) {
+      return counts[find(k, h)];
+    }
+
+    synchronized long add (long k, int h, long n) {
+      int i = find(k, h);
+      if (!used[i]) {
+        keys[i] = k;
+        used[i] = true;
+        if (++size * 2 > keys.length) {
+          grow();
+          i = find(k, h);
+        }
+      }
+      return counts[i] += n;
+    }
+
+    private void grow () {
+      long[] ks = keys;
+      long[] cs = counts;
+      boolean[] us = used;
+      keys = new long[ks.length * 2];
+      counts = new long[ks.length * 2];
+      used = new boolean[ks.length * 2];
+      for (int j = 0; j < ks.length; j++) {
+        if (us[j]) {
+          int i = find(ks[j], hash(ks[j]));
+          keys[i] = ks[j];
+          counts[i] = cs[j];
+          used[i] = true;
+        }
+      }
+    }
+  }
+}
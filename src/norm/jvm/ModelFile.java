@@ -0,0 +1,289 @@
+package norm.jvm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Versioned binary model files.
+ *
+ * A model file is a header (magic number, format version, and what kind of
+ * model it is) followed by a sequence of sections. A section is either a
+ * single long or a flat array of primitives, padded out to 8 bytes. Models
+ * read their sections back in the order they wrote them.
+ *
+ * Files are written to a temporary file next to the real one, which only
+ * replaces it once everything has been written, so a model that didn't
+ * finish writing is never there to be read.
+ *
+ * Files are read by mapping them into memory, and array sections come back
+ * as buffers over the mapping, so loading a model doesn't involve any
+ * parsing or copying and several JVMs can share the same pages.
+ *
+ * Everything is little-endian.
+ */
+public class ModelFile {
+
+  public static final int MAGIC   = 0x4e4f524d; // NORM
+  public static final int VERSION = 1;
+
+  // the kinds of model
+  public static final int TRIE      = 1;
+  public static final int LKSM_IDS  = 2;
+  public static final int TUPLE_IDS = 3;
+  public static final int PHONETIC  = 4;
+  public static final int CS_TABLE  = 5;
+  public static final int DPB       = 6;
+
+  private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  /**
+   * Returns true if f exists and is a model file of the given kind that this
+   * version of the code can read.
+   */
+  public static boolean isReadable (File f, int kind) {
+    if (!f.isFile() || f.length() < 16) return false;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(f, "r");
+      try {
+        ByteBuffer header = ByteBuffer.allocate(16).order(ORDER);
+        raf.getChannel().read(header, 0);
+        return header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == kind;
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Writes sections to a model file. Nothing appears at the path until
+   * close is called, so do it like this:
+   *
+   *   try {
+   *     ... write sections ...
+   *     w.close();
+   *   } finally {
+   *     w.abort();
+   *   }
+   */
+  public static class Writer {
+    private final File target;
+    private final File tmp;
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ORDER);
+    private boolean done = false;
+
+    public Writer (File f, int kind) throws IOException {
+      target = f;
+      tmp = new File(f.getPath() + ".tmp");
+      out = new FileOutputStream(tmp);
+      channel = out.getChannel();
+      buf.putInt(MAGIC).putInt(VERSION).putInt(kind).putInt(0);
+    }
+
+    public Writer (String path, int kind) throws IOException {
+      this(new File(path), kind);
+    }
+
+    private void flush () throws IOException {
+      buf.flip();
+      while (buf.hasRemaining()) channel.write(buf);
+      buf.clear();
+    }
+
+    private void ensure (int n) throws IOException {
+      if (buf.remaining() < n) flush();
+    }
+
+    private void pad (long bytes) throws IOException {
+      for (long i = bytes; i % 8 != 0; i++) {
+        ensure(1);
+        buf.put((byte) 0);
+      }
+    }
+
+    public Writer putLong (long l) throws IOException {
+      ensure(8);
+      buf.putLong(l);
+      return this;
+    }
+
+    public Writer putChars (CharBuffer cs) throws IOException {
+      putLong(cs.remaining());
+      for (int i = cs.position(); i < cs.limit(); i++) {
+        ensure(2);
+        buf.putChar(cs.get(i));
+      }
+      pad(2L * cs.remaining());
+      return this;
+    }
+
+    public Writer putInts (IntBuffer is) throws IOException {
+      putLong(is.remaining());
+      for (int i = is.position(); i < is.limit(); i++) {
+        ensure(4);
+        buf.putInt(is.get(i));
+      }
+      pad(4L * is.remaining());
+      return this;
+    }
+
+    public Writer putLongs (LongBuffer ls) throws IOException {
+      putLong(ls.remaining());
+      for (int i = ls.position(); i < ls.limit(); i++) {
+        ensure(8);
+        buf.putLong(ls.get(i));
+      }
+      return this;
+    }
+
+    public Writer putFloats (FloatBuffer fs) throws IOException {
+      putLong(fs.remaining());
+      for (int i = fs.position(); i < fs.limit(); i++) {
+        ensure(4);
+        buf.putFloat(fs.get(i));
+      }
+      pad(4L * fs.remaining());
+      return this;
+    }
+
+    public Writer putBytes (ByteBuffer bs) throws IOException {
+      putLong(bs.remaining());
+      for (int i = bs.position(); i < bs.limit(); i++) {
+        ensure(1);
+        buf.put(bs.get(i));
+      }
+      pad(bs.remaining());
+      return this;
+    }
+
+    public Writer putInts (int[] is) throws IOException {
+      return putInts(IntBuffer.wrap(is));
+    }
+
+    public Writer putLongs (long[] ls) throws IOException {
+      return putLongs(LongBuffer.wrap(ls));
+    }
+
+    public Writer putFloats (float[] fs) throws IOException {
+      return putFloats(FloatBuffer.wrap(fs));
+    }
+
+    public Writer putBytes (byte[] bs) throws IOException {
+      return putBytes(ByteBuffer.wrap(bs));
+    }
+
+    /**
+     * Finishes writing, and puts the file in place at the path.
+     */
+    public void close () throws IOException {
+      if (done) return;
+      flush();
+      out.close();
+      if (!tmp.renameTo(target)) {
+        // some platforms won't rename over an existing file
+        target.delete();
+        if (!tmp.renameTo(target)) {
+          throw new IOException("Couldn't move " + tmp + " to " + target);
+        }
+      }
+      done = true;
+    }
+
+    /**
+     * Throws away whatever has been written, unless it's already been
+     * closed.
+     */
+    public void abort () {
+      if (done) return;
+      done = true;
+      try {
+        out.close();
+      } catch (IOException e) {
+        // it's going anyway
+      }
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Maps a model file into memory and reads its sections back.
+   */
+  public static class Reader {
+    private final ByteBuffer mapped;
+    private int position = 16;
+
+    public Reader (File f, int kind) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(f, "r");
+      try {
+        if (raf.length() > Integer.MAX_VALUE) {
+          throw new IOException("Model file too big to map: " + f);
+        }
+        mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()).order(ORDER);
+      } finally {
+        // the mapping stays valid after the file is closed
+        raf.close();
+      }
+      if (mapped.limit() < 16 || mapped.getInt(0) != MAGIC) {
+        throw new IOException("Not a model file: " + f);
+      } else if (mapped.getInt(4) != VERSION) {
+        throw new IOException("Model file " + f + " has version " + mapped.getInt(4)
+                              + ", expected " + VERSION + ". Recompile it.");
+      } else if (mapped.getInt(8) != kind) {
+        throw new IOException("Model file " + f + " is the wrong kind of model");
+      }
+    }
+
+    public Reader (String path, int kind) throws IOException {
+      this(new File(path), kind);
+    }
+
+    public long getLong () {
+      long l = mapped.getLong(position);
+      position += 8;
+      return l;
+    }
+
+    // returns the next section's bytes and skips over them
+    private ByteBuffer section (int width) {
+      long n = getLong();
+      int bytes = (int) (n * width);
+      ByteBuffer b = mapped.duplicate();
+      b.position(position);
+      b.limit(position + bytes);
+      position += (bytes + 7) & ~7;
+      return b.slice().order(ORDER);
+    }
+
+    public CharBuffer getChars () {
+      return section(2).asCharBuffer();
+    }
+
+    public IntBuffer getInts () {
+      return section(4).asIntBuffer();
+    }
+
+    public LongBuffer getLongs () {
+      return section(8).asLongBuffer();
+    }
+
+    public FloatBuffer getFloats () {
+      return section(4).asFloatBuffer();
+    }
+
+    public ByteBuffer getBytes () {
+      return section(1);
+    }
+  }
+}
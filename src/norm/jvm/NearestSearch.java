@@ -0,0 +1,360 @@
+package norm.jvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state for a bounded-cost levenshtein search over a trie. The trie
+ * does the walking and this does the bookkeeping: one levenshtein row per
+ * depth (reused between searches), the characters on the current path, and
+ * the hits found so far. Hits are copied into a shared char pool, and only
+ * become Strings when the results are asked for (or not at all, if it's
+ * their nodes that are wanted).
+ *
+ * When looking for the n nearest words, the hits are kept in a bounded heap
+ * and the distance bound shrinks to the worst hit once the heap is full, so
+ * branches which can't beat what we already have never get visited.
+ *
+ * A search can also be split into shards (bits of the trie) and run on
+ * several threads. Each thread has its own search object, but they share
+ * the bound, so a good hit found by one prunes all the others. The hits are
+ * then merged. Since hits are ranked by distance, then frequency, and then
+ * alphabetically, and the walk is alphabetical, this gives exactly what the
+ * walk would have found on one thread.
+ */
+final class NearestSearch {
+
+  private static final ThreadLocal<NearestSearch> local = new ThreadLocal<NearestSearch>() {
+    @Override
+    protected NearestSearch initialValue() {
+      return new NearestSearch();
+    }
+  };
+
+  /**
+   * Returns this thread's search object, reset for a new query.
+   */
+  static NearestSearch get (String s, int n, int d) {
+    return get(s, n, d, null);
+  }
+
+  // as above, but sharing its bound with other searches for the same query
+  private static NearestSearch get (String s, int n, int d, AtomicInteger shared) {
+    NearestSearch ns = local.get();
+    ns.reset(s, n, d);
+    ns.shared = shared;
+    return ns;
+  }
+
+  /**
+   * A part of a trie to be searched.
+   */
+  interface Shard {
+    /**
+     * Searches this part of the trie with ns, which has been reset for the
+     * query (so the path is empty).
+     */
+    void search (NearestSearch ns);
+  }
+
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Searches all of the shards, in parallel on executor, and returns this
+   * thread's search object holding all their hits. Shards have to be in
+   * the order they'd be walked in.
+   */
+  static NearestSearch search (final String s, final int n, final int d,
+                               final List<? extends Shard> shards, ExecutorService executor) {
+    final AtomicInteger shared = new AtomicInteger(d);
+    final AtomicInteger next = new AtomicInteger(0);
+    List<Future<NearestSearch>> futures = new ArrayList<Future<NearestSearch>>();
+    for (int t = 0; t < Math.min(THREADS, shards.size()); t++) {
+      futures.add(executor.submit(new Callable<NearestSearch>() {
+        public NearestSearch call () {
+          NearestSearch ns = get(s, n, d, shared);
+          for (int i; (i = next.getAndIncrement()) < shards.size(); ) {
+            shards.get(i).search(ns);
+          }
+          ns.shared = null;
+          // this thread's search object could be reused as soon as we return
+          return ns.copy();
+        }
+      }));
+    }
+    try {
+      List<NearestSearch> hits = new ArrayList<NearestSearch>();
+      for (Future<NearestSearch> f : futures) hits.add(f.get());
+      NearestSearch ns = get(s, n, d);
+      for (NearestSearch h : hits) ns.addAll(h);
+      return ns;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private String s;
+  private int    m;
+  private int    n;
+  private int    bound;
+  private AtomicInteger shared; // or null
+
+  private int[][] rows  = new int[16][];
+  private char[]  path  = new char[32];
+
+  // the hits, as parallel arrays. When n > 0 these form a heap with the
+  // worst hit at the top. Each hit's word is pool[starts[i]..+lens[i]).
+  private int    size   = 0;
+  private int[]  starts = new int[16];
+  private int[]  lens   = new int[16];
+  private int[]  nodes  = new int[16];
+  private int[]  dists  = new int[16];
+  private long[] freqs  = new long[16];
+  private char[] pool   = new char[256];
+  private int    used   = 0;
+
+  private NearestSearch () {}
+
+  private void reset (String s, int n, int d) {
+    this.s = s;
+    this.m = s.length();
+    this.n = n;
+    this.bound = d;
+    this.size = 0;
+    this.used = 0;
+    ensureDepth(0);
+    int[] row = rows[0];
+    for (int j = 0; j <= m; j++) row[j] = j;
+  }
+
+  private void ensureDepth (int depth) {
+    if (depth >= rows.length) {
+      int[][] rs = new int[Math.max(depth + 1, rows.length * 2)][];
+      System.arraycopy(rows, 0, rs, 0, rows.length);
+      rows = rs;
+    }
+    if (rows[depth] == null || rows[depth].length < m + 1) {
+      rows[depth] = new int[Math.max(m + 1, 16)];
+    }
+    if (depth > path.length) {
+      char[] p = new char[Math.max(depth, path.length * 2)];
+      System.arraycopy(path, 0, p, 0, path.length);
+      path = p;
+    }
+  }
+
+  /**
+   * The current distance bound. Nodes whose rows have no entry at or below
+   * this can't lead to a hit.
+   */
+  int bound () {
+    return shared == null ? bound : Math.min(bound, shared.get());
+  }
+
+  private void tighten (int b) {
+    bound = b;
+    if (shared != null) {
+      for (int cur; b < (cur = shared.get()); ) {
+        if (shared.compareAndSet(cur, b)) break;
+      }
+    }
+  }
+
+  /**
+   * Extends the current path to the given depth with the character c, and
+   * computes the levenshtein row for it. Returns the smallest entry in the
+   * row.
+   */
+  int push (int depth, char c) {
+    ensureDepth(depth);
+    path[depth - 1] = c;
+    final int[] prev = rows[depth - 1];
+    final int[] row = rows[depth];
+    int min = row[0] = prev[0] + 1;
+    for (int j = 1; j <= m; j++) {
+      int v = prev[j - 1] + (s.charAt(j - 1) == c ? 0 : 1);
+      if (prev[j] + 1 < v) v = prev[j] + 1;
+      if (row[j - 1] + 1 < v) v = row[j - 1] + 1;
+      row[j] = v;
+      if (v < min) min = v;
+    }
+    return min;
+  }
+
+  /**
+   * Offers the word spelled by the current path up to depth, which ends at
+   * the given node (or -1 if the trie doesn't number its nodes), as a hit.
+   */
+  void offer (int depth, long freq, int node) {
+    add(path, 0, depth, rows[depth][m], freq, node);
+  }
+
+  private void add (char[] cs, int start, int len, int dist, long freq, int node) {
+    if (dist > bound()) return;
+    if (n <= 0) {
+      if (size == dists.length) grow();
+      set(size++, cs, start, len, dist, freq, node);
+    } else if (size < n) {
+      if (size == dists.length) grow();
+      set(size, cs, start, len, dist, freq, node);
+      siftUp(size++);
+      if (size == n) tighten(dists[0]);
+    } else if (worse(0, cs, start, len, dist, freq)) {
+      // the old word is left in the pool, which is fine, as it's reset
+      // for every search
+      set(0, cs, start, len, dist, freq, node);
+      siftDown(0);
+      tighten(dists[0]);
+    }
+  }
+
+  private void set (int i, char[] cs, int start, int len, int dist, long freq, int node) {
+    if (used + len > pool.length) pool = Arrays.copyOf(pool, Math.max(used + len, pool.length * 2));
+    System.arraycopy(cs, start, pool, used, len);
+    starts[i] = used;
+    lens[i] = len;
+    used += len;
+    nodes[i] = node;
+    dists[i] = dist;
+    freqs[i] = freq;
+  }
+
+  // a copy of just the hits, which doesn't belong to any thread
+  private NearestSearch copy () {
+    NearestSearch c = new NearestSearch();
+    c.size   = size;
+    c.starts = Arrays.copyOf(starts, size);
+    c.lens   = Arrays.copyOf(lens, size);
+    c.nodes  = Arrays.copyOf(nodes, size);
+    c.dists  = Arrays.copyOf(dists, size);
+    c.freqs  = Arrays.copyOf(freqs, size);
+    c.pool   = Arrays.copyOf(pool, used);
+    c.used   = used;
+    size = 0;
+    return c;
+  }
+
+  // offers all of o's hits
+  private void addAll (NearestSearch o) {
+    for (int i = 0; i < o.size; i++) {
+      add(o.pool, o.starts[i], o.lens[i], o.dists[i], o.freqs[i], o.nodes[i]);
+    }
+  }
+
+  // the hits, best first
+  private int[] order () {
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) order[i] = i;
+    mergeSort(order, new int[size], 0, size);
+    return order;
+  }
+
+  /**
+   * Returns the hits in ascending order of distance, more frequent words
+   * first where distances are equal.
+   */
+  List<String> results () {
+    int[] order = order();
+    ArrayList<String> results = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++) results.add(new String(pool, starts[order[i]], lens[order[i]]));
+    size = 0;
+    return results;
+  }
+
+  /**
+   * Like results, but returns the nodes the hits end at.
+   */
+  int[] nodeResults () {
+    int[] order = order();
+    for (int i = 0; i < size; i++) order[i] = nodes[order[i]];
+    size = 0;
+    return order;
+  }
+
+  // true if hit i ranks behind the given one. On one thread, words come
+  // in alphabetical order, so a tie always goes to hit i, but not when the
+  // hits come from several.
+  private boolean worse (int i, char[] cs, int start, int len, int dist, long freq) {
+    if (dists[i] != dist) return dists[i] > dist;
+    if (freqs[i] != freq) return freqs[i] < freq;
+    return compare(pool, starts[i], lens[i], cs, start, len) > 0;
+  }
+
+  private boolean before (int i, int j) {
+    if (dists[i] != dists[j]) return dists[i] < dists[j];
+    if (freqs[i] != freqs[j]) return freqs[i] > freqs[j];
+    return compare(pool, starts[i], lens[i], pool, starts[j], lens[j]) < 0;
+  }
+
+  // same as String.compareTo
+  private static int compare (char[] a, int as, int al, char[] b, int bs, int bl) {
+    final int len = Math.min(al, bl);
+    for (int k = 0; k < len; k++) {
+      if (a[as + k] != b[bs + k]) return a[as + k] - b[bs + k];
+    }
+    return al - bl;
+  }
+
+  private void mergeSort (int[] a, int[] tmp, int from, int to) {
+    if (to - from < 2) return;
+    int mid = (from + to) >>> 1;
+    mergeSort(a, tmp, from, mid);
+    mergeSort(a, tmp, mid, to);
+    int i = from, j = mid, k = from;
+    while (i < mid && j < to) tmp[k++] = before(a[j], a[i]) ? a[j++] : a[i++];
+    while (i < mid) tmp[k++] = a[i++];
+    while (j < to) tmp[k++] = a[j++];
+    System.arraycopy(tmp, from, a, from, to - from);
+  }
+
+  private void siftUp (int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!before(parent, i)) break;
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown (int i) {
+    while (true) {
+      int l = 2 * i + 1;
+      int r = l + 1;
+      int worst = i;
+      if (l < size && before(worst, l)) worst = l;
+      if (r < size && before(worst, r)) worst = r;
+      if (worst == i) return;
+      swap(i, worst);
+      i = worst;
+    }
+  }
+
+  private void swap (int i, int j) {
+    int t = starts[i]; starts[i] = starts[j]; starts[j] = t;
+    t = lens[i]; lens[i] = lens[j]; lens[j] = t;
+    t = nodes[i]; nodes[i] = nodes[j]; nodes[j] = t;
+    int d = dists[i]; dists[i] = dists[j]; dists[j] = d;
+    long f = freqs[i]; freqs[i] = freqs[j]; freqs[j] = f;
+  }
+
+  private void grow () {
+    int cap = dists.length * 2;
+    starts = Arrays.copyOf(starts, cap);
+    lens   = Arrays.copyOf(lens, cap);
+    nodes  = Arrays.copyOf(nodes, cap);
+    dists  = Arrays.copyOf(dists, cap);
+    freqs  = Arrays.copyOf(freqs, cap);
+  }
+}
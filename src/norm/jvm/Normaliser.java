@@ -1,18 +1,41 @@
 package norm.jvm;
 import clojure.lang.IFn;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 /*
  * This is a wrapper class for the clojure normalising fns.
  */
 public class Normaliser {
   private IFn normalise_token_list;
+  private boolean context_free;
+
+  // how many pieces to split a batch into when it's run on an Executor
+  private static final int PIECES = 4 * Runtime.getRuntime().availableProcessors();
 
   /**
    * This constructs a Normaliser with the given normalising fn.
    */
   public Normaliser (IFn normalise_token_list) {
+    this(normalise_token_list, false);
+  }
+
+  /**
+   * This constructs a Normaliser with the given normalising fn. If
+   * context_free is true, the fn must normalise each token the same way
+   * no matter what tokens are around it (like the simple normaliser does),
+   * which lets normaliseBatch normalise each distinct token just once.
+   */
+  public Normaliser (IFn normalise_token_list, boolean context_free) {
     this.normalise_token_list = normalise_token_list;
+    this.context_free = context_free;
   }
 
   /**
@@ -22,4 +45,108 @@ public class Normaliser {
     return (List<String>) normalise_token_list.invoke(tkns);
   }
 
+  /**
+   * This lowercases and tokenises the given tweet, the same way the batch
+   * command does, and returns a normalised version of its tokens. The
+   * tokens stay as spans over the tweet's chars until they're asked for
+   * (see Tokens), so normalising doesn't make strings for tokens that don't
+   * change.
+   */
+  public List<String> normalise(String tweet) {
+    return normalise(TweetTokenizer.scan(TweetTokenizer.removeRepetition(tweet.toLowerCase())));
+  }
+
+  /**
+   * This returns normalised versions of lots of token lists at once. For a
+   * context free normaliser, the distinct tokens in the whole batch are
+   * normalised in one go, so common tokens only get looked up once.
+   */
+  public String[][] normaliseBatch(String[][] tweets) {
+    return normaliseBatch(tweets, null);
+  }
+
+  /**
+   * Like normaliseBatch(tweets), but splits the work up and runs it on the
+   * given executor. Blocks until it's all done.
+   */
+  public String[][] normaliseBatch(final String[][] tweets, Executor executor) {
+    final String[][] result = new String[tweets.length][];
+    if (context_free) {
+      // give every distinct token an id, and remember each token's id
+      Map<String, Integer> ids = new HashMap<String, Integer>();
+      final List<String> distinct = new ArrayList<String>();
+      final int[][] tweetIds = new int[tweets.length][];
+      for (int t = 0; t < tweets.length; t++) {
+        tweetIds[t] = new int[tweets[t].length];
+        for (int i = 0; i < tweets[t].length; i++) {
+          Integer id = ids.get(tweets[t][i]);
+          if (id == null) {
+            id = distinct.size();
+            ids.put(tweets[t][i], id);
+            distinct.add(tweets[t][i]);
+          }
+          tweetIds[t][i] = id;
+        }
+      }
+
+      final String[] normalised = new String[distinct.size()];
+      run(distinct.size(), executor, new Piece() {
+        public void run (int from, int to) {
+          List<String> ns = normalise(distinct.subList(from, to));
+          for (int i = from; i < to; i++) normalised[i] = ns.get(i - from);
+        }
+      });
+
+      for (int t = 0; t < tweets.length; t++) {
+        result[t] = new String[tweetIds[t].length];
+        for (int i = 0; i < result[t].length; i++) result[t][i] = normalised[tweetIds[t][i]];
+      }
+    } else {
+      run(tweets.length, executor, new Piece() {
+        public void run (int from, int to) {
+          for (int t = from; t < to; t++) {
+            result[t] = normalise(Arrays.asList(tweets[t])).toArray(new String[0]);
+          }
+        }
+      });
+    }
+    return result;
+  }
+
+  private interface Piece {
+    void run (int from, int to);
+  }
+
+  // runs piece over [0, n), in pieces on executor if there is one
+  private static void run(int n, Executor executor, final Piece piece) {
+    if (executor == null || n < 2) {
+      piece.run(0, n);
+      return;
+    }
+    int size = (n + PIECES - 1) / PIECES;
+    List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>();
+    for (int from = 0; from < n; from += size) {
+      final int f = from;
+      final int t = Math.min(n, from + size);
+      FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+        public Object call () {
+          piece.run(f, t);
+          return null;
+        }
+      });
+      tasks.add(task);
+      executor.execute(task);
+    }
+    try {
+      for (FutureTask<Object> task : tasks) task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
 }
@@ -0,0 +1,212 @@
+package norm.jvm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * Reads gzipped data, inflating it on several threads when it can.
+ *
+ * If the input is BGZF (see Bgzf, and ParallelGzipOutputStream), members
+ * are read a batch at a time and inflated on the shared gzip pool, a few
+ * batches ahead of whoever's reading, and handed out in order. As soon as
+ * a member turns up which isn't BGZF (e.g. anything written by plain gzip or
+ * pigz, whose members can't be found without inflating them) the rest is
+ * read with a GZIPInputStream instead, which still happens on the pool, one
+ * batch ahead, so at least inflating and whatever's reading are on
+ * different threads.
+ *
+ * getByteCount is how much of the compressed input has been got through, so
+ * progress can be measured against the size of the file.
+ */
+public class ParallelGzipInputStream extends InputStream implements ByteCounter {
+
+  // compressed bytes of BGZF members per batch, or uncompressed bytes per
+  // batch when it isn't BGZF
+  private static final int BATCH_SIZE = 1 << 20;
+
+  private static final class Batch {
+    final byte[] bytes;
+    final long count;
+    Batch (byte[] bytes, long count) {
+      this.bytes = bytes;
+      this.count = count;
+    }
+  }
+
+  private static final byte[] NOT_BGZF = new byte[0];
+
+  private final CountingInputStream counting;
+  private final PushbackInputStream in;
+  private final int ahead;
+  private final LinkedList<Future<Batch>> pending = new LinkedList<Future<Batch>>();
+
+  private GZIPInputStream rest = null;   // once a member that isn't BGZF turns up
+  private boolean eof = false;
+  private byte[] current = new byte[0];
+  private int pos = 0;
+  private volatile long consumed = 0;
+
+  /**
+   * Reads gzipped data from in, which should be buffered.
+   */
+  public ParallelGzipInputStream (InputStream in) {
+    this.counting = new CountingInputStream(in);
+    this.in = new PushbackInputStream(counting, Bgzf.HEADER_SIZE);
+    this.ahead = 2 * Runtime.getRuntime().availableProcessors();
+  }
+
+  private static int readFully (InputStream in, byte[] b, int off, int len) throws IOException {
+    int n = 0;
+    while (n < len) {
+      int r = in.read(b, off + n, len - n);
+      if (r < 0) break;
+      n += r;
+    }
+    return n;
+  }
+
+  /**
+   * The next BGZF member, or null at the end of the input, or NOT_BGZF if
+   * the next member isn't BGZF (in which case nothing has been read).
+   */
+  private byte[] readMember () throws IOException {
+    byte[] h = new byte[Bgzf.HEADER_SIZE];
+    int n = readFully(in, h, 0, h.length);
+    if (n == 0) return null;
+    if (n < h.length || !Bgzf.isHeader(h)) {
+      in.unread(h, 0, n);
+      return NOT_BGZF;
+    }
+    byte[] m = new byte[Bgzf.memberSize(h)];
+    System.arraycopy(h, 0, m, 0, h.length);
+    if (readFully(in, m, h.length, m.length - h.length) < m.length - h.length) {
+      throw new EOFException("Unexpected end of gzip input");
+    }
+    return m;
+  }
+
+  /**
+   * Reads the next batch and sets it inflating. Returns false if there's
+   * nothing left to read.
+   */
+  private boolean readBatch () throws IOException {
+    if (eof) return false;
+    if (rest == null) {
+      final List<byte[]> members = new ArrayList<byte[]>();
+      int size = 0;
+      while (size < BATCH_SIZE) {
+        byte[] m = readMember();
+        if (m == null) {
+          eof = true;
+          break;
+        } else if (m == NOT_BGZF) {
+          rest = new GZIPInputStream(in, 1 << 16);
+          break;
+        }
+        members.add(m);
+        size += m.length;
+      }
+      if (!members.isEmpty()) {
+        final long count = counting.getByteCount();
+        pending.add(Bgzf.POOL.submit(new Callable<Batch>() {
+          public Batch call () throws IOException {
+            return new Batch(Bgzf.inflate(members), count);
+          }
+        }));
+        return true;
+      }
+      if (eof) return false;
+    }
+    final GZIPInputStream gz = rest;
+    pending.add(Bgzf.POOL.submit(new Callable<Batch>() {
+      public Batch call () throws IOException {
+        byte[] b = new byte[BATCH_SIZE];
+        int n = readFully(gz, b, 0, b.length);
+        return new Batch(n == 0 ? null : n < b.length ? Arrays.copyOf(b, n) : b, counting.getByteCount());
+      }
+    }));
+    return true;
+  }
+
+  /**
+   * Moves on to the next batch with something in it. Returns false at the
+   * end.
+   */
+  private boolean next () throws IOException {
+    while (true) {
+      // a GZIPInputStream can only be read from one batch at a time
+      while (pending.size() < (rest == null ? ahead : 1) && readBatch()) {}
+      if (pending.isEmpty()) return false;
+      Batch b;
+      try {
+        b = pending.removeFirst().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) throw (IOException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        throw new IOException(cause);
+      }
+      consumed = b.count;
+      if (b.bytes == null) {
+        eof = true;
+      } else if (b.bytes.length > 0) {
+        current = b.bytes;
+        pos = 0;
+        return true;
+      }
+    }
+  }
+
+  public int read () throws IOException {
+    if (pos == current.length && !next()) return -1;
+    return current[pos++] & 0xff;
+  }
+
+  public int read (byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (pos == current.length && !next()) return -1;
+    int n = Math.min(len, current.length - pos);
+    System.arraycopy(current, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  public int available () {
+    return current.length - pos;
+  }
+
+  /**
+   * The number of compressed bytes whose data has been read.
+   */
+  public long getByteCount () {
+    return consumed;
+  }
+
+  public void close () throws IOException {
+    eof = true;
+    for (Future<Batch> f : pending) f.cancel(false);
+    pending.clear();
+    current = new byte[0];
+    pos = 0;
+    if (rest != null) {
+      rest.close();
+    } else {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package norm.jvm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF (see Bgzf), deflating on the shared gzip pool. Data is
+ * buffered up into batches of members, and each batch is deflated on
+ * whichever thread is free and written out in order, with only a few
+ * batches allowed to be in flight at once.
+ *
+ * The result can be read by anything that reads gzip, and in parallel by
+ * ParallelGzipInputStream or bgzip.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+  // uncompressed bytes per batch
+  private static final int BATCH_SIZE = 16 * Bgzf.BLOCK_SIZE;
+
+  private final OutputStream out;
+  private final int level;
+  private final int ahead;
+  private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+  private byte[] buf = new byte[BATCH_SIZE];
+  private int n = 0;
+  private boolean closed = false;
+
+  public ParallelGzipOutputStream (OutputStream out) {
+    this(out, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Writes to out, compressing at the given Deflater level.
+   */
+  public ParallelGzipOutputStream (OutputStream out, int level) {
+    this.out = out;
+    this.level = level;
+    this.ahead = 2 * Runtime.getRuntime().availableProcessors();
+  }
+
+  private void writeOne () throws IOException {
+    try {
+      out.write(pending.removeFirst().get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  // sets whatever's in buf deflating
+  private void submit () throws IOException {
+    if (n == 0) return;
+    final byte[] data = buf;
+    final int len = n;
+    pending.add(Bgzf.POOL.submit(new Callable<byte[]>() {
+      public byte[] call () {
+        return Bgzf.deflate(data, len, level);
+      }
+    }));
+    buf = new byte[BATCH_SIZE];
+    n = 0;
+    while (pending.size() > ahead) writeOne();
+  }
+
+  public void write (int b) throws IOException {
+    if (n == buf.length) submit();
+    buf[n++] = (byte) b;
+  }
+
+  public void write (byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (n == buf.length) submit();
+      int m = Math.min(len, buf.length - n);
+      System.arraycopy(b, off, buf, n, m);
+      n += m;
+      off += m;
+      len -= m;
+    }
+  }
+
+  /**
+   * Deflates and writes everything written so far. This ends a member, so
+   * lots of little flushes make for a bigger file.
+   */
+  public void flush () throws IOException {
+    submit();
+    while (!pending.isEmpty()) writeOne();
+    out.flush();
+  }
+
+  public void close () throws IOException {
+    if (closed) return;
+    closed = true;
+    try {
+      flush();
+      out.write(Bgzf.EOF);
+    } finally {
+      out.close();
+    }
+  }
+}
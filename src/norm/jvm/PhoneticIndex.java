@@ -0,0 +1,198 @@
+package norm.jvm;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+import clojure.lang.PersistentVector;
+import org.apache.commons.codec.language.DoubleMetaphone;
+
+/**
+ * Finds the words in a dictionary which sound like a given word, i.e.
+ * whose double metaphone codes are within some levenshtein distance of its
+ * code.
+ *
+ * The codes are kept in a FrozenTrie of their own, and each one is numbered
+ * by its FrozenTrie.wordId. The words for code k are the dictionary word ids
+ * words[offsets[k]..offsets[k+1]), so looking up a word is a fuzzy search
+ * over the codes' nodes and then a walk along two int arrays. Ids are turned
+ * back into words with the dict's wordsById, since spelling them out from
+ * the trie every time costs far more than the search (a word's confusion
+ * set can easily have a couple of thousand words that sound like it).
+ *
+ * Since the word ids only make sense for the dictionary the index was built
+ * against, a saved index remembers enough about that dictionary to notice
+ * if it's asked to load against a different one.
+ */
+public class PhoneticIndex {
+
+  private final FrozenTrie dict;
+  private final FrozenTrie codes;
+  private final IntBuffer  offsets;
+  private final IntBuffer  words;
+  private final String[]   names;      // dict's words by id
+
+  private static final DoubleMetaphone dm = new DoubleMetaphone();
+
+  // token -> its code. Tokens come round again a lot.
+  private final BoundedCache memo = new BoundedCache(1 << 14);
+
+  private PhoneticIndex (FrozenTrie dict, FrozenTrie codes, IntBuffer offsets, IntBuffer words) {
+    this.dict = dict;
+    this.codes = codes;
+    this.offsets = offsets;
+    this.words = words;
+    this.names = dict.wordsById();
+  }
+
+  /**
+   * Builds an index over dict, in which the words ws[i] have the code cs[i].
+   * cs must be sorted. Words which aren't in dict are left out.
+   */
+  public PhoneticIndex (FrozenTrie dict, String[] cs, String[][] ws) {
+    Trie.Builder b = new Trie.Builder();
+    for (String c : cs) b.add(c, 1, null);
+    this.dict = dict;
+    this.codes = new FrozenTrie(b.build());
+
+    int n = codes.count();
+    int[][] ids = new int[n][];
+    int total = 0;
+    for (int i = 0; i < cs.length; i++) {
+      int[] is = new int[ws[i].length];
+      int m = 0;
+      for (String w : ws[i]) {
+        int id = dict.wordId(w);
+        if (id >= 0) is[m++] = id;
+      }
+      // codes can come up more than once
+      int k = codes.wordId(cs[i]);
+      int[] prev = ids[k] == null ? new int[0] : ids[k];
+      ids[k] = Arrays.copyOf(prev, prev.length + m);
+      System.arraycopy(is, 0, ids[k], prev.length, m);
+      total += m;
+    }
+
+    int[] offsets = new int[n + 1];
+    int[] words = new int[total];
+    for (int k = 0; k < n; k++) {
+      int[] is = ids[k] == null ? new int[0] : ids[k];
+      System.arraycopy(is, 0, words, offsets[k], is.length);
+      offsets[k + 1] = offsets[k] + is.length;
+    }
+    this.offsets = IntBuffer.wrap(offsets);
+    this.words = IntBuffer.wrap(words);
+    this.names = dict.wordsById();
+  }
+
+  /**
+   * The double metaphone code of s, with repetition removed first (see
+   * TweetTokenizer.removeRepetition), or null if it hasn't got one.
+   */
+  public static String code (String s) {
+    return dm.doubleMetaphone(TweetTokenizer.removeRepetition(s));
+  }
+
+  private String memoCode (String s) {
+    Object c = memo.get(s, memo);
+    if (c == memo) {
+      c = code(s);
+      memo.put(s, c);
+    }
+    return (String) c;
+  }
+
+  /**
+   * The number of distinct codes.
+   */
+  public int numCodes () {
+    return codes.count();
+  }
+
+  /**
+   * The ids (see FrozenTrie.wordId) of the words in the dictionary whose
+   * codes are within d of s's. Words with nearer codes come first.
+   */
+  public int[] wordIds (String s, int d) {
+    String c = memoCode(s);
+    if (c == null) return new int[0];
+    int[] nodes = codes.findNearestNodes(c, 0, d);
+    int n = 0;
+    for (int node : nodes) {
+      int k = codes.wordId(node);
+      n += offsets.get(k + 1) - offsets.get(k);
+    }
+    int[] ids = new int[n];
+    n = 0;
+    for (int node : nodes) {
+      int k = codes.wordId(node);
+      for (int i = offsets.get(k); i < offsets.get(k + 1); i++) ids[n++] = words.get(i);
+    }
+    return ids;
+  }
+
+  /**
+   * Like wordIds, but returns the words themselves. They come as a vector,
+   * which is much cheaper for clojure code to walk than any other List.
+   */
+  public List<String> words (String s, int d) {
+    int[] ids = wordIds(s, d);
+    Object[] result = new Object[ids.length];
+    for (int i = 0; i < ids.length; i++) result[i] = names[ids[i]];
+    @SuppressWarnings("unchecked")
+    List<String> v = PersistentVector.create(result);
+    return v;
+  }
+
+  public String toString () {
+    return "{codes " + codes.count() + ", words " + words.limit() + "}";
+  }
+
+  /*****************************************************
+  ***                                                ***
+  ***                SAVING AND LOADING              ***
+  ***                                                ***
+  ******************************************************/
+
+  /**
+   * Writes this index's sections to w.
+   */
+  public void write (ModelFile.Writer w) throws IOException {
+    dict.writeFingerprint(w);
+    codes.write(w);
+    w.putInts(offsets);
+    w.putInts(words);
+  }
+
+  /**
+   * Reads an index over dict from the next sections of r. Throws if it was
+   * built against a different dictionary.
+   */
+  public static PhoneticIndex read (ModelFile.Reader r, FrozenTrie dict) throws IOException {
+    if (!dict.sameAs(r)) {
+      throw new IOException("Phonetic index was built against a different dictionary. Recompile it.");
+    }
+    FrozenTrie codes = FrozenTrie.read(r);
+    return new PhoneticIndex(dict, codes, r.getInts(), r.getInts());
+  }
+
+  /**
+   * Saves this index as a model file at path.
+   */
+  public void save (String path) throws IOException {
+    ModelFile.Writer w = new ModelFile.Writer(path, ModelFile.PHONETIC);
+    try {
+      write(w);
+      w.close();
+    } finally {
+      w.abort();
+    }
+  }
+
+  /**
+   * Maps the index saved at path, which must have been built against dict.
+   */
+  public static PhoneticIndex load (String path, FrozenTrie dict) throws IOException {
+    return read(new ModelFile.Reader(path, ModelFile.PHONETIC), dict);
+  }
+}
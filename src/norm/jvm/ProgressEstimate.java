@@ -0,0 +1,40 @@
+package norm.jvm;
+
+/**
+ * Turns "this many bytes of that many done" into a string saying how far
+ * through it is and how long the rest might take. The speed is only
+ * re-estimated every few calls, so the time remaining doesn't jump about.
+ */
+public class ProgressEstimate {
+
+  private final long size;
+  private int iter_count;
+  private final int iters = 10;
+  private long last_checked = System.currentTimeMillis();
+  private float last_progress = 0f;
+  private float time_remaining = 0f;
+
+  /**
+   * For a job that's finished when size bytes are done.
+   */
+  public ProgressEstimate (long size) {
+    this.size = size;
+  }
+
+  public synchronized String report (long done) {
+    float prog = (100f / size) * done;
+    if (++iter_count == iters) {
+      long current_time = System.currentTimeMillis();
+      long time = current_time - last_checked;
+      float speed = (prog - last_progress) / time;
+      time_remaining = ((100f - prog) / speed) / 1000;
+      last_checked = current_time;
+      last_progress = prog;
+      iter_count = 0;
+    }
+    long hours = (int)time_remaining / (60*60);
+    long minutes = (int)(time_remaining / 60) % 60;
+    long seconds = (int)time_remaining % 60;
+    return String.format("%.2f%% done, %dh%dm%ds remaining", prog, hours, minutes, seconds);
+  }
+}
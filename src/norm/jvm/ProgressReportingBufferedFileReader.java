@@ -1,6 +1,5 @@
 package norm.jvm;
 import java.io.*;
-import java.util.zip.*;
 import org.apache.commons.io.input.CountingInputStream;
 
 /**
@@ -9,25 +8,25 @@ import org.apache.commons.io.input.CountingInputStream;
  */
 public class ProgressReportingBufferedFileReader extends BufferedReader {
 
-  private final CountingInputStream counting_input_stream;
+  private final ByteCounter counter;
 
-  // these bits are the bits that keep track of progressy stuffs.
-  private long size;
-  private int iter_count;
-  private final int iters = 10;
-  private long last_checked = System.currentTimeMillis();
-  private float last_progress = 0f;
-  private float time_remaining = 0f;
+  private final ProgressEstimate estimate;
 
-  private ProgressReportingBufferedFileReader (CountingInputStream in, long filesize) {
+  private ProgressReportingBufferedFileReader (InputStream in, ByteCounter counter, long filesize) {
     super(new InputStreamReader(in));
-    counting_input_stream = in;
-    size = filesize;
+    this.counter = counter;
+    estimate = new ProgressEstimate(filesize);
   }
 
   private static ProgressReportingBufferedFileReader make (InputStream in, int buffer_size, long file_size) {
+    final CountingInputStream counting = new CountingInputStream(new BufferedInputStream(in, buffer_size));
     return new ProgressReportingBufferedFileReader(
-      new CountingInputStream(new BufferedInputStream(in, buffer_size)),
+      counting,
+      new ByteCounter() {
+        public long getByteCount () {
+          return counting.getByteCount();
+        }
+      },
       file_size
     );
   }
@@ -48,10 +47,13 @@ public class ProgressReportingBufferedFileReader extends BufferedReader {
   }
 
   /**
-   * This makes a ProgressReportingBufferedFileReader with the gzipped File f
+   * This makes a ProgressReportingBufferedFileReader with the gzipped File f.
+   * It's inflated by a ParallelGzipInputStream, and progress is in compressed
+   * bytes, so it's measured against the size of f.
    */
   public static ProgressReportingBufferedFileReader makeGzip (File f, int buffer_size) throws FileNotFoundException, IOException {
-    return make(new GZIPInputStream(new FileInputStream(f)), buffer_size, f.length());
+    ParallelGzipInputStream in = new ParallelGzipInputStream(new BufferedInputStream(new FileInputStream(f), buffer_size));
+    return new ProgressReportingBufferedFileReader(in, in, f.length());
   }
 
   /**
@@ -66,19 +68,6 @@ public class ProgressReportingBufferedFileReader extends BufferedReader {
    * long it might take to finish consuming.
    */
   public String progress() {
-    float prog = (100f / size) * counting_input_stream.getByteCount();
-    if (++iter_count == iters) {
-      long current_time = System.currentTimeMillis();
-      long time = current_time - last_checked;
-      float speed = (prog - last_progress) / time;
-      time_remaining = ((100f - prog) / speed) / 1000;
-      last_checked = current_time;
-      last_progress = prog;
-      iter_count = 0;
-    }
-    long hours = (int)time_remaining / (60*60);
-    long minutes = (int)(time_remaining / 60) % 60;
-    long seconds = (int)time_remaining % 60;
-    return String.format("%.2f%% done, %dh%dm%ds remaining", prog, hours, minutes, seconds);
+    return estimate.report(counter.getByteCount());
   }
 }
@@ -3,9 +3,58 @@ package norm.jvm;
 /**
  * These functions take two strings and return some measure of similarity.
  * It should be obvious what they do given their length.
+ *
+ * Levenshtein distance and LCS are bit-parallel (Myers/Hyyrö) when one of
+ * the strings is at most 64 chars long, which covers pretty much every
+ * token we'll ever see, and fall back to the usual dynamic programming
+ * otherwise. The batch versions compare one word against lots of
+ * candidates, and only do the setup for the word once.
  */
 public class StringComparators {
 
+  /**
+   * Per-char match masks for a pattern of up to 64 chars: bit i of
+   * mask(c) is set if the pattern's ith char is c. ASCII chars are looked
+   * up in a table, anything else is found by scanning the pattern.
+   */
+  private static final class Pattern {
+    final long[] ascii = new long[128];
+    String s = "";
+    int    m = 0;
+    long   last;
+
+    Pattern set (String p) {
+      for (int i = 0; i < m; i++) {
+        char c = s.charAt(i);
+        if (c < 128) ascii[c] = 0;
+      }
+      s = p;
+      m = p.length();
+      last = m == 0 ? 0 : 1L << (m - 1);
+      for (int i = 0; i < m; i++) {
+        char c = p.charAt(i);
+        if (c < 128) ascii[c] |= 1L << i;
+      }
+      return this;
+    }
+
+    long mask (char c) {
+      if (c < 128) return ascii[c];
+      long mask = 0;
+      for (int i = 0; i < m; i++) {
+        if (s.charAt(i) == c) mask |= 1L << i;
+      }
+      return mask;
+    }
+  }
+
+  private static final ThreadLocal<Pattern> pattern = new ThreadLocal<Pattern>() {
+    @Override
+    protected Pattern initialValue() {
+      return new Pattern();
+    }
+  };
+
   public static int commonPrefixLength (final String a, final String b) {
     int l = 0;
     while (l < Math.min(a.length(), b.length()) && a.charAt(l) == b.charAt(l)) l++;
@@ -25,6 +74,42 @@ public class StringComparators {
   }
 
   public static int longestCommonSubsequence (final String a, final String b) {
+    if (a.length() <= 64) {
+      return lcs(pattern.get().set(a), b);
+    } else if (b.length() <= 64) {
+      return lcs(pattern.get().set(b), a);
+    } else {
+      return lcsDP(a, b);
+    }
+  }
+
+  /**
+   * The longest common subsequence of a and each of bs.
+   */
+  public static int[] longestCommonSubsequences (final String a, final String[] bs) {
+    int[] result = new int[bs.length];
+    if (a.length() <= 64) {
+      Pattern p = pattern.get().set(a);
+      for (int i = 0; i < bs.length; i++) result[i] = lcs(p, bs[i]);
+    } else {
+      for (int i = 0; i < bs.length; i++) result[i] = longestCommonSubsequence(a, bs[i]);
+    }
+    return result;
+  }
+
+  // Bit-parallel LCS. The zero bits in v (within the pattern) mark the
+  // positions where the LCS row goes up by one.
+  private static int lcs (final Pattern p, final String t) {
+    long v = ~0L;
+    for (int j = 0; j < t.length(); j++) {
+      long u = v & p.mask(t.charAt(j));
+      v = (v + u) | (v - u);
+    }
+    long used = p.m == 64 ? ~0L : (1L << p.m) - 1;
+    return Long.bitCount(~v & used);
+  }
+
+  static int lcsDP (final String a, final String b) {
     int[] previousRow = new int[a.length() + 1];
     int[] currentRow  = new int[a.length() + 1];
     
@@ -34,17 +119,101 @@ public class StringComparators {
                        previousRow[j-1] + 1
                      : Math.max(currentRow[j-1], previousRow[j]);
       }
-      System.arraycopy(currentRow, 0, previousRow, 0, a.length() + 1);
+      int[] tmp = previousRow;
+      previousRow = currentRow;
+      currentRow = tmp;
     }
 
     int max = 0;
-    for (int x : currentRow) {
+    for (int x : previousRow) {
       max = Math.max(max, x);
     }
     return max;
   }
 
   public static int levenshteinDistance (final String a, final String b) {
+    if (a.length() <= 64) {
+      return levenshtein(pattern.get().set(a), b, Integer.MAX_VALUE);
+    } else if (b.length() <= 64) {
+      return levenshtein(pattern.get().set(b), a, Integer.MAX_VALUE);
+    } else {
+      return levenshteinDP(a, b, Integer.MAX_VALUE);
+    }
+  }
+
+  /**
+   * The levenshtein distance between a and b if it's no more than max,
+   * otherwise max + 1. Gives up as soon as it knows the distance is too big.
+   */
+  public static int levenshteinDistanceBounded (final String a, final String b, final int max) {
+    if (Math.abs(a.length() - b.length()) > max) {
+      return max + 1;
+    } else if (a.length() <= 64) {
+      return levenshtein(pattern.get().set(a), b, max);
+    } else if (b.length() <= 64) {
+      return levenshtein(pattern.get().set(b), a, max);
+    } else {
+      return levenshteinDP(a, b, max);
+    }
+  }
+
+  /**
+   * The levenshtein distance between a and each of bs.
+   */
+  public static int[] levenshteinDistances (final String a, final String[] bs) {
+    return levenshteinDistancesBounded(a, bs, Integer.MAX_VALUE);
+  }
+
+  /**
+   * The levenshtein distance between a and each of bs, where distances
+   * over max come back as max + 1.
+   */
+  public static int[] levenshteinDistancesBounded (final String a, final String[] bs, final int max) {
+    int[] result = new int[bs.length];
+    if (a.length() <= 64) {
+      Pattern p = pattern.get().set(a);
+      for (int i = 0; i < bs.length; i++) {
+        if (Math.abs(a.length() - bs[i].length()) > max) {
+          result[i] = max + 1;
+        } else {
+          result[i] = levenshtein(p, bs[i], max);
+        }
+      }
+    } else {
+      for (int i = 0; i < bs.length; i++) result[i] = levenshteinDistanceBounded(a, bs[i], max);
+    }
+    return result;
+  }
+
+  // Myers' bit-vector levenshtein, as described by Hyyrö. pv and mv hold
+  // the vertical +1 and -1 deltas down the current column of the DP
+  // matrix, and score is the bottom cell of that column.
+  private static int levenshtein (final Pattern p, final String t, final int max) {
+    final int m = p.m;
+    final int n = t.length();
+    if (m == 0) return n <= max ? n : max + 1;
+    long pv = ~0L;
+    long mv = 0;
+    int score = m;
+    for (int j = 0; j < n; j++) {
+      long eq = p.mask(t.charAt(j));
+      long xv = eq | mv;
+      long xh = (((eq & pv) + pv) ^ pv) | eq;
+      long ph = mv | ~(xh | pv);
+      long mh = pv & xh;
+      if ((ph & p.last) != 0) score++;
+      else if ((mh & p.last) != 0) score--;
+      ph = (ph << 1) | 1;
+      mh = mh << 1;
+      pv = mh | ~(xv | ph);
+      mv = ph & xv;
+      // the score can only drop by one per remaining char
+      if (score - (n - j - 1) > max) return max + 1;
+    }
+    return score <= max ? score : max + 1;
+  }
+
+  static int levenshteinDP (final String a, final String b, final int max) {
     
     final int n = a.length();
     final int m = b.length();
@@ -52,7 +221,7 @@ public class StringComparators {
     final int nplusone = n + 1; // yeah the compiler should optimize this anyway
                                 // just making it explicit
 
-    if (n == 0 || m == 0) return n + m;
+    if (n == 0 || m == 0) return n + m <= max ? n + m : max + 1;
 
     int[] previousRow = new int[n + 1];
     int[] currentRow = new int[n + 1];
@@ -81,9 +250,16 @@ public class StringComparators {
             previousRow[j] + 1);
       }
       
-      System.arraycopy(currentRow, 0, previousRow, 0, nplusone);
+      // nothing can get back under max once a whole row is over it
+      int min = currentRow[0];
+      for (j = 1; j < nplusone; j++) min = Math.min(min, currentRow[j]);
+      if (min > max) return max + 1;
+
+      int[] tmp = previousRow;
+      previousRow = currentRow;
+      currentRow = tmp;
     }
 
-    return currentRow[n];
+    return previousRow[n] <= max ? previousRow[n] : max + 1;
   }
 }
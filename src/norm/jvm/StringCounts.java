@@ -0,0 +1,134 @@
+package norm.jvm;
+
+import java.util.ArrayList;
+import clojure.lang.ISeq;
+import clojure.lang.IteratorSeq;
+import clojure.lang.MapEntry;
+import clojure.lang.Seqable;
+
+/**
+ * Counts things by String, from lots of threads at once.
+ *
+ * The counts are split over a bunch of stripes by hash, each of which is an
+ * open-addressing table of keys and primitive longs with its own lock, so
+ * counting doesn't allocate (apart from when a stripe grows) and threads
+ * only wait for each other when they hit the same stripe at the same time.
+ * Nothing ever retries, so nothing gets lost.
+ *
+ * seq() gives a snapshot of the counts as [key count] pairs.
+ */
+public class StringCounts implements Seqable {
+
+  private static final int STRIPE_BITS = 7;
+
+  private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+  public StringCounts () {
+    for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe();
+  }
+
+  private static int hash (String k) {
+    int h = k.hashCode() * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  private Stripe stripe (int h) {
+    return stripes[h >>> (32 - STRIPE_BITS)];
+  }
+
+  /**
+   * Adds n to k's count and returns the new count.
+   */
+  public long add (String k, long n) {
+    int h = hash(k);
+    return stripe(h).add(k, h, n);
+  }
+
+  /**
+   * k's count, or 0 if it hasn't been counted.
+   */
+  public long get (String k) {
+    int h = hash(k);
+    return stripe(h).get(k, h);
+  }
+
+  /**
+   * The number of different keys counted.
+   */
+  public int size () {
+    int size = 0;
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        size += s.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * A snapshot of the counts as a seq of [key count] entries, in no
+   * particular order.
+   */
+  public ISeq seq () {
+    ArrayList<MapEntry> entries = new ArrayList<MapEntry>();
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        for (int i = 0; i < s.keys.length; i++) {
+          if (s.keys[i] != null) entries.add(new MapEntry(s.keys[i], s.counts[i]));
+        }
+      }
+    }
+    return IteratorSeq.create(entries.iterator());
+  }
+
+  private static final class Stripe {
+    String[] keys   = new String[16];
+    long[]   counts = new long[16];
+    int[]    hashes = new int[16];
+    int      size   = 0;
+
+    // the slot holding k, or the empty slot where it should go
+    private int find (String k, int h) {
+      int mask = keys.length - 1;
+      int i = h & mask;
+      while (keys[i] != null && (hashes[i] != h || !keys[i].equals(k))) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    synchronized long get (String k, int h) {
+      return counts[find(k, h)];
+    }
+
+    synchronized long add (String k, int h, long n) {
+      int i = find(k, h);
+      if (keys[i] == null) {
+        keys[i] = k;
+        hashes[i] = h;
+        if (++size * 2 > keys.length) {
+          grow();
+          i = find(k, h);
+        }
+      }
+      return counts[i] += n;
+    }
+
+    private void grow () {
+      String[] ks = keys;
+      long[] cs = counts;
+      int[] hs = hashes;
+      keys = new String[ks.length * 2];
+      counts = new long[ks.length * 2];
+      hashes = new int[ks.length * 2];
+      for (int j = 0; j < ks.length; j++) {
+        if (ks[j] != null) {
+          int i = find(ks[j], hs[j]);
+          keys[i] = ks[j];
+          counts[i] = cs[j];
+          hashes[i] = hs[j];
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package norm.jvm;
+
+import java.util.Arrays;
+
+/**
+ * The string subsequence kernel, as computed by Mallet's StringKernel, but
+ * without allocating anything per call.
+ *
+ * Mallet's kernel ignores its lambda parameter, so there's no decay here
+ * either. The unnormalised kernel just counts the ways of picking a common
+ * subsequence of length 1 to n. Mallet counts them by filling in an
+ * (n+1) * |s| * |t| table. We count them from just the pairs of positions
+ * where s and t match instead, which is n * m^2 work for m pairs, and a lot
+ * less when the strings don't have many letters in common. All the values
+ * involved are whole numbers, so both come to exactly the same doubles as
+ * long as they stay below 2^53. If they might not, or if there are so many
+ * pairs (e.g. "hahahahaha") that the table is less work, we use the table,
+ * keeping only two levels of it in thread-local scratch space and summing
+ * in the same order as Mallet.
+ *
+ * K(t, t), which is needed to normalise K(s, t), is cached for the t's that
+ * keep coming up, so t should be the word that comes from the dictionary.
+ * It's safe to share one of these between threads.
+ */
+public class StringKernel {
+
+  private static final ThreadLocal<double[][]> scratch = new ThreadLocal<double[][]>() {
+    @Override
+    protected double[][] initialValue() {
+      return new double[][] {new double[256], new double[256]};
+    }
+  };
+
+  private static final ThreadLocal<int[][]> matches = new ThreadLocal<int[][]>() {
+    @Override
+    protected int[][] initialValue() {
+      return new int[][] {new int[64], new int[64]};
+    }
+  };
+
+  private final int n;
+  private final BoundedCache selfKernels = new BoundedCache(1 << 14);
+
+  /**
+   * A kernel over subsequences of length up to n.
+   */
+  public StringKernel (int n) {
+    this.n = n;
+  }
+
+  /**
+   * Same as Mallet's default, subsequences of length up to 3.
+   */
+  public StringKernel () {
+    this(3);
+  }
+
+  /**
+   * The normalised kernel between s and t.
+   */
+  public double K (String s, String t) {
+    return sK(s, t) / Math.sqrt(sK(s, s) * selfK(t));
+  }
+
+  /**
+   * The normalised kernel between s and each of ts.
+   */
+  public double[] K (String s, String[] ts) {
+    double ss = sK(s, s);
+    double[] result = new double[ts.length];
+    for (int i = 0; i < ts.length; i++) {
+      result[i] = sK(s, ts[i]) / Math.sqrt(ss * selfK(ts[i]));
+    }
+    return result;
+  }
+
+  /**
+   * The unnormalised kernel between t and itself, cached.
+   */
+  public double selfK (String t) {
+    Double k = (Double) selfKernels.get(t, null);
+    if (k == null) {
+      k = sK(t, t);
+      selfKernels.put(t, k);
+    }
+    return k;
+  }
+
+  /**
+   * The unnormalised kernel between s and t, i.e. the number of ways of
+   * picking a common subsequence of length 1 to n.
+   */
+  public double sK (String s, String t) {
+    final int sl = s.length();
+    final int tl = t.length();
+
+    // find the positions where s and t match, in order of position in s
+    // and then position in t
+    int[][] ms = matches.get();
+    int m = 0;
+    for (int i = 0; i < sl; i++) {
+      final char c = s.charAt(i);
+      for (int j = 0; j < tl; j++) {
+        if (t.charAt(j) == c) {
+          if (m == ms[0].length) {
+            ms[0] = Arrays.copyOf(ms[0], m * 2);
+            ms[1] = Arrays.copyOf(ms[1], m * 2);
+          }
+          ms[0][m] = i;
+          ms[1][m] = j;
+          m++;
+        }
+      }
+    }
+    if ((long) m * m > (long) sl * tl || n * Math.pow(m, n) >= 9007199254740992.0) {
+      return tableK(s, t);
+    }
+
+    double[][] tables = scratch.get();
+    if (tables[0].length < m) {
+      tables[0] = new double[m];
+      tables[1] = new double[m];
+    }
+    double[] prev = tables[0];
+    double[] cur = tables[1];
+    final int[] is = ms[0];
+    final int[] js = ms[1];
+
+    // level 1: every match is a subsequence on its own
+    double sum = 0;
+    for (int a = 0; a < m; a++) {
+      prev[a] = 1;
+    }
+    if (n > 0) sum += m;
+    // level k + 1: the subsequences of length k + 1 ending at each match
+    // are those of length k ending at matches strictly before it
+    for (int k = 1; k < n; k++) {
+      double total = 0;
+      for (int a = 0; a < m; a++) {
+        double v = 0;
+        for (int b = 0; b < a && is[b] < is[a]; b++) {
+          if (js[b] < js[a]) v += prev[b];
+        }
+        cur[a] = v;
+        total += v;
+      }
+      sum += total;
+      double[] tmp = prev;
+      prev = cur;
+      cur = tmp;
+    }
+    return sum;
+  }
+
+  // Mallet's way of doing it
+  double tableK (String s, String t) {
+    final int sl = s.length();
+    final int tl = t.length();
+    final int w = sl + 1;
+    final int size = w * (tl + 1);
+
+    double[][] tables = scratch.get();
+    if (tables[0].length < size) {
+      tables[0] = new double[size];
+      tables[1] = new double[size];
+    }
+    double[] prev = tables[0];
+    double[] cur = tables[1];
+
+    for (int i = 0; i < size; i++) prev[i] = 1;
+
+    double sum = 0;
+    for (int k = 0; k < n; k++) {
+      // the first row and column of each level are zero
+      for (int i = 0; i < w; i++) cur[i] = 0;
+      for (int j = 1; j <= tl; j++) cur[j * w] = 0;
+
+      for (int i = 0; i < sl; i++) {
+        final char c = s.charAt(i);
+        double acc = 0;
+        for (int j = 0; j < tl; j++) {
+          if (t.charAt(j) == c) {
+            acc += prev[j * w + i];
+          }
+          cur[(j + 1) * w + i + 1] = cur[(j + 1) * w + i] + acc;
+        }
+      }
+      sum += cur[tl * w + sl];
+
+      double[] tmp = prev;
+      prev = cur;
+      cur = tmp;
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,110 @@
+package norm.jvm;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A tokenised tweet, as one char[] and the start and end offsets of each
+ * token in it, so that looking at tokens doesn't mean making a String for
+ * each one.
+ *
+ * Tokens can be replaced (e.g. by a normaliser) without touching the chars:
+ * replace gives back a new Tokens over the same chars and spans, in which
+ * only the replaced tokens have Strings of their own.
+ *
+ * It's also a read-only List of Strings, so it can go anywhere a list of
+ * tokens could. get makes a new String each time though, so code which
+ * cares should use chars, start and end instead.
+ */
+public class Tokens extends AbstractList<String> implements RandomAccess {
+
+  private final char[]   chars;
+  private final int[]    spans;        // start, end pairs
+  private final int      size;
+  private final String[] replacements; // null, or null where not replaced
+
+  public Tokens (char[] chars, int[] spans, int size) {
+    this(chars, spans, size, null);
+  }
+
+  private Tokens (char[] chars, int[] spans, int size, String[] replacements) {
+    this.chars = chars;
+    this.spans = spans;
+    this.size = size;
+    this.replacements = replacements;
+  }
+
+  public int size () {
+    return size;
+  }
+
+  /**
+   * The chars the spans point into. Don't change them.
+   */
+  public char[] chars () {
+    return chars;
+  }
+
+  /**
+   * Where token i starts in chars.
+   */
+  public int start (int i) {
+    return spans[2 * i];
+  }
+
+  /**
+   * Where token i ends in chars.
+   */
+  public int end (int i) {
+    return spans[2 * i + 1];
+  }
+
+  /**
+   * Returns true if token i has been replaced, in which case the span
+   * is what it was before.
+   */
+  public boolean isReplaced (int i) {
+    return replacements != null && replacements[i] != null;
+  }
+
+  public String get (int i) {
+    if (i < 0 || i >= size) throw new IndexOutOfBoundsException(Integer.toString(i));
+    if (isReplaced(i)) return replacements[i];
+    return new String(chars, spans[2 * i], spans[2 * i + 1] - spans[2 * i]);
+  }
+
+  /**
+   * Returns a copy of this in which token i is replaced by rs[i], wherever
+   * rs[i] isn't null. rs isn't copied, and any tokens already replaced in
+   * this get filled in to it.
+   */
+  public Tokens replace (String[] rs) {
+    if (rs.length != size) throw new IllegalArgumentException("Need exactly one replacement per token");
+    if (replacements != null) {
+      for (int i = 0; i < size; i++) {
+        if (rs[i] == null) rs[i] = replacements[i];
+      }
+    }
+    return new Tokens(chars, spans, size, rs);
+  }
+
+  /**
+   * Appends token i to sb.
+   */
+  public StringBuilder appendTo (StringBuilder sb, int i) {
+    if (isReplaced(i)) return sb.append(replacements[i]);
+    return sb.append(chars, spans[2 * i], spans[2 * i + 1] - spans[2 * i]);
+  }
+
+  /**
+   * The tokens joined by sep, followed by end.
+   */
+  public String join (String sep, String end) {
+    StringBuilder sb = new StringBuilder(chars.length + size * sep.length() + end.length());
+    for (int i = 0; i < size; i++) {
+      if (i > 0) sb.append(sep);
+      appendTo(sb, i);
+    }
+    return sb.append(end).toString();
+  }
+}
@@ -2,10 +2,12 @@ package norm.jvm;
 
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Stack;
 import java.util.ArrayList;
-import java.util.PriorityQueue;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import clojure.lang.IPersistentMap;
 import clojure.lang.IteratorSeq;
 import clojure.lang.IMapEntry;
@@ -21,8 +23,7 @@ import clojure.lang.IFn;
 /**
  * An immutable Trie for storing strings and doing cool things with those strings.
  */
-public class Trie extends AFn implements IPersistentMap, IObj{
-  private static final List<String> empty_list = new ArrayList<String>(0);
+public class Trie extends AFn implements IPersistentMap, IObj, ITrie {
 
   private IPersistentMap metadata;
 
@@ -39,8 +40,8 @@ public class Trie extends AFn implements IPersistentMap, IObj{
   public  final long     _freq;
   public  final long     _tfreq;
   public  final boolean  _terminal;
-  private final char[]   _keys;       // These ones in ascending sorted order for
-  private final Trie[]   _nodes;      // traversal and merging etc.
+  final         char[]   _keys;       // These ones in ascending sorted order for
+  final         Trie[]   _nodes;      // traversal and merging etc.
   public  final Object   _data;
   public  final int      _depth;
 
@@ -226,6 +227,24 @@ public class Trie extends AFn implements IPersistentMap, IObj{
     return node._terminal;
   }
 
+  private Trie endNode (char[] cs, int start, int end) {
+    Trie node = this;
+    for (int i = start; i < end && node != null; i++) {
+      node = node.getChild(cs[i]);
+    }
+    return node;
+  }
+
+  public boolean contains (char[] cs, int start, int end) {
+    Trie node = endNode(cs, start, end);
+    return node != null && node._terminal;
+  }
+
+  public Object valAt (char[] cs, int start, int end, Object notFound) {
+    Trie node = endNode(cs, start, end);
+    return node != null && node._terminal ? node._data : notFound;
+  }
+
   // this should only be called after it has been made certain that s is a valid key
   // in this trie
   private Trie remove (String s, long freq) {
@@ -285,191 +304,354 @@ public class Trie extends AFn implements IPersistentMap, IObj{
 
   /*****************************************************
   ***                                                ***
-  ***              FUZZY MATCHING STUFF              ***
+  ***                 BULK BUILDING                  ***
   ***                                                ***
   ******************************************************/
 
   /**
-   * Finds the smallest integer in an array
+   * Builds a Trie in one pass from words given in sorted order, which is a
+   * lot faster than merging them in one at a time. Only the nodes along the
+   * path to the last word added are ever open, and each node is made exactly
+   * once, when nothing more can be added under it.
+   *
+   * Adding the same word more than once sums its frequencies, and the last
+   * non-null data object wins, same as with merge.
    */
-  private static int minInRow (int[] row) {
-    int min = row[0];
-    for (int i=1;i<row.length;i++) {
-      if (row[i] < min) min = row[i];
+  public static class Builder {
+    // one open node per depth along the path to the last word
+    private Frame[]  frames = new Frame[16];
+    private String   last   = null;
+    private int      top    = 0;
+
+    public Builder () {
+      frames[0] = new Frame();
+    }
+
+    public Builder add (String word, long freq, Object data) {
+      int prefix = 0;
+      if (last != null) {
+        int cmp = word.compareTo(last);
+        if (cmp < 0) {
+          throw new IllegalArgumentException("Words must be added in sorted order: '" + word + "' came after '" + last + "'");
+        }
+        int max = Math.min(word.length(), last.length());
+        while (prefix < max && word.charAt(prefix) == last.charAt(prefix)) prefix++;
+      }
+      // close the nodes which aren't on the path to word
+      while (top > prefix) {
+        Trie node = frames[top].build();
+        top--;
+        frames[top].addChild(last.charAt(top), node);
+      }
+      // and open the ones which are
+      while (top < word.length()) {
+        top++;
+        if (top == frames.length) frames = Arrays.copyOf(frames, frames.length * 2);
+        if (frames[top] == null) frames[top] = new Frame();
+        frames[top].reset();
+      }
+      Frame f = frames[top];
+      f.terminal = true;
+      f.tfreq += freq;
+      if (data != null) f.data = data;
+      last = word;
+      return this;
+    }
+
+    public Builder add (String word, long freq) {
+      return add(word, freq, null);
+    }
+
+    /**
+     * Returns the built Trie. The builder is reset afterwards.
+     */
+    public Trie build () {
+      while (top > 0) {
+        Trie node = frames[top].build();
+        top--;
+        frames[top].addChild(last.charAt(top), node);
+      }
+      Trie t = frames[0].build();
+      frames[0].reset();
+      last = null;
+      return t;
+    }
+  }
+
+  private static class Frame {
+    boolean terminal;
+    long    tfreq;
+    Object  data;
+    int     n;
+    char[]  keys  = new char[4];
+    Trie[]  nodes = new Trie[4];
+
+    Frame () {
+      reset();
+    }
+
+    void reset () {
+      terminal = false;
+      tfreq = 0;
+      data = null;
+      for (int i = 0; i < n; i++) nodes[i] = null;
+      n = 0;
+    }
+
+    void addChild (char c, Trie t) {
+      if (n == keys.length) {
+        keys = Arrays.copyOf(keys, n * 2);
+        nodes = Arrays.copyOf(nodes, n * 2);
+      }
+      keys[n] = c;
+      nodes[n++] = t;
+    }
+
+    Trie build () {
+      long count = terminal ? 1 : 0;
+      long freq = tfreq;
+      int depth = -1;
+      for (int i = 0; i < n; i++) {
+        count += nodes[i]._count;
+        freq += nodes[i]._freq;
+        depth = Math.max(depth, nodes[i]._depth);
+      }
+      return new Trie(count, freq, tfreq, terminal, Arrays.copyOf(keys, n), Arrays.copyOf(nodes, n), data, depth + 1);
     }
-    return min;
   }
 
   /**
-   * This class used in priority queues for levensthein matching
-   * FindNearestEntry is so verbose
+   * Builds a Trie from sorted words, with their frequencies and data
+   * objects (data may be null).
    */
-  private class FNE implements Comparable {
-    public int dist;
-    public long freq;
-    public Trie node;
-    public int[] row;
-    public String word;
-
-    public FNE (int dist, long freq, String word, Trie node, int[] row) {
-      this.dist = dist;
-      this.freq = freq;
-      this.word = word;
-      this.node = node;
-      this.row = row;
+  public static Trie fromSorted (String[] words, long[] freqs, Object[] data) {
+    Builder b = new Builder();
+    for (int i = 0; i < words.length; i++) {
+      b.add(words[i], freqs[i], data == null ? null : data[i]);
     }
+    return b.build();
+  }
 
-    @Override
-    public int compareTo (Object other) {
-      FNE oth = (FNE) other;
-      if (oth.dist > this.dist) return -1;
-      if (oth.dist < this.dist) return 1;
-      if (oth.freq < this.freq) return -1;
-      if (oth.freq > this.freq) return -1;
-      return 0;
+  /**
+   * Like fromSorted, but builds the subtrees under each of the root's
+   * children in parallel on the given executor.
+   */
+  public static Trie fromSorted (final String[] words, final long[] freqs, final Object[] data, ExecutorService executor)
+    throws InterruptedException, ExecutionException {
+    // the empty string sorts first and belongs to the root itself
+    int start = 0;
+    long tfreq = 0;
+    Object rootData = null;
+    while (start < words.length && words[start].length() == 0) {
+      tfreq += freqs[start];
+      if (data != null && data[start] != null) rootData = data[start];
+      start++;
+    }
+    // split the rest up by first character
+    ArrayList<Future<Trie>> futures = new ArrayList<Future<Trie>>();
+    int from = start;
+    while (from < words.length) {
+      final char c = words[from].charAt(0);
+      int to = from + 1;
+      while (to < words.length && words[to].length() > 0 && words[to].charAt(0) == c) to++;
+      if (to < words.length && words[to].compareTo(words[to - 1]) < 0) {
+        throw new IllegalArgumentException("Words must be added in sorted order: '" + words[to] + "' came after '" + words[to - 1] + "'");
+      }
+      final int f = from;
+      final int t = to;
+      futures.add(executor.submit(new Callable<Trie>() {
+        public Trie call () {
+          Builder b = new Builder();
+          for (int i = f; i < t; i++) {
+            b.add(words[i], freqs[i], data == null ? null : data[i]);
+          }
+          return b.build();
+        }
+      }));
+      from = to;
     }
+    // each of those is a root with a single child
+    Frame root = new Frame();
+    root.terminal = start > 0;
+    root.tfreq = tfreq;
+    root.data = rootData;
+    for (Future<Trie> future : futures) {
+      Trie t = future.get();
+      root.addChild(t._keys[0], t._nodes[0]);
+    }
+    return root.build();
   }
 
+  /*****************************************************
+  ***                                                ***
+  ***              FUZZY MATCHING STUFF              ***
+  ***                                                ***
+  ******************************************************/
+
+  // findNearestParallel does queries shorter or closer than these on one
+  // thread
+  public static final int PARALLEL_MIN_LENGTH = 4;
+  public static final int PARALLEL_MIN_DISTANCE = 2;
+
   /**
-   * Finds the n nearest strings to s in this trie.
+   * Finds the n nearest strings to s in this trie, within a levenshtein
+   * distance of d. If n <= 0, finds all of the strings within d.
+   * Results are in ascending order of distance, and then descending order
+   * of frequency.
    */
-
   public List<String> findNearest (final String s, final int n, final int d) {
+    NearestSearch ns = NearestSearch.get(s, n, d);
+    if (d >= 0) nearest(ns, 0);
+    return ns.results();
+  }
 
-    // init levenshtein stuff
-    final int m = s.length();
-    int[] row = new int[m + 1];
-    for (int i = 0; i < m + 1; i++) row[i] = i;
-
-    // init queue and results list
-    PriorityQueue<FNE> q = new PriorityQueue<FNE>();
-    q.add(new FNE(0, 0, "", this, row));
-    ArrayList<String> results = new ArrayList<String>();
-
-    FNE current = null; 
-
-    // iterate over queue, stopping when we've got enough
-    while ((n <= 0 || results.size() < n) && !q.isEmpty() && q.peek().dist <= d) {
-      current = q.poll();
-      if (current.node == null) {
-        // if there is no node, it means we made the entry as a kind of
-        // "look, this is a word we found, but we might find others which
-        // are closer, so stick it back in the queue and wait for it to 
-        // come around again" type of deal.
-        results.add(current.word);
-      } else {
-        if (current.node._terminal) { // yay a legit word!
-          if (current.row[m] == current.dist) {
-            // if the minimum entry in the row is the \emph{last} entry
-            // in the row, then it is as close to s as we're gonna get from
-            // here on in, so add it to results.
-            results.add(current.word);
-          } else {
-            // "look, this is a word we found, but we might find others which
-            // are closer, so stick it back in the queue and wait for it to 
-            // come around again"
-            q.add(new FNE(current.row[m], current.freq, current.word, null, null));
-          }
-        }
+  private void nearest (NearestSearch ns, int depth) {
+    if (_terminal) {
+      ns.offer(depth, _freq, -1);
+    }
+    // only go down branches which could still produce something within the
+    // bound. The bound can shrink as we go if we only want the n nearest.
+    for (int i = 0; i < _keys.length; i++) {
+      if (ns.push(depth + 1, _keys[i]) <= ns.bound()) {
+        _nodes[i].nearest(ns, depth + 1);
+      }
+    }
+  }
 
-        // now let's explore this node's children!
-
-        // calculate levenshtein rows, and add new entries to the queue
-        for (int i=0; i < current.node._keys.length; i++) {
-          char c = current.node._keys[i];
-          row = new int[m + 1];
-          row[0] = current.row[0] + 1;
-          for (int j=1; j < m + 1; j++) {
-            row[j] =
-              Math.min(
-                Math.min(
-                  current.row[j - 1] + (s.charAt(j - 1) == c ? 0 : 1),
-                  current.row[j] + 1
-                ),
-                row[j - 1] + 1
-              );
-          }
-          q.add(
-            new FNE(
-              minInRow(row),
-              current.node._nodes[i]._freq,
-              current.word + c,
-              current.node._nodes[i],
-              row
-            )
-          );
-        }
+  /**
+   * Like findNearest, but splits the trie up under its grandchildren and
+   * searches the bits in parallel on executor. The results are exactly the
+   * same. Queries shorter than PARALLEL_MIN_LENGTH, or with d less than
+   * PARALLEL_MIN_DISTANCE, are cheap enough that they're just done here.
+   * executor mustn't be one that this is being called from.
+   */
+  public List<String> findNearestParallel (String s, int n, int d, ExecutorService executor) {
+    if (executor == null || s.length() < PARALLEL_MIN_LENGTH || d < PARALLEL_MIN_DISTANCE) {
+      return findNearest(s, n, d);
+    }
+    List<Shard> shards = new ArrayList<Shard>();
+    shards.add(new Shard(new char[0], this, false));
+    for (int i = 0; i < _keys.length; i++) {
+      Trie child = _nodes[i];
+      shards.add(new Shard(new char[]{_keys[i]}, child, false));
+      for (int j = 0; j < child._keys.length; j++) {
+        shards.add(new Shard(new char[]{_keys[i], child._keys[j]}, child._nodes[j], true));
       }
     }
-    return results;
+    return NearestSearch.search(s, n, d, shards, executor).results();
   }
 
+  // the word at the end of path, and maybe everything under it too
+  private static final class Shard implements NearestSearch.Shard {
+    final char[]  path;
+    final Trie    node;
+    final boolean whole;
 
+    Shard (char[] path, Trie node, boolean whole) {
+      this.path = path;
+      this.node = node;
+      this.whole = whole;
+    }
 
-  private List<String> findContaining (String s, boolean contiguous, boolean begun, boolean suffix) {
-    if (s.length() > _depth) {
-      return empty_list;
-    } else if (s.length() == 0) {
-      if (suffix) {
-        return _terminal ? Arrays.asList(new String[]{""}) : empty_list;
-      } else {
-        return words();
+    public void search (NearestSearch ns) {
+      int depth = 0;
+      for (char c : path) {
+        if (ns.push(++depth, c) > ns.bound()) return;
       }
-    } else if (contiguous && begun){
-      char c = s.charAt(0);
-      Trie t = getChild(c);
-      if (t == null) {
-        return empty_list;
-      } else {
-        return givePrefix(t.findContaining(s.substring(1), true, true, suffix), new ArrayList<String>(), c+"");
+      if (whole) {
+        node.nearest(ns, depth);
+      } else if (node._terminal) {
+        ns.offer(depth, node._freq, -1);
       }
-    } else {
-      ArrayList<String> results = new ArrayList<String>();
-      char c = s.charAt(0);
-      // iterate over children, try to find c
-      for (int i=0; i<_nodes.length; i++) {
-        if (_keys[i] == c) {
-          givePrefix(_nodes[i].findContaining(s.substring(1), contiguous, true, suffix), results, c+"");
-        }
-        givePrefix(_nodes[i].findContaining(s, contiguous, begun, suffix), results, _keys[i]+"");
+    }
+  }
+
+
+
+  /**
+   * A cursor over the words starting with prefix.
+   */
+  public Cursor cursor (String prefix) {
+    return new Cursor(this, prefix, "", TrieCursor.ALL);
+  }
+
+  public static final class Cursor extends TrieCursor {
+    private Trie[] nodes = new Trie[16];
+    private int[]  next  = new int[16]; // the next child to visit at each depth
+    private int    top   = 0;
+
+    Cursor (Trie root, String prefix, String s, int mode) {
+      super(prefix, s, mode);
+      nodes[0] = root.endNode(prefix);
+      if (nodes[0] == null) finish();
+    }
+
+    /**
+     * The node at the end of the current path.
+     */
+    public Trie node () {
+      return nodes[top];
+    }
+
+    protected boolean terminal () {
+      return nodes[top]._terminal;
+    }
+
+    protected int height () {
+      return nodes[top]._depth;
+    }
+
+    protected boolean down () {
+      Trie n = nodes[top];
+      int i = next[top];
+      if (i >= n._keys.length) return false;
+      next[top] = i + 1;
+      if (++top == nodes.length) {
+        nodes = Arrays.copyOf(nodes, nodes.length * 2);
+        next = Arrays.copyOf(next, next.length * 2);
       }
-      return results;
+      nodes[top] = n._nodes[i];
+      next[top] = 0;
+      push(n._keys[i]);
+      return true;
+    }
+
+    protected void up () {
+      nodes[top--] = null;
+      pop();
     }
   }
 
+  public Iterator<String> iterateWords () {
+    return cursor("").strings();
+  }
+
+  public Iterator<String> iterateWithPrefix (String s) {
+    return cursor(s).strings();
+  }
+
+  public Iterator<String> iterateWithSuffix (String s) {
+    return new Cursor(this, "", s, TrieCursor.SUFFIX).strings();
+  }
+
+  public Iterator<String> iterateContaining (String s, boolean contiguous) {
+    return new Cursor(this, "", s, contiguous ? TrieCursor.SUBSTRING : TrieCursor.SUBSEQUENCE).strings();
+  }
+
   public List<String> findContaining (String s, boolean contiguous) {
-    return findContaining(s, contiguous, false, false);
+    return new Cursor(this, "", s, contiguous ? TrieCursor.SUBSTRING : TrieCursor.SUBSEQUENCE).toList();
   }
 
   public List<String> findWithSuffix (String s) {
-    return findContaining(s, true, false, true);
+    return new Cursor(this, "", s, TrieCursor.SUFFIX).toList();
   }
 
   public List<String> findWithPrefix (String s) {
-    Trie t = endNode(s);
-    if (t == null) {
-      return empty_list;
-    } else {
-      return givePrefix(t.words(), new ArrayList<String>(), s);
-    }
-  }
-
-  private static List<String> givePrefix(List<String> source, List<String> dest, String prefix) {
-    for (String s : source) {
-      dest.add(prefix + s);
-    }
-    return dest;
+    return cursor(s).toList();
   }
 
   public List<String> words () {
-    ArrayList<String> results = new ArrayList<String>();
-    if (_terminal) {
-      results.add("");
-    }
-    for (int i=0; i < _nodes.length; i++) {
-      for (String s : _nodes[i].words()) results.add(_keys[i] + s);
-    }
-    return results;
+    return cursor("").toList();
   }
 
 
@@ -491,20 +673,10 @@ public class Trie extends AFn implements IPersistentMap, IObj{
   }
 
   private class TrieIterator implements Iterator<MapEntry> {
-    private class Item {
-      public String acc;
-      public Trie node;
-      public int child_id = 0;
-      public boolean done = false;
-      public Item (String acc, Trie node) {
-        this.acc = acc;
-        this.node = node;
-      }
-    }
-    private Stack<Item> stack = new Stack<Item>();
+    private final Cursor cursor;
     private MapEntry head;
     public TrieIterator (Trie root) {
-      stack.push(new Item("", root));
+      cursor = root.cursor("");
       head = _next();
     }
     @Override
@@ -518,20 +690,9 @@ public class Trie extends AFn implements IPersistentMap, IObj{
       return v;
     }
     private MapEntry _next () {
-      if (stack.empty()) return null;
-      Item item = stack.peek();
-      if (!item.done && item.node._terminal) {
-        item.done = true;
-        return new MapEntry(item.acc, PersistentVector.create(new Object[]{new Long(item.node._tfreq), item.node._data}));
-      } else if (item.child_id >= item.node._nodes.length) {
-        stack.pop();
-        return _next();
-      } else {
-        stack.push(new Item(item.acc + item.node._keys[item.child_id],
-                            item.node._nodes[item.child_id]));
-        item.child_id++;
-        return _next();
-      }
+      if (!cursor.advance()) return null;
+      Trie node = cursor.node();
+      return new MapEntry(cursor.word(), PersistentVector.create(new Object[]{new Long(node._tfreq), node._data}));
     }
     @Override
     public void remove () {}
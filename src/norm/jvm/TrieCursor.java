@@ -0,0 +1,206 @@
+package norm.jvm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks the words under a prefix of a trie, in alphabetical order, one word
+ * at a time. The path to the current word is kept in one char[], so walking
+ * doesn't allocate anything:
+ *
+ *   TrieCursor c = trie.cursor("be");
+ *   while (c.advance()) {
+ *     ... c.path()[0..c.length()) is the word ...
+ *   }
+ *
+ * Cursors can also be restricted to words which end with, or contain, some
+ * string. Each kind of trie has its own subclass, which keeps a stack of the
+ * nodes on the path and gives access to the current one.
+ */
+public abstract class TrieCursor {
+
+  // the ways in which a word can be matched against s
+  static final int ALL = 0;
+  static final int SUFFIX = 1;
+  static final int SUBSTRING = 2;
+  static final int SUBSEQUENCE = 3;
+
+  private char[]       path;
+  private int          length;
+  private final int    base;   // the length of the prefix
+  private final String s;
+  private final int    mode;
+  private final int    min;    // the shortest a word can be and still match
+  private boolean      started = false;
+  private boolean      done = false;
+
+  protected TrieCursor (String prefix, String s, int mode) {
+    this.path = new char[prefix.length() + 16];
+    prefix.getChars(0, prefix.length(), path, 0);
+    this.length = prefix.length();
+    this.base = length;
+    this.s = s;
+    this.mode = mode;
+    this.min = mode == ALL ? 0 : s.length();
+  }
+
+  /**
+   * Is the current node the end of a word?
+   */
+  protected abstract boolean terminal ();
+
+  /**
+   * Moves down to the next child of the current node that hasn't been
+   * visited yet, calling push with its label, and returns true. Returns
+   * false if there are none left.
+   */
+  protected abstract boolean down ();
+
+  /**
+   * Moves back up to the parent of the current node, calling pop.
+   */
+  protected abstract void up ();
+
+  /**
+   * The length of the longest path down from the current node, if known.
+   * Subtrees with no words long enough to match aren't walked.
+   */
+  protected int height () {
+    return Integer.MAX_VALUE;
+  }
+
+  protected final void push (char c) {
+    if (length == path.length) {
+      char[] p = new char[path.length * 2];
+      System.arraycopy(path, 0, p, 0, length);
+      path = p;
+    }
+    path[length++] = c;
+  }
+
+  protected final void pop () {
+    length--;
+  }
+
+  /**
+   * Call if there's nothing to walk, e.g. because the prefix isn't in the
+   * trie.
+   */
+  protected final void finish () {
+    done = true;
+  }
+
+  /**
+   * Moves to the next word, and returns true, or returns false if there
+   * are no more.
+   */
+  public boolean advance () {
+    if (done) return false;
+    if (!started) {
+      started = true;
+      if (height() < min - length) {
+        done = true;
+        return false;
+      }
+      if (terminal() && matches()) return true;
+    }
+    while (true) {
+      if (down()) {
+        if (height() < min - length) {
+          up();
+        } else if (terminal() && matches()) {
+          return true;
+        }
+      } else if (length == base) {
+        done = true;
+        return false;
+      } else {
+        up();
+      }
+    }
+  }
+
+  /**
+   * The current word is path()[0..length()). The array belongs to the
+   * cursor, and changes as it moves.
+   */
+  public char[] path () {
+    return path;
+  }
+
+  public int length () {
+    return length;
+  }
+
+  /**
+   * The current word, as a new String.
+   */
+  public String word () {
+    return new String(path, 0, length);
+  }
+
+  private boolean matches () {
+    final int m = s.length();
+    switch (mode) {
+      case SUFFIX:
+        if (m > length) return false;
+        for (int i = 0; i < m; i++) {
+          if (path[length - m + i] != s.charAt(i)) return false;
+        }
+        return true;
+      case SUBSTRING:
+        outer:
+        for (int i = 0; i + m <= length; i++) {
+          for (int j = 0; j < m; j++) {
+            if (path[i + j] != s.charAt(j)) continue outer;
+          }
+          return true;
+        }
+        return false;
+      case SUBSEQUENCE:
+        int j = 0;
+        for (int i = 0; i < length && j < m; i++) {
+          if (path[i] == s.charAt(j)) j++;
+        }
+        return j == m;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * The rest of the words, as Strings, made one at a time as they're asked
+   * for.
+   */
+  public Iterator<String> strings () {
+    return new Iterator<String>() {
+      private String head = advance() ? word() : null;
+
+      public boolean hasNext () {
+        return head != null;
+      }
+
+      public String next () {
+        if (head == null) throw new NoSuchElementException();
+        String w = head;
+        head = advance() ? word() : null;
+        return w;
+      }
+
+      public void remove () {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * The rest of the words, in a list.
+   */
+  public List<String> toList () {
+    ArrayList<String> results = new ArrayList<String>();
+    while (advance()) results.add(word());
+    return results;
+  }
+}
@@ -0,0 +1,316 @@
+package norm.jvm;
+
+import cmu.arktweetnlp.Twokenize;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * Tokenises tweets exactly like Twokenize.tokenizeRawTweetText, only a lot
+ * faster.
+ *
+ * Twokenize squeezes whitespace, splits off edge punctuation with a couple
+ * of regex replaceAlls, then runs its big Protected regex over the whole
+ * tweet and splits whatever's left on spaces. Here the squeezing and the
+ * edge punctuation splitting are done in two linear passes over a char[],
+ * and tokens are kept as offsets into that until the very end.
+ *
+ * The Protected regex stays (it's the definition of what a URL or an
+ * emoticon is, after all), but it only gets run over the words that could
+ * possibly contain a match. Every alternative in it needs at least one of a
+ * small set of trigger characters (see isTrigger), and no match contains a
+ * space (bar the char before an abbreviation like " U.S"). So a word with
+ * no trigger chars in it can't be part of a match and just becomes a token.
+ * Words that do have them get matched with the regex restricted to the word,
+ * with transparent bounds so lookarounds still see the whole tweet. Plain
+ * hashtags and at-mentions are common enough to get their own shortcut.
+ */
+public class TweetTokenizer {
+
+  private static final class State {
+    char[] squeezed = new char[256];
+    char[] chars    = new char[512];
+    int    length;
+    int[]  spans    = new int[128]; // start, end pairs
+    int    numTokens;
+    String text;                    // chars as a String, if the regex needed it
+    final Matcher protect = Twokenize.Protected.matcher("");
+
+    State () {
+      protect.useTransparentBounds(true);
+      protect.useAnchoringBounds(false);
+    }
+
+    void add (int start, int end) {
+      // same as String.trim
+      while (start < end && chars[start] <= ' ') start++;
+      while (end > start && chars[end - 1] <= ' ') end--;
+      if (start >= end) return;
+      if (2 * numTokens + 2 > spans.length) {
+        int[] ss = new int[spans.length * 2];
+        System.arraycopy(spans, 0, ss, 0, spans.length);
+        spans = ss;
+      }
+      spans[2 * numTokens] = start;
+      spans[2 * numTokens + 1] = end;
+      numTokens++;
+    }
+  }
+
+  private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+    @Override
+    protected State initialValue() {
+      return new State();
+    }
+  };
+
+  /**
+   * Same as Twokenize.tokenizeRawTweetText.
+   */
+  public static List<String> tokenize (String text) {
+    State s = run(text);
+    List<String> result = new ArrayList<String>(s.numTokens);
+    for (int t = 0; t < s.numTokens; t++) {
+      int start = s.spans[2 * t];
+      result.add(new String(s.chars, start, s.spans[2 * t + 1] - start));
+    }
+    return result;
+  }
+
+  /**
+   * Same as tokenize, but as spans over one copy of the (unescaped and
+   * squeezed and so on) text, rather than as Strings.
+   */
+  public static Tokens scan (String text) {
+    State s = run(text);
+    return new Tokens(Arrays.copyOf(s.chars, s.length), Arrays.copyOf(s.spans, 2 * s.numTokens), s.numTokens);
+  }
+
+  private static State run (String text) {
+    // unescaping entities is rare enough to leave to commons-lang
+    if (text.indexOf('&') >= 0) text = Twokenize.normalizeTextForTagger(text);
+
+    State s = state.get();
+    s.numTokens = 0;
+    s.text = null;
+    squeeze(s, text);
+    splitEdgePunct(s);
+
+    final char[] cs = s.chars;
+    final int n = s.length;
+    int ws = 0;
+    while (ws < n) {
+      int we = ws;
+      boolean trigger = false;
+      while (we < n && cs[we] != ' ') {
+        trigger |= isTrigger(cs[we]);
+        we++;
+      }
+      if (!trigger || isTag(cs, ws, we)) {
+        s.add(ws, we);
+      } else {
+        protect(s, ws, we);
+      }
+      ws = we + 1;
+    }
+    return s;
+  }
+
+  /**
+   * Same as replacing (.)\\1\\1\\1+ with $1$1$1 and then (..)\\1\\1+ with
+   * $1$1, i.e. words/remove-repetition, but returns text itself if there's
+   * nothing to remove.
+   */
+  public static String removeRepetition (String text) {
+    return collapse(collapse(text, 1, 3, 3), 2, 2, 2);
+  }
+
+  // replaceAll of a group of k code points repeated at least minCopies more
+  // times with keep copies of the group
+  private static String collapse (String text, int k, int minCopies, int keep) {
+    final int n = text.length();
+    StringBuilder sb = null;
+    int last = 0;
+    int i = 0;
+    while (i < n) {
+      // . doesn't match line terminators
+      int g = i;
+      for (int j = 0; j < k && g < n && !isLineTerminator(text.charAt(g)); j++) {
+        g += Character.charCount(Character.codePointAt(text, g));
+      }
+      if (Character.codePointCount(text, i, g) == k) {
+        int w = g - i;
+        int e = g;
+        int copies = 0;
+        while (e + w <= n && text.regionMatches(i, text, e, w)) {
+          e += w;
+          copies++;
+        }
+        if (copies >= minCopies) {
+          if (sb == null) sb = new StringBuilder(n);
+          sb.append(text, last, i);
+          for (int c = 0; c < keep; c++) sb.append(text, i, g);
+          last = i = e;
+          continue;
+        }
+      }
+      i++;
+    }
+    if (sb == null) return text;
+    return sb.append(text, last, n).toString();
+  }
+
+  // Twokenize.squeezeWhitespace
+  private static void squeeze (State s, String text) {
+    final int len = text.length();
+    if (s.squeezed.length < len) s.squeezed = new char[len * 2];
+    char[] in = s.squeezed;
+    text.getChars(0, len, in, 0);
+
+    int n = 0;
+    boolean space = false;
+    for (int i = 0; i < len; i++) {
+      char c = in[i];
+      if (isSpace(c)) {
+        space = true;
+      } else {
+        if (space) in[n++] = ' ';
+        space = false;
+        in[n++] = c;
+      }
+    }
+    if (space) in[n++] = ' ';
+
+    // String.trim
+    int start = 0;
+    while (start < n && in[start] <= ' ') start++;
+    while (n > start && in[n - 1] <= ' ') n--;
+    s.length = n - start;
+    if (start > 0) System.arraycopy(in, start, in, 0, n - start);
+  }
+
+  // [\s\p{Zs}]
+  private static boolean isSpace (char c) {
+    switch (c) {
+      case ' ': case '\t': case '\n': case 0x0b: case '\f': case '\r':
+        return true;
+      default:
+        return c > 0x7f && Character.getType(c) == Character.SPACE_SEPARATOR;
+    }
+  }
+
+  // Twokenize.splitEdgePunct. Both of its regexes only ever match a maximal
+  // run of edge punctuation, which gets a space before it if it's stuck to
+  // the end of a word and after it if it's stuck to the start of one.
+  private static void splitEdgePunct (State s) {
+    final char[] in = s.squeezed;
+    final int len = s.length;
+    if (s.chars.length < 2 * len) s.chars = new char[len * 2];
+    final char[] out = s.chars;
+
+    int n = 0;
+    int i = 0;
+    while (i < len) {
+      if (!isEdgePunct(in[i])) {
+        out[n++] = in[i++];
+        continue;
+      }
+      int a = i;
+      while (i < len && isEdgePunct(in[i])) i++;
+      boolean left = (a == 0 || isOffEdge(in[a - 1])) && i < len && isContent(in[i]);
+      boolean right = a > 0 && isContent(in[a - 1])
+        && (i == len || isOffEdge(in[i]) || (i == len - 1 && isLineTerminator(in[i])));
+      if (right) out[n++] = ' ';
+      System.arraycopy(in, a, out, n, i - a);
+      n += i - a;
+      if (left) out[n++] = ' ';
+    }
+    s.length = n;
+  }
+
+  // Twokenize.edgePunctChars
+  private static boolean isEdgePunct (char c) {
+    switch (c) {
+      case '\'': case '"': case '“': case '”': case '‘': case '’': case '«': case '»':
+      case '{': case '}': case '(': case ')': case '[': case ']': case '*': case '&':
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // Twokenize.notEdgePunct
+  private static boolean isContent (char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+  }
+
+  // Twokenize.offEdge, minus the anchors. Whitespace has been squeezed to
+  // spaces by now.
+  private static boolean isOffEdge (char c) {
+    return c == ':' || c == ';' || c == ' ' || c == '.' || c == ',';
+  }
+
+  // the ones $ can match before at the end of the input
+  private static boolean isLineTerminator (char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
+  // Every alternative in Twokenize.Protected has to match at least one of
+  // these, e.g. the eyes of an emoticon or the dot in a URL or an
+  // abbreviation.
+  static boolean isTrigger (char c) {
+    if (c < 0x80) {
+      switch (c) {
+        case '<': case '>': case ':': case ';': case '=': case '.': case ',': case '@':
+        case '#': case '&': case '\'': case '"': case '?': case '!': case '(': case '-':
+        case '~': case '*': case '\\': case '_':
+          return true;
+        default:
+          return false;
+      }
+    }
+    switch (c) {
+      case '＼': case 'ƪ': case 'Ԅ': case '（': case 'ヽ': case '―': case '—': case '–':
+      case '“': case '”': case '‘': case '’': case '′': case '…': case '＠':
+      case '♫': case '♪': case '★': case '☆': case '♥': case '❤': case '♡':
+        return true;
+      default:
+        return (c >= '\u2190' && c <= '\u21ff')  // \p{InArrows}
+          || (c >= '\u2639' && c <= '\u263b')
+          || (c >= '\ue001' && c <= '\uebbb');
+    }
+  }
+
+  // #foo or @foo, which can only match Hashtag or AtMention. @ can be the
+  // eye of an emoticon like @_@, so it mustn't be followed by _.
+  private static boolean isTag (char[] cs, int ws, int we) {
+    if (we - ws < 2 || (cs[ws] != '#' && cs[ws] != '@')) return false;
+    if (cs[ws] == '@' && cs[ws + 1] == '_') return false;
+    for (int i = ws + 1; i < we; i++) {
+      char c = cs[i];
+      if (!(isContent(c) || c == '_')) return false;
+    }
+    return true;
+  }
+
+  // the Protected matches in the word [ws, we) are tokens on their own, and
+  // the bits between them are the rest
+  private static void protect (State s, int ws, int we) {
+    if (s.text == null) {
+      s.text = new String(s.chars, 0, s.length);
+    }
+    Matcher m = s.protect;
+    m.reset(s.text);
+    // an abbreviation can start with the space before the word
+    m.region(ws > 0 ? ws - 1 : 0, we);
+    int pos = ws;
+    while (m.find()) {
+      if (m.start() == m.end()) continue;
+      s.add(pos, m.start());
+      s.add(m.start(), m.end());
+      pos = m.end();
+    }
+    s.add(pos, we);
+  }
+}
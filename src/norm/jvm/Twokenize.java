@@ -153,7 +153,7 @@ public class Twokenize {
 
     // We will be tokenizing using these regexps as delimiters
     // Additionally, these things are "protected", meaning they shouldn't be further split themselves.
-    static Pattern Protected  = Pattern.compile(
+    public static Pattern Protected  = Pattern.compile(
             OR(
                     Hearts,
                     url,
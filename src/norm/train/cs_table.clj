@@ -0,0 +1,68 @@
+(ns norm.train.cs-table
+  (:import [norm.jvm ConfusionSetTable ConfusionSetTable$Builder])
+  (:require [norm.config :as config]
+            [norm.io :as io]
+            [norm.data :as data]
+            [norm.trie :as trie]
+            [norm.utils :as utils]
+            [norm.progress :as progress]
+            [norm.words :as words]
+            [norm.train.nmd :as nmd]))
+
+(defn confusion-set-entry
+  "word's raw confusion set, in the same order as words/raw-confusion-set,
+  as a tuple of [candidates lex-dists phon-dists]. Candidates which were
+  found by sound have a lex-dist of -1, and vice versa."
+  [dict dm-dict lex-dist phon-dist word]
+  (let [code  (words/double-metaphone word)
+        phon  (words/sounds-like dm-dict phon-dist word)
+        lex   (trie/find-within dict word lex-dist)]
+    [(into-array String (concat phon lex))
+     (byte-array (map byte (concat (repeat (count phon) -1)
+                                   (map #(words/levenshtein word %) lex))))
+     (byte-array (map byte (concat (map #(words/levenshtein code (words/double-metaphone %)) phon)
+                                   (repeat (count lex) -1))))]))
+
+(defn build-table
+  "precomputes the raw confusion sets of oov_words over dict and dm-dict.
+  Increments the counter for every word processed."
+  [dict dm-dict lex-dist phon-dist counter* oov_words]
+  (let [b (ConfusionSetTable$Builder. dict lex-dist phon-dist)]
+    (dorun
+      (utils/pmapall
+        (fn [word]
+          (let [[cs lex phon] (confusion-set-entry dict dm-dict lex-dist phon-dist word)]
+            (.add b word cs lex phon)
+            (counter* 1)))
+        oov_words))
+    (.build b)))
+
+(defn top-oov-words
+  "the n most frequent of the counted words which aren't in dict"
+  [^norm.jvm.ITrie dict n word_freqs]
+  (->> word_freqs
+    (remove (fn [[word _]] (.contains dict word)))
+    (sort-by (comp - second))
+    (take n)
+    (map first)))
+
+(defn train! []
+  (data/verify-readable! :twt :dict :dm-dict)
+
+  (data/load-and-bind [:dict :dm-dict]
+    (let [lex_dist  (config/opt :confusion-sets :lex-dist)
+          phon_dist (config/opt :confusion-sets :phon-dist)
+          size      (config/opt :train :cs-table :size)]
+      (utils/with-atoms [oov_words]
+        (io/open [:rl in (data/get-path :twt)]
+          (println "Counting words...")
+          (progress/monitor [#(str "\t" (.progress in))]
+            (reset! oov_words (top-oov-words data/DICT size (nmd/count-corpus-words! in)))))
+
+        (let [counter* (utils/counter)
+              table    (do
+                         (println "Generating confusion sets...")
+                         (progress/monitor [#(str "\t" (counter*))]
+                           (build-table data/DICT data/DM-DICT lex_dist phon_dist counter* @oov_words)))]
+          (io/doing-done (str "Writing " table " to " io/OUT_PATH)
+            (.save ^ConfusionSetTable table io/OUT_PATH)))))))
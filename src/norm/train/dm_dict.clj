@@ -1,5 +1,6 @@
 (ns norm.train.dm-dict
   (require [norm.data :as data]
+           [norm.trie :as trie]
            [norm.words :as words]
            [norm.io :as io]))
 
@@ -13,4 +14,4 @@
           flatten
           (group-by
             words/double-metaphone
-            (.words data/DICT)))))))
\ No newline at end of file
+            (trie/words data/DICT)))))))
\ No newline at end of file
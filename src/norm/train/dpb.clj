@@ -1,53 +1,55 @@
 (ns norm.train.dpb
-  (:require [clojure.data.xml :as xml]
-            [norm.config :as config]
+  (:require [norm.config :as config]
             [norm.data :as data]
             [norm.io :as io]
             [norm.progress :as progress]
+            [norm.trie :as trie]
             [norm.utils :as utils]))
 
 
 ;;;; parsing xml ;;;;
 
-(defn get-kids-by-tag [tag elem]
-  (filter #(= tag (:tag %)) (:content elem)))
-
-(defn documents [in]
-  (get-kids-by-tag :DOC (xml/parse in)))
-
-(defn sentences [document]
-  (mapcat (partial get-kids-by-tag :sentence) (get-kids-by-tag :sentences document)))
-
-(defn tokens [sentence]
-  (mapv clojure.string/lower-case
-    (for [telem (mapcat (partial get-kids-by-tag :token) (get-kids-by-tag :tokens sentence))]
-      (first (:content (first (:content telem)))))))
-
-(defn dependencies [sentence]
-  (mapcat :content (get-kids-by-tag :basic-dependencies sentence)))
-
-(defn extract-untyped-deps! [^norm.jvm.Trie DICT sentence-counter* dep-counter* store-fn* sentence]
+(defn sentence-reader
+  "A norm.jvm.CoreNlpXmlReader over the CoreNLP xml from in. Call
+  (.nextSentence r) to move it on to each sentence in turn."
+  [in]
+  (norm.jvm.CoreNlpXmlReader. in))
+
+(defn tokens
+  "the tokens of the reader's current sentence, in vector format."
+  [^norm.jvm.CoreNlpXmlReader sentence]
+  (vec (for [i (range (.tokenCount sentence))] (.token sentence i))))
+
+(defn dependencies
+  "the basic dependencies of the reader's current sentence, as
+  [governor dependent] index pairs."
+  [^norm.jvm.CoreNlpXmlReader sentence]
+  (vec (for [k (range (.depCount sentence))] [(.governor sentence k) (.dependent sentence k)])))
+
+(defn extract-untyped-deps!
+  "stores the dependencies of the reader's current sentence wherein the
+  dependent is OOV and the governor is IV."
+  [^norm.jvm.ITrie DICT sentence-counter* dep-counter* store-fn* ^norm.jvm.CoreNlpXmlReader sentence]
   (sentence-counter* 1)
-  (let [tkns (tokens sentence)]
-    (doseq [{[{[a] :content} {[b] :content}] :content {type :type} :attrs} (dependencies sentence)]
-      (when (not= type "root") 
-        (try
-          (let [i (Integer. (.trim a)) j (Integer. (.trim b)) offset (- i j) ]
-            (when (and 
-                     ; ensure, just in case, that i and j are >= 0
-                    (every? pos? [i j])
-                    ; also we only care about tokens up to three
-                    ; places removed from the target word
-                    (<= (Math/abs offset) 3))
-              ; get the words and check they're in the dictionary
-              (let [w1 (tkns (dec i)) w2 (tkns (dec j))]
-                (when (and 
-                        (.contains DICT ^String w1)
-                        (not (.contains DICT ^String w2)))
-                  ; replace words with unique IDs
-                  (store-fn* [w1 offset])
-                  (dep-counter* 1)))))
-          (catch NumberFormatException e (do nil)))))))
+  (let [n (.tokenCount sentence)]
+    (dotimes [k (.depCount sentence)]
+      (let [i (.governor sentence k) j (.dependent sentence k) offset (- i j)]
+        (when (and
+                ; ensure that i and j are actual tokens (not the root, or
+                ; something that wasn't a number)
+                (< 0 i (inc n))
+                (< 0 j (inc n))
+                ; also we only care about tokens up to three
+                ; places removed from the target word
+                (<= (Math/abs offset) 3))
+          ; get the words and check they're in the dictionary
+          (let [w1 (.token sentence (dec i)) w2 (.token sentence (dec j))]
+            (when (and
+                    (.contains DICT w1)
+                    (not (.contains DICT w2)))
+              ; replace words with unique IDs
+              (store-fn* [w1 offset])
+              (dep-counter* 1))))))))
 
 (defn filename-filter [^java.io.File file]
   (.. file getName (startsWith "nyt")))
@@ -55,13 +57,25 @@
 (defn get-absolute-path [^java.io.File file]
   (.getAbsolutePath file))
 
-(defn store! [iv_freq_maps* [w off]]
-  (swap! (iv_freq_maps* w) update-in [off] (fnil inc 0)))
+(defn dep-key
+  "packs an iv word id and an offset (-3 to 3) into one long"
+  [iv_id off]
+  (+ (bit-shift-left (long iv_id) 3) (+ off 3)))
+
+(defn unpack-dep-key
+  "the inverse of dep-key. returns [iv_id off]"
+  [k]
+  [(bit-shift-right (long k) 3) (- (bit-and (long k) 7) 3)])
+
+(defn store! [iv_ids dep-counter* [w off]]
+  (dep-counter* (dep-key (iv_ids w) off) 1))
 
-(defn handle-file! [sentence-handler! f]
-  (doseq [document (documents f)]
-    (doseq [sentence (sentences document)]
-      (sentence-handler! sentence))))
+(defn handle-file!
+  "calls sentence-handler! with a reader on each sentence of f in turn"
+  [sentence-handler! f]
+  (let [^norm.jvm.CoreNlpXmlReader r (sentence-reader f)]
+    (while (.nextSentence r)
+      (sentence-handler! r))))
 
 (defn dp [v n]
   (let [x (Math/pow 10 n)]
@@ -82,8 +96,10 @@
   (data/load-and-bind [:dict]
     (let [sentence-counter* (utils/counter)
           dep-counter*      (utils/counter)
-          iv_freq_maps*     (into {} (map vector (.words data/DICT) (repeatedly #(atom {}))))
-          store!_           (partial store! iv_freq_maps*)
+          iv_words          (vec (trie/words data/DICT))
+          iv_ids            (zipmap iv_words (range))
+          iv-dep-counter*   (utils/long-counter)
+          store!_           (partial store! iv_ids iv-dep-counter*)
           n                 (config/opt :train :dpb :num-sents)
 
           files             (->> (data/get-path :nyt)
@@ -108,6 +124,7 @@
         (io/doing-done "writing to disk"
           (let [num_deps (dep-counter*)]
             (io/spit-tsv out
-              (for [[w freq_atom] (filter (comp not-empty deref last) iv_freq_maps*)]
-                (flatten [w (for [[k v] @freq_atom]
-                              [k (/ (double v) num_deps)])])))))))))
+              (for [[iv_id deps] (group-by (comp first unpack-dep-key key) (iv-dep-counter*))]
+                (flatten [(iv_words iv_id)
+                          (for [[k v] deps]
+                            [(second (unpack-dep-key k)) (/ (double v) num_deps)])])))))))))
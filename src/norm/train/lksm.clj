@@ -35,7 +35,10 @@
   which takes a token list and an index and returns an lm-ranked confusion set."
   [DICT DPB feature-ids* iv-ids* get-confusion-set tweet-counter* line]
   (tweet-counter* 1)
-  (let [tokens (words/tokenise-lower line)]
+  (let [tokens    (words/tokenise-lower line)
+        dpb-score (if (instance? norm.jvm.DependencyBank DPB)
+                    (fn [gov off] (.score ^norm.jvm.DependencyBank DPB ^String gov (int off)))
+                    DPB)]
     (filter identity
       (apply concat
         (for [i (range (count tokens))]
@@ -51,7 +54,7 @@
                   (feature-ids* [0 (iv-ids* gov)])
                   (feature-ids* [1 (iv-ids* dep)])
                   (feature-ids* off)
-                  (DPB gov off)
+                  (dpb-score gov off)
                 ]
               ))))))))
 
@@ -86,7 +89,7 @@
   as positive ones. Writes them to tmpout in libsvm format."
   [to-svm-format feature-predicate tmpin tmpout]
   (doseq [line  (->> tmpin
-                  line-seq
+                  io/lines
                   (filter not-empty)
                   (map read-string)
                   (filter feature-predicate)
@@ -99,9 +102,10 @@
   and returns an lm-ranked confusion set with the settings specified
   by the arguments."
   [dict dm-dict tlm lex-dist phon-dist n]
-  (let [get-cs (memoize (partial words/raw-confusion-set dict dm-dict lex-dist phon-dist))]
+  (let [get-cs (utils/bounded-memoize (config/opt :confusion-sets :cache-size)
+                 (partial words/raw-confusion-set dict dm-dict lex-dist phon-dist))]
     (fn [tokens i]
-      (take n (words/lm-ranked-confusion-set tlm get-cs tokens i)))))
+      (words/lm-ranked-confusion-set tlm get-cs tokens i (constantly n)))))
 
 
 (defn train! []
@@ -133,11 +137,11 @@
             store-feats-2!_           (partial store-features:second-pass! encode-feat_ legit-feat?_)]
 
         (println "Extracting feature-vectors: first pass")
-        (io/open [:r in (data/get-path :twt-c)
+        (io/open [:rl in (data/get-path :twt-c)
                   :w out tmp1_path]
           (progress/monitor [#(str "\t" (tweet-counter*) " tweets processed") 6000]
             (->> in
-              (line-seq)
+              (io/lines)
               (filter not-empty)
               (take num_tweets)
               (utils/pmapall-chunked chunksize extract-feats!_)
@@ -155,7 +159,7 @@
             (io/spit-tsv out (seq (iv-ids*)))))
         
         (println "Extracting feature-vectors: second pass")
-        (io/open [:r in tmp1_path
+        (io/open [:rl in tmp1_path
                   :w out tmp2_path]
           (progress/monitor [#(str "\t" (.progress in)) 1000]
             (store-feats-2!_ in out)))))
@@ -1,5 +1,5 @@
 (ns norm.train.nmd
-  (:import [uk.ac.susx.mlcl.lib.collect SparseDoubleVector]
+  (:import [norm.jvm ContextAccumulator]
            [uk.ac.susx.mlcl.byblo.measures
                          AbstractMIProximity
                          AbstractProximity
@@ -33,39 +33,38 @@
   (re-matches #"\d?[a-z]+[a-z0-9]*'?[a-z]+" s))
 
 (defn count-corpus-words!
-  "counts the words in the given input streams.
+  "counts the words in the lines from in (see io/lines).
   returns a seq of [word freq] pairs"
   [in]
-  (let [word_freqs* (utils/atomised-map-counter)
-        process-tweet* (fn [line]
+  (let [word_freqs* (utils/string-counter)
+        process-tweet* (fn [^String line]
                          (doseq [word (filter word? (words/tokenise (.toLowerCase line)))]
                            (word_freqs* word 1)))]
     (->> in
-      line-seq
+      io/lines
       (filter not-empty)
       (utils/pmapall-chunked 1000 process-tweet*)
       dorun)
 
-    (for [[word freq_atom] (seq (word_freqs*))]
-      [word @freq_atom])))
+    (word_freqs*)))
 
 (defn stratify-counted-words!
   "Takes a dictionary, an oov_predicate which should accept a [word, freq] pair,
   a counter for progress tracking, and a seq of [word, freq] pairs. returns
   a [iv_trie, oov_words_list] pair"
-  [^norm.jvm.Trie DICT oov_predicate counter* word_freqs]
+  [^norm.jvm.ITrie DICT oov_predicate counter* word_freqs]
   (loop [[[word freq :as wf] & more] word_freqs
-         iv_trie     (trie/trie)
+         iv_words    (transient [])
          oov_words   (transient [])]
     (counter* 1)
     (if word
       (if (.contains DICT word)
-        (recur more (conj iv_trie wf) oov_words)
-        (recur more iv_trie
+        (recur more (conj! iv_words wf) oov_words)
+        (recur more iv_words
           (if (oov_predicate wf)
             (conj! oov_words word)
             oov_words)))
-      [(persistent! oov_words) iv_trie])))
+      [(persistent! oov_words) (trie/from-sorted-parallel (sort-by first (persistent! iv_words)))])))
 
 (defn get-confusion-set
   "Takes a bunch of parameters and a word, and returns a confusion set
@@ -84,15 +83,14 @@
   (let [doit (fn [oov_word] (counter* 1) [oov_word (get-cs oov_word)])]
     (into {} (utils/pmapall doit oov_words))))
 
-(defn get-context-accumulator-map
+(defn get-context-word-ids
   "takes a map from words to confusion sets, and returns a map
   from all words in all confusion sets plus those which are keys
-  in the input map to atoms containing empty maps."
+  in the input map to unique ids, for use with a ContextAccumulator."
   [oov_cs_map]
-  (into {} 
-    (map vector 
-      (into #{} (flatten (seq oov_cs_map)))
-      (repeatedly #(atom {})))))
+  (zipmap
+    (into #{} (flatten (seq oov_cs_map)))
+    (range)))
 
 (defn context-left
   "returns indexed left n-gram context for the token at position i."
@@ -119,67 +117,54 @@
 
 (defn store-context!
   "takes a line (presumably a tweet of some sort) and extracts contextual features
-  which get stored in ctx-acc*. Also their frequencies get stored in feature-freqs*"
-  [n_gram_order window_size iv_ids ctx-acc* feature-freqs* feature-id* line]
+  for the words in ctx_ids, which get counted in ctx-acc. feature-id* should
+  count the features' frequencies."
+  [n_gram_order window_size iv_ids ctx_ids ^ContextAccumulator ctx-acc feature-id* line]
   (let [tokens (words/tokenise (.toLowerCase line))
         ngrams (words/n-grams n_gram_order (map iv_ids tokens))]
     (doseq [[word i] (map vector tokens (range))]
-      (when (ctx-acc* word)
+      (when-let [ctx_id (ctx_ids word)]
         (doseq [fid (->> (context n_gram_order window_size ngrams i)
                       (filter no-nils?)
                       (map (comp feature-id* int-array)))]
-          (swap! (@feature-freqs* fid) inc)
-          (swap! (ctx-acc* word) update-in [fid] (fnil inc 0)))))))
-
-(defn feature-id-getter! 
-  "Takes an an atom containing
-  a vector of feature frequencies. Returns a function that returns
-  a unique id for a given int-array feature. If the feature has not been
-  seen before, it adds an atom containing
-  the value 0 in feature_freqs*."
-  [feature_freqs*]
-  (let [id-getter (norm.jvm.IntVectorIdGetter.)
-        add_atom_callback (fn [_]
-                            (swap! feature_freqs* conj (atom 0)))]
-    (fn [ints]
-      (or (.get id-getter ints)
-          (.put id-getter ints add_atom_callback)))))
+          (.add ctx-acc (int ctx_id) (int fid)))))))
+
+(defn feature-id-getter!
+  "Takes a norm.jvm.IntTupleIds. Returns a function that returns
+  a unique id for a given int-array feature, and counts how many times
+  each feature has been seen. Call (.frequencies ids) to get the counts."
+  [^norm.jvm.IntTupleIds ids]
+  (fn [^ints ints]
+    (.count ids ints)))
 
 (defn extract-all-context!
   "Extracts all contextual features from the lines in in for all oov and iv
-  words in oov_cs_map"
-  [n_gram_order window_size iv_ids ctx-acc* in]
-  (let [feature-freqs* (atom [])
-        feature-id*    (feature-id-getter! feature-freqs*)
+  words in oov_cs_map. Returns the features' frequencies, indexed by id."
+  [n_gram_order window_size iv_ids ctx_ids ctx-acc in]
+  (let [ids            (norm.jvm.IntTupleIds.)
+        feature-id*    (feature-id-getter! ids)
         handle-tweet!  (fn [line]
                          (store-context! n_gram_order window_size iv_ids
-                           ctx-acc* feature-freqs* feature-id* line))]
+                           ctx_ids ctx-acc feature-id* line))]
     ;; do the actual computation
-    (dorun (utils/pmapall-chunked 1000 handle-tweet! (filter not-empty (line-seq in))))
-    ;; return still-atmoised data structures
-    @feature-freqs*))
-
-(defn to-sdv
-  "converts a frequency distribution to a SparseDoubleVector
-  with the specified cardinality"
-  [freq_dist cardinality]
-  (if (zero? (count freq_dist))
-    (SparseDoubleVector. cardinality 0)
-    (let [^double sum  (reduce + (vals freq_dist))
-          ks   (int-array (sort (keys freq_dist)))
-          vs   (double-array (map freq_dist ks))
-          card cardinality
-          size (count ks)]
-      (SparseDoubleVector. ks vs card size))))
+    (dorun (utils/pmapall-chunked 1000 handle-tweet! (filter not-empty (io/lines in))))
+    ;; return the feature frequencies, indexed by feature id
+    (.frequencies ids)))
 
 (defn make-sdvs!
-  "converts the frequency distributions stored in all_context
-  to SparseDoubleVector objects with the specified cardinality.
-  increases counter for each sdv created."
-  [counter* cardinality all_context*]
-  (dorun
-    (utils/pmapall #(do (swap! % to-sdv cardinality) (counter* 1))
-      (vals all_context*))))
+  "converts the frequency distributions stored in ctx-acc to
+  SparseDoubleVector objects with the specified cardinality. Returns
+  a map from words to their vectors. increases counter for each sdv
+  created."
+  [counter* cardinality ctx_ids ^ContextAccumulator ctx-acc]
+  (into {}
+    (utils/pmapall
+      (fn [[word id]]
+        (let [sdv (.toVector ctx-acc (int id) (int cardinality))]
+          (.clear ctx-acc (int id))
+          (counter* 1)
+          [word sdv]))
+      ctx_ids)))
 
 
 
@@ -189,10 +174,10 @@
   word and the item from its confusion set whose distributional proximity to
   the oov word is lowest (i.e. closest)"
   [^AbstractProximity measure all_context* oov_word confusion_set]
-  (let [oov_context @(all_context* oov_word)
+  (let [oov_context (all_context* oov_word)
         left_result (.left measure oov_context)
         candidates  (for [iv_word confusion_set]
-                      (let [iv_context @(all_context* iv_word)
+                      (let [iv_context (all_context* iv_word)
                             right_result (.right measure iv_context)
                             shared_result (.shared measure oov_context iv_context)
                             combined (.combine measure shared_result left_result right_result)]
@@ -217,18 +202,16 @@
   "Sorts a collection of pairs of strings according to their
   similarity as defined by the string subsequence kernel."
   [pairs]
-  (let [kernel (cc.mallet.types.StringKernel.)
-        ssk (fn [^String s ^String t] (.K kernel s t))]
-    (map rest
-      (sort
-        (for [[oov iv] pairs]
-          [(- (ssk oov iv)) oov iv])))))
+  (map rest
+    (sort
+      (for [[oov iv] pairs]
+        [(- (words/ssk oov iv)) oov iv]))))
 
 (defn train! []
   (data/verify-readable! :twt :dict :dm-dict)
 
   (data/load-and-bind [:dict :dm-dict]
-    (let [iv_ids           (into {} (map vector (.words data/DICT) (range)))
+    (let [iv_ids           (into {} (map vector (trie/words data/DICT) (range)))
           twt_path         (data/get-path :twt)
           lex_dist         (config/opt :confusion-sets :lex-dist)
           phon_dist        (config/opt :confusion-sets :phon-dist)
@@ -244,9 +227,9 @@
                                (<= min_freq freq)
                                (<= min_length (count word))))]
 
-      (utils/with-atoms [counts oov_words iv_trie oov_cs_map all_context* feature_freqs pairs]
+      (utils/with-atoms [counts oov_words iv_trie oov_cs_map ctx_ids ctx_acc all_context* feature_freqs pairs]
         ; get our words from the corpus in the relevat formats
-        (io/open [:r in twt_path]
+        (io/open [:rl in twt_path]
           (println "Counting words...")
           (progress/monitor [#(str "\t" (.progress in))]
             (reset! counts (count-corpus-words! in))))
@@ -272,25 +255,27 @@
         (reset! oov_words nil)
         (reset! iv_trie nil)
 
-        (io/doing-done "Generating context accumulator map"
-          (reset! all_context* (get-context-accumulator-map @oov_cs_map)))
+        (io/doing-done "Generating context accumulator"
+          (reset! ctx_ids (get-context-word-ids @oov_cs_map))
+          (reset! ctx_acc (ContextAccumulator. (count @ctx_ids))))
         
-        (io/open [:r in twt_path]
+        (io/open [:rl in twt_path]
           (println "Extracting all contextual features...")
           (progress/monitor [#(str "\t" (.progress in)) 2000]
             (reset! feature_freqs
-              (extract-all-context! n_gram_order window_size iv_ids @all_context* in))))
+              (extract-all-context! n_gram_order window_size iv_ids @ctx_ids @ctx_acc in))))
 
         (let [counter* (utils/counter)]
           (println "Converting feature frequency distributions to sparse vectors...")
           (progress/monitor [#(str "\t" (counter*))]
-            (make-sdvs! counter* (count @feature_freqs) @all_context*)))
+            (reset! all_context* (make-sdvs! counter* (count @feature_freqs) @ctx_ids @ctx_acc))
+            (reset! ctx_acc nil)))
 
         (let [counter* (utils/counter)
               measure (eval (read-string (str "(uk.ac.susx.mlcl.byblo.measures."measure_type".)")))]
 
           (when (instance? AbstractMIProximity measure)
-            (reset! feature_freqs (double-array (map deref @feature_freqs)))
+            (reset! feature_freqs (double-array (seq @feature_freqs)))
             (doto measure
               (.setFeatureFrequencies @feature_freqs)
               (.setFeatureFrequencySum (reduce + @feature_freqs))))
@@ -21,10 +21,10 @@
   (data/verify-readable! :dict)
 
   (data/load-and-bind [:dict]
-    (io/open [:r in (data/get-path :twt)
+    (io/open [:rl in (data/get-path :twt)
               :w out io/OUT_PATH]
       (progress/monitor [#(str "Filtering tweets ... " (.progress in) "%")]
-        (doseq [line (->> (line-seq in)
+        (doseq [line (->> (io/lines in)
                        (utils/pmapall-chunked 10000 (partial ensure-clean data/DICT))
                        (filter identity))]
           (.write out (str (words/remove-punct-repetition line) "\n")))))))
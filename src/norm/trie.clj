@@ -5,6 +5,47 @@
   ([] (norm.jvm.Trie.))
   ([args] (into (trie) args)))
 
+;; the entries given to the from-sorted fns as parallel arrays
+(defn- sorted-arrays [entries]
+  (let [entries (vec entries)
+        n       (count entries)
+        ws      (make-array String n)
+        fs      (long-array n)
+        ds      (object-array n)]
+    (dotimes [i n]
+      (let [[w f d] (entries i)]
+        (aset ^objects ws i w)
+        (aset fs i (long f))
+        (aset ds i d)))
+    [ws fs ds]))
+
+(defn from-sorted
+  "builds a trie from [word freq data] entries (data is optional) which are
+  sorted by word. This is much faster than conj-ing them one at a time.
+  Entries for the same word are combined as they would be by conj."
+  [entries]
+  (let [b (norm.jvm.Trie$Builder.)]
+    (doseq [[w f d] entries]
+      (.add b ^String w (long f) d))
+    (.build b)))
+
+(defn from-sorted-parallel
+  "like from-sorted, but the subtries under each first character are
+  built in parallel."
+  [entries]
+  (let [[ws fs ds] (sorted-arrays entries)
+        pool       (java.util.concurrent.Executors/newFixedThreadPool
+                     (.. Runtime getRuntime availableProcessors))]
+    (try
+      (norm.jvm.Trie/fromSorted ^"[Ljava.lang.String;" ws ^longs fs ^objects ds pool)
+      (finally (.shutdown pool)))))
+
+(defn freeze
+  "returns a read-only, compact copy of t. Frozen tries support all the
+  lookups that tries do, but can't be added to or removed from."
+  [^norm.jvm.Trie t]
+  (norm.jvm.FrozenTrie. t))
+
 (defn contains
   "returns true if t contains s, false otherwise"
   [t s]
@@ -12,12 +53,12 @@
 
 (defn freq
   "The frequency of the given string in the given trie"
-  [^norm.jvm.Trie t s]
+  [^norm.jvm.ITrie t s]
   (.tfreq t s))
 
 (defn prefix-freq
   "The frequency of the given prefix in the given trie"
-  [^norm.jvm.Trie t s]
+  [^norm.jvm.ITrie t s]
   (.freq t s))
 
 (defn combine
@@ -40,8 +81,23 @@
   ([t s n] (into [] (.findNearest t s n (Integer/MAX_VALUE)))))
 
 (defn find-within
-  [t s d]
-  (into [] (.findNearest t s 0 d)))
+  "finds all the words in t within levenshtein distance d of s. If given a
+  pool (see search-pool), long searches are split up and run on it."
+  ([t s d]
+    (into [] (.findNearest t s 0 d)))
+  ([t s d pool]
+    (if pool
+      (into [] (.findNearestParallel ^norm.jvm.ITrie t s 0 d pool))
+      (find-within t s d))))
+
+(defn search-pool
+  "a pool of n daemon threads for find-within to run searches on"
+  [n]
+  (java.util.concurrent.Executors/newFixedThreadPool n
+    (reify java.util.concurrent.ThreadFactory
+      (newThread [_ r]
+        (doto (Thread. ^Runnable r "trie-search")
+          (.setDaemon true))))))
 
 (defn find-with-prefix [t prefix]
   (into [] (.findWithPrefix t prefix)))
@@ -54,3 +110,14 @@
 
 (defn find-with-suffix [t suffix]
   (into [] (.findWithSuffix t suffix)))
+
+(defn words
+  "a lazy seq of the words in t, in alphabetical order"
+  [^norm.jvm.ITrie t]
+  (iterator-seq (.iterateWords t)))
+
+(defn words-with-prefix
+  "a lazy seq of the words in t which start with prefix, in alphabetical
+  order. Only as much of the trie is walked as is needed."
+  [^norm.jvm.ITrie t prefix]
+  (iterator-seq (.iterateWithPrefix t prefix)))
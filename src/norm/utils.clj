@@ -119,15 +119,57 @@
                             (swap! m assoc k (atom (+ i start_value))))))))
   ([] (atomised-map-counter 0)))
 
+(defn string-counter
+  "returns a function which, when called with a string and an integer i,
+  increments a counter for the string by i. When called with only a string,
+  returns the string's count (0 if it hasn't been counted). When called
+  with no arguments, returns a snapshot of the counts as a seq of
+  [string count] pairs. Unlike the map counters, this one doesn't slow down
+  or lose counts when lots of threads use it at once."
+  []
+  (let [c (norm.jvm.StringCounts.)]
+    (fn ([] (seq c))
+        ([k] (.get c ^String k))
+        ([k i] (.add c ^String k (long i))))))
+
+(defn long-counter
+  "as string-counter, but for integer keys."
+  []
+  (let [c (norm.jvm.LongCounts.)]
+    (fn ([] (seq c))
+        ([k] (.get c (long k)))
+        ([k i] (.add c (long k) (long i))))))
+
+(defn bounded-memoize
+  "like memoize, but for fns of one argument, and only keeps (about)
+  max_size results. The ones that get asked for most often are the ones
+  that stay. The results live in a norm.jvm.BoundedCache, which can be
+  got at (for its hit/miss/eviction counts, say) with (:cache (meta f))."
+  [max_size f]
+  (let [cache (norm.jvm.BoundedCache. max_size)]
+    (with-meta
+      (fn [k]
+        (let [v (.get cache k cache)]
+          (if (identical? v cache)
+            (let [v (f k)]
+              (.put cache k v)
+              v)
+            v)))
+      {:cache cache})))
+
 (defn update-with
   "applies f to all the vals in m, returning a new map."
   [f m] (into {} (for [[k v] m] [k (f v)])))
 
+(defn percent-of
+  "p percent of n, rounded down"
+  [p n]
+  (int (-> n (/ 100) (* p))))
+
 (defn take-percent
   "takes p percent of coll"
   [p coll]
-  (let [n (count coll)]
-    (take (int (-> n (/ 100) (* p))) coll)))
+  (take (percent-of p (count coll)) coll))
 
 (defn indexify
   "returns tuple vectors where the first element is an index
@@ -1,6 +1,6 @@
 (ns norm.words
   "functions that operate on words, or create them."
-  (:import [norm.jvm StringComparators])
+  (:import [norm.jvm StringComparators StringKernel])
   (:require [norm.trie :as trie]
             [norm.utils :as utils]
             [clojure.string :as str]))
@@ -10,6 +10,17 @@
   [^String a ^String b]
   (StringComparators/levenshteinDistance a b))
 
+(defn levenshtein-within
+  "Calculates the levenshtein distance between a and b if it is no more
+  than d, otherwise returns (inc d)"
+  [^String a ^String b d]
+  (StringComparators/levenshteinDistanceBounded a b (int d)))
+
+(defn levenshtein-all
+  "Calculates the levenshtein distance between a and each of bs"
+  [^String a bs]
+  (vec (StringComparators/levenshteinDistances a ^"[Ljava.lang.String;" (into-array String bs))))
+
 (defn common-prefix-length
   "Calculates the length of the shared prefix of a and b"
   [^String a ^String b]
@@ -25,24 +36,33 @@
   [^String a ^String b]
   (StringComparators/longestCommonSubsequence a b))
 
-(let [kernel (cc.mallet.types.StringKernel.)]
+(defn longest-common-subsequence-all
+  "Calculates the length of the longest-common-subsequence of a and each of bs"
+  [^String a bs]
+  (vec (StringComparators/longestCommonSubsequences a ^"[Ljava.lang.String;" (into-array String bs))))
+
+(let [kernel (StringKernel.)]
   (defn ssk
-    "String subsequence kernel between a and b."
+    "String subsequence kernel between a and b. b's normalisation term is
+    cached, so b should be the dictionary word."
     [^String a ^String b]
-    (.K kernel a b)))
+    (.K kernel a b))
+
+  (defn ssk-all
+    "String subsequence kernel between a and each of bs."
+    [^String a bs]
+    (vec (.K kernel a ^"[Ljava.lang.String;" (into-array String bs)))))
 
 (defn remove-repetition
-  "reduces repetition a lot."
+  "reduces repetition a lot. Same as replacing #\"(.)\\1\\1\\1+\" with \"$1$1$1\"
+  and then #\"(..)\\1\\1+\" with \"$1$1\", just without the regexes."
   [s]
-  (-> s
-    (str/replace #"(.)\1\1\1+" "$1$1$1")
-    (str/replace #"(..)\1\1+" "$1$1")))
+  (norm.jvm.TweetTokenizer/removeRepetition s))
 
-(def double-metaphone
-  (let [dm (org.apache.commons.codec.language.DoubleMetaphone.)]
-    (fn [^String string]
-      (.doubleMetaphone dm
-        (remove-repetition string)))))
+(defn double-metaphone
+  "the double metaphone code of string, once repetition has been removed"
+  [^String string]
+  (norm.jvm.PhoneticIndex/code string))
 
 (defn word-tokenise [^String text]
   (->> text
@@ -54,11 +74,19 @@
 (defn tokenise [^String text]
   (->> text
     remove-repetition
-    cmu.arktweetnlp.Twokenize/tokenizeRawTweetText
+    norm.jvm.TweetTokenizer/tokenize
     (into [])))
 
 (def tokenise-lower (comp tokenise str/lower-case))
 
+(defn tokenise-spans
+  "like tokenise, but returns a norm.jvm.Tokens, which keeps the tokens as
+  spans over one char array rather than making a string for each one."
+  [^String text]
+  (norm.jvm.TweetTokenizer/scan (remove-repetition text)))
+
+(def tokenise-lower-spans (comp tokenise-spans str/lower-case))
+
 (defn remove-punct-repetition [^String line]
   (str/replace line #"(\p{Punct})\1\1\1+" "$1$1$1"))
 
@@ -102,21 +130,48 @@
             (rest (range))
             r))))
 
-(defn raw-confusion-set [dict dm-dict lex-dist phon-dist word]
-  (into []
-    (concat
-      (mapcat dm-dict (trie/find-within dm-dict (double-metaphone word) phon-dist))
-      (trie/find-within dict word lex-dist))))
-
-
-(defn lm-ranked-confusion-set [lm get-cs tokens i]
-  (let [cs            (get-cs (nth tokens i))
-        lctx          (context-left tokens 1 i)
-        rctx          (context-right tokens 1 i)
-        ; sort confusion set by the scores of sentences returned by lsfn
+(defn sounds-like
+  "the words in dm-dict whose double metaphone codes are within phon-dist
+  of word's. dm-dict is a norm.jvm.PhoneticIndex, or a trie from codes to
+  lists of words."
+  [dm-dict phon-dist ^String word]
+  (if (instance? norm.jvm.PhoneticIndex dm-dict)
+    (.words ^norm.jvm.PhoneticIndex dm-dict word (int phon-dist))
+    (mapcat dm-dict (trie/find-within dm-dict (double-metaphone word) phon-dist))))
+
+(defn raw-confusion-set
+  "the words in dict within lex-dist of word, and the words in dm-dict which
+  sound like it. The dict search is run on pool (see trie/search-pool), if
+  there is one."
+  ([dict dm-dict lex-dist phon-dist word]
+    (raw-confusion-set dict dm-dict lex-dist phon-dist nil word))
+  ([dict dm-dict lex-dist phon-dist pool word]
+    (into []
+      (concat
+        (sounds-like dm-dict phon-dist word)
+        (trie/find-within dict word lex-dist pool)))))
+
+
+(defn lm-ranked-confusion-set
+  "ranks the confusion set of the token at i by how well each word fits
+  between its neighbours, according to lm, best first. lm is a
+  norm.jvm.LmScorer (see data/load-tlm), or a fn which scores token lists.
+  If top is given, it's called with the size of the confusion set, and
+  only that many of the best are returned."
+  ([lm get-cs tokens i]
+    (lm-ranked-confusion-set lm get-cs tokens i identity))
+  ([lm get-cs tokens i top]
+    (let [cs   (get-cs (nth tokens i))
+          lctx (context-left tokens 1 i)
+          rctx (context-right tokens 1 i)
+          n    (min (count cs) (top (count cs)))]
+      (if (instance? norm.jvm.LmScorer lm)
+        (.best ^norm.jvm.LmScorer lm lctx (vec cs) rctx (int n))
+        ; sort confusion set by the scores of sentences returned by lm
         ; in descending order of goodness
-        get-trigram   (fn [w] (into (conj lctx w) rctx))]
-    (->> cs
-      (utils/mapply (comp - lm get-trigram))
-      (sort-by last)
-      (map first))))
+        (let [get-trigram (fn [w] (into (conj lctx w) rctx))]
+          (->> cs
+            (utils/mapply (comp - lm get-trigram))
+            (sort-by last)
+            (map first)
+            (take n)))))))
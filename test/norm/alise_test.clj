@@ -68,10 +68,35 @@
 
 (fact "`choose-candidate` picks a candidate from cs based on similarity to orig"
   (choose-candidate ["beans" "beers" "pleats" "bananas"] "beats")
-  => "beans")
+  => "beans"
+  ;; with scores worked out beforehand for a bigger confusion set
+  (let [scores (similarity-scores ["beans" "beers" "pleats" "bananas" "bats"] "beats")]
+    (choose-candidate ["beans" "beers" "pleats" "bananas"] "beats" scores) => "beans"
+    (choose-candidate ["pleats" "bananas"] "beats" scores) => "pleats"))
 
 (fact "`simple-normalise` replaces words in tkns with words in nmd, where possible"
   (simple-normalise dict {"mr" "good"} ["hello" "there" "mr" "sir" "!"])
   => ["hello" "there" "good" "sir" "!"])
 
+(fact "Normalisers can normalise a batch of token lists at once, on an executor if you like"
+  (let [tweets (into-array (map #(into-array String %) [["hello" "mr" "sir"] ["mr" "!"] []]))
+        simple (norm.jvm.Normaliser. (partial simple-normalise dict {"mr" "good"}) true)
+        not-simple (norm.jvm.Normaliser. (partial simple-normalise dict {"mr" "good"}))
+        pool (java.util.concurrent.Executors/newFixedThreadPool 2)
+        [a b c] [(.normaliseBatch simple tweets)
+                 (.normaliseBatch simple tweets pool)
+                 (.normaliseBatch not-simple tweets pool)]]
+    (.shutdown pool)
+    (map vec a) => [["hello" "good" "sir"] ["good" "!"] []]
+    (map vec b) => [["hello" "good" "sir"] ["good" "!"] []]
+    (map vec c) => [["hello" "good" "sir"] ["good" "!"] []]))
+
+(fact "`simple-normalise` works on token spans too, only making strings for replaced tokens"
+  (let [tkns (words/tokenise-spans "hello there mr sir!")
+        result (simple-normalise dict (trie/freeze (trie/trie [["mr" 1 "good"]])) tkns)]
+    result => ["hello" "there" "good" "sir" "!"]
+    (.isReplaced result 2) => true
+    (.isReplaced result 0) => false
+    (identical? tkns (simple-normalise dict {} tkns)) => true))
+
 
@@ -0,0 +1,43 @@
+(ns norm.cs-table-test
+  (:require [norm.trie :as trie]
+            [norm.words :as words]
+            [norm.alise :as alise])
+  (:use midje.sweet norm.train.cs-table))
+
+(def dict
+  (trie/freeze (trie/trie (map #(vector % 1) ["bananas" "bans" "beams" "beans" "beats" "been" "bends"
+                                              "hello" "helo" "panninis" "pans" "the" "then" "there"]))))
+
+(def dm-dict
+  (let [codes (group-by words/double-metaphone (keys dict))]
+    (norm.jvm.PhoneticIndex. dict
+      (into-array String (sort (keys codes)))
+      (into-array (map #(into-array String (codes %)) (sort (keys codes)))))))
+
+(def oovs ["beanz" "hellooo" "thr" "xyzzy"])
+
+(fact "`top-oov-words` takes the most frequent words which aren't in the dict"
+  (top-oov-words dict 2 [["beans" 10] ["beanz" 3] ["thr" 5] ["xyzzy" 1]]) => ["thr" "beanz"])
+
+(fact "a table gives the same confusion sets as `raw-confusion-set`, for any distances it was built for"
+  (let [table (build-table dict dm-dict 2 1 (fn [_]) oovs)
+        path  (str (java.io.File/createTempFile "cs-table" ".bin"))]
+    (.count table) => 4
+    (map #(.get table % 2 1) oovs) => (map #(words/raw-confusion-set dict dm-dict 2 1 %) oovs)
+    (map #(.get table % 1 0) oovs) => (map #(words/raw-confusion-set dict dm-dict 1 0 %) oovs)
+    (map #(.get table % 0 1) oovs) => (map #(words/raw-confusion-set dict dm-dict 0 1 %) oovs)
+    (.get table "beens" 2 1) => nil
+    (.get table "beanz" 3 1) => nil
+    (.save table path)
+    (let [loaded (norm.jvm.ConfusionSetTable/load path dict)]
+      (map #(.get loaded % 2 1) oovs) => (map #(.get table % 2 1) oovs))
+    (norm.jvm.ConfusionSetTable/load path (trie/freeze (trie/trie [["beats" 1]]))) => (throws java.io.IOException)
+    (.delete (java.io.File. path))))
+
+(fact "`precomputed-or` only falls back on the live search for words the table hasn't got"
+  (let [table (build-table dict dm-dict 2 1 (fn [_]) ["beanz"])
+        get-cs (alise/precomputed-or table 2 1 (constantly :live))]
+    (get-cs "beanz") => (words/raw-confusion-set dict dm-dict 2 1 "beanz")
+    (get-cs "thr") => :live
+    ((alise/precomputed-or table 3 1 (constantly :live)) "beanz") => :live
+    ((alise/precomputed-or nil 2 1 (constantly :live)) "beanz") => :live))
@@ -1,35 +1,87 @@
 (ns norm.dpb-test
   (:require [norm.io :as io]
-            [norm.trie :as trie])
+            [norm.trie :as trie]
+            [norm.data :as data])
   (:use midje.sweet norm.train.dpb))
 
-(def in (java.io.BufferedReader.
-          (java.io.StringReader.
-            (slurp "test/norm/data/nyt.test.xml"))))
+(defn reader [] (java.io.BufferedReader.
+                  (java.io.StringReader.
+                    (slurp "test/norm/data/nyt.test.xml"))))
 
-(fact "`documents` takes a reader, and returns a lazy seq of document elements."
-  (def docs (documents in))
-  (instance? clojure.lang.LazySeq docs) => truthy
-  (:tag (first docs)) => :DOC
-  (count docs) => 2)
+(def in (reader))
 
-(fact "`sentences` takes a doc and returns the sentences in it."
-  (def sents (mapcat sentences docs))
-  (:tag (first sents)) => :sentence
-  (count sents) => 4)
-
-(fact "`tokens` returns tokens from a sentence in vector format."
-  (tokens (first sents))
-  => ["hello" "there" "my" "good" "sir" "!"]
-  (tokens (second sents))
-  => ["how" "are" "you" "?"])
+(fact "`sentence-reader` takes a reader, and steps through the sentences of the documents in it."
+  (def sents (sentence-reader in))
+  (.nextSentence sents) => true
+  (tokens sents) => ["hello" "there" "my" "good" "sir" "!"]
+  (dependencies sents) => [[6 0] [5 1] [1 2] [5 3] [5 4] [0 5]]
+  (.nextSentence sents) => true
+  (tokens sents) => ["how" "are" "you" "?"]
+  (dependencies sents) => [[0 4] [3 1] [1 2] [0 3]]
+  (.nextSentence sents) => true
+  (.nextSentence sents) => true
+  (.nextSentence sents) => false)
 
 (def dict (trie/trie [["hello" 1] ["there" 1] ["sir" 1] ["how" 1] ["you" 1]]))
 
 (fact "`extract-untyped-deps!` stores dependencies from a sentence, wherein the dependent is OOV and the governor is IV."
   (let [store (atom #{})
-        store-fn (fn [[gov offset :as elem]] (swap! store conj elem))]
-    (extract-untyped-deps! dict identity identity store-fn (first sents))
-    (extract-untyped-deps! dict identity identity store-fn (second sents))
+        store-fn (fn [[gov offset :as elem]] (swap! store conj elem))
+        sents (sentence-reader (reader))]
+    (.nextSentence sents)
+    (extract-untyped-deps! dict identity identity store-fn sents)
+    (.nextSentence sents)
+    (extract-untyped-deps! dict identity identity store-fn sents)
     @store => #{["sir" 1] ["sir" 2] ["how" -1]}))
 
+(fact "`handle-file!` gives every sentence to the handler"
+  (let [n (atom 0)]
+    (handle-file! (fn [_] (swap! n inc)) (reader))
+    @n => 4))
+
+(fact "only the basic dependencies of sentences in documents count, and indices which aren't numbers are -1"
+  (let [sents (sentence-reader (java.io.StringReader. "
+<FILE>
+<DOC>
+<sentences>
+  <sentence id=\"1\">
+    <tokens>
+      <token id=\"1\"><word>A</word><lemma>a</lemma></token>
+      <token id=\"2\"><word><![CDATA[B&]]></word></token>
+    </tokens>
+    <basic-dependencies>
+      <dep type=\"x\"><governor> 2 </governor><dependent>1</dependent></dep>
+      <dep type=\"x\"><governor>two</governor><dependent>1</dependent></dep>
+    </basic-dependencies>
+    <collapsed-dependencies>
+      <dep type=\"x\"><governor>1</governor><dependent>2</dependent></dep>
+    </collapsed-dependencies>
+  </sentence>
+</sentences>
+<coreference><coreference><mention><sentence>1</sentence></mention></coreference></coreference>
+</DOC>
+</FILE>"))]
+    (.nextSentence sents) => true
+    (tokens sents) => ["a" "b&"]
+    (dependencies sents) => [[2 1] [-1 1]]
+    (.nextSentence sents) => false))
+
+(facts "about dependency banks"
+  (let [tsv    (doto (java.io.File/createTempFile "dpb" ".tsv") (.deleteOnExit))
+        bin    (doto (java.io.File/createTempFile "dpb" ".bin") (.deleteOnExit))
+        _      (spit tsv "sir\t1\t0.25\t-3\t0.5\nhow\t-1\t0.125\nmoo\t1\t1.0\n")
+        dict   (trie/freeze dict)
+        dpb    (data/load-dpb (.getPath tsv) dict)
+        _      (.save dpb (.getPath bin))
+        mapped (norm.jvm.DependencyBank/load (.getPath bin) dict)]
+    (fact "`load-dpb` gives a fn of governor and offset, which is 0 for anything it hasn't seen"
+      (map dpb ["sir" "sir" "how" "sir" "moo" "hello"] [1 -3 -1 2 1 1]) => [0.25 0.5 0.125 0.0 0.0 0.0])
+    (fact "scores can be looked up by dict id or node too"
+      (.score dpb (.wordId dict "sir") 1) => 0.25
+      (.scoreAtNode dpb (.endNode dict "how") -1) => 0.125
+      (.score dpb (.wordId dict "sir") 4) => 0.0)
+    (fact "saved banks map back the same"
+      (map mapped ["sir" "sir" "how" "sir" "hello"] [1 -3 -1 2 1]) => [0.25 0.5 0.125 0.0 0.0])
+    (fact "but only over the dict they were built against"
+      (norm.jvm.DependencyBank/load (.getPath bin) (trie/freeze (trie/trie [["sir" 1]])))
+      => (throws java.io.IOException))))
@@ -1,5 +1,6 @@
 (ns norm.io-test
-  (:use midje.sweet norm.io))
+  (:use midje.sweet norm.io)
+  (:require [clojure.java.io :as jio]))
 
 (defn string-reader [string]
   (-> string
@@ -54,6 +55,13 @@
                   {"text" "a tweet", "tokens" ["a" "tweet"]}])))
 
 
+(fact "raw tokens come out as spans, which the encoders write straight from"
+  (let [tweet (first (get-stream "raw" (string-reader "A tweet, lol")))]
+    (instance? norm.jvm.Tokens (tweet "tokens")) => true
+    ((encoders "raw") (assoc tweet "norm_tokens" (tweet "tokens"))) => "a tweet , lol\n"
+    ((encoders "tkn") (assoc tweet "norm_tokens" (tweet "tokens"))) => "a\ntweet\n,\nlol\n\n"))
+
+
 (facts "about spit-tsv"
   (fact "spit-tsv takes a java.io.Writer and a seq of seqs, and prints each inner seq as a tab-separated list followed by a linefeed."
     (let [w (java.io.StringWriter.)]
@@ -81,3 +89,90 @@
     (doall (parse-tsv (string-reader "teeth\t24\neyes\t2\nhair\tfoo") identity #(Integer. %)))
     => (throws NumberFormatException)))
 
+
+(facts "about pipeline"
+  (fact "pipeline maps f over items on several threads, writing the results in order"
+    (let [w (java.io.StringWriter.)]
+      (.run (pipeline #(str % ",") 4 3 2) (range 20) w)
+      (.toString w))
+    => (apply str (map #(str % ",") (range 20))))
+
+  (fact "if f throws, so does run"
+    (.run (pipeline #(if (= % 7) (throw (IllegalStateException. "nope")) (str %)) 2 2 1)
+          (range 20) (java.io.StringWriter.))
+    => (throws IllegalStateException)))
+
+(defn temp-file-with [^String content]
+  (let [f (java.io.File/createTempFile "norm-io-test" ".txt")]
+    (.deleteOnExit f)
+    (spit f content :encoding "UTF-8")
+    f))
+
+(facts "about chunked line readers"
+  (let [long-line (apply str (repeat (* 3 1024 1024) "x"))
+        content   (str "one\r\ntwo\rthree\n\nfür ☃ ünïcödé\n" long-line "\nlast line")
+        f         (temp-file-with content)
+        expected  (line-seq (java.io.BufferedReader. (java.io.FileReader. f)))
+        rdr       (line-reader (.getPath f) 1024)
+        actual    (doall (lines rdr))]
+    (fact "they give the same lines as line-seq, whatever the line endings, characters or line lengths"
+      (= actual expected) => true)
+    (fact "they count every byte of the file once all the lines are out"
+      (.byteCount rdr) => (.length f))
+    (.close rdr))
+
+  (fact "lines falls back to line-seq for BufferedReaders"
+    (lines (string-reader "a\nb")) => ["a" "b"]))
+
+(defn gzip-with-java
+  "gzips each of parts as a separate member, one after the other, with plain
+  old GZIPOutputStream"
+  [f & parts]
+  (with-open [out (java.io.FileOutputStream. f)]
+    (doseq [^String part parts]
+      (let [gz (java.util.zip.GZIPOutputStream. out)]
+        (.write gz (.getBytes part "UTF-8"))
+        (.finish gz)))))
+
+(defn inflate-with-java [f]
+  (with-open [in (java.util.zip.GZIPInputStream. (java.io.FileInputStream. f))]
+    (slurp in :encoding "UTF-8")))
+
+(defn read-all-gz [f]
+  (with-open [in (norm.jvm.ParallelGzipInputStream. (java.io.BufferedInputStream. (java.io.FileInputStream. f)))]
+    [(slurp in :encoding "UTF-8") (.getByteCount in)]))
+
+(facts "about gzip streams"
+  (let [content (apply str (for [i (range 200000)] (str "tweet " i " says " (rand-int 100000) "\n")))
+        bgzf    (temp-file-with "")
+        plain   (temp-file-with "")
+        mixed   (temp-file-with "")]
+    (with-open [out (writer-gz (.getPath bgzf) 8192)]
+      (.write out content))
+    (gzip-with-java plain (subs content 0 1000) (subs content 1000))
+    (with-open [out (java.io.FileOutputStream. mixed)]
+      (jio/copy bgzf out)
+      (jio/copy plain out))
+
+    (fact "what writer-gz writes can be read by GZIPInputStream"
+      (= (inflate-with-java bgzf) content) => true)
+
+    (let [[text n] (read-all-gz bgzf)]
+      (fact "ParallelGzipInputStream reads it back, and counts all the compressed bytes"
+        (= text content) => true
+        n => (.length bgzf)))
+
+    (let [[text n] (read-all-gz plain)]
+      (fact "ParallelGzipInputStream reads plain multi-member gzip files too"
+        (= text content) => true
+        n => (.length plain)))
+
+    (let [[text n] (read-all-gz mixed)]
+      (fact "and files which start off BGZF and then aren't"
+        (= text (str content content)) => true
+        n => (.length mixed)))
+
+    (let [rdr (line-reader (.getPath bgzf) 1024)]
+      (fact "line readers inflate gzipped files"
+        (= (doall (lines rdr)) (line-seq (string-reader content))) => true)
+      (.close rdr))))
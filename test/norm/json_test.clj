@@ -45,3 +45,28 @@
   (objects-in (StringReader. "{\"foo\": 4}, {\"quux\":[09 08 0000006]}"))
   => [{"foo" 4} {"quux" [9 8 6]}])
   
+
+(def tricky
+  (str "[{\"text\": \"caf\\u00e9 \\ud83d\\ude00 \\\"quoted\\\" back\\\\slash \\/ \\b\\f\\n\\r\\t\","
+       " \"user\": {\"name\": \"}{][,:\", \"ids\": [1, -2, 3.5, 4e2, -0.5E-3], \"ok\": true, \"no\": false, \"x\": null},"
+       " \"tokens\": [\"a\" \"b\",,\"\"]},\n"
+       " {\"text\": \"\", \"entities\": {\"urls\": [], \"tags\": [{}, [[]]]}}"
+       " ,{\"text\":\"" (apply str (repeat 70000 "\\\"")) "\", \"n\": " (apply str (repeat 80000 "1")) ".0}]"))
+
+(fact "`objects-in` reads the same objects as `seq-objects-in`, whatever's in them"
+  (objects-in (StringReader. tricky)) => (seq-objects-in (StringReader. tricky))
+  (count (objects-in (StringReader. tricky))) => 3
+  ((first (objects-in (StringReader. tricky))) "text") => "café 😀 \"quoted\" back\\slash / \b\f\n\r\t"
+  (objects-in (StringReader. "")) => empty?
+  (objects-in (StringReader. "[]")) => empty?)
+
+(fact "`objects-in` can leave out all but some keys of each object"
+  (objects-in (StringReader. tricky) ["text" "tokens"])
+  => (map #(select-keys % ["text" "tokens"]) (seq-objects-in (StringReader. tricky))))
+
+(fact "`objects-in` doesn't like things that aren't json"
+  (doall (objects-in (StringReader. "{\"a\": \"b\\q\"}"))) => (throws norm.jvm.JsonReader$ParseException)
+  (doall (objects-in (StringReader. "{\"a\": \"b"))) => (throws norm.jvm.JsonReader$ParseException)
+  (doall (objects-in (StringReader. "{\"a\" 1}"))) => (throws norm.jvm.JsonReader$ParseException)
+  (doall (objects-in (StringReader. "{\"a\": blah}"))) => (throws norm.jvm.JsonReader$ParseException)
+  (doall (objects-in (StringReader. "{\"a\": \"b\\q\"}") ["b"])) => (throws norm.jvm.JsonReader$ParseException))
@@ -1,5 +1,7 @@
 (ns norm.lksm-test
-  (:require [norm.trie :as trie])
+  (:require [norm.trie :as trie]
+            [norm.data :as data]
+            [norm.alise :as alise])
   (:use midje.sweet norm.train.lksm))
 
 (def tkns ["hello" "there" "," "my" "good" "sir" "!"])
@@ -49,3 +51,82 @@
   (encode-feature-vector 1 [true 34 23 9 0.2345])
   => "1 1:0.2345 9:1 23:1 34:1\n")
 
+(fact "compiled lksm ids look up the same as the ones loaded from text."
+  (let [path   (str (java.io.File/createTempFile "lksm" ".bin"))
+        f-ids  {[0 0] 1, [0 2] 2, [1 1] 3, -3 4, 2 5, :dpb-score 6}
+        iv-ids {"hello" 0, "there" 1, "my" 2}
+        w      (norm.jvm.ModelFile$Writer. path norm.jvm.ModelFile/LKSM_IDS)]
+    (norm.data/write-lksm-ids! w [f-ids iv-ids])
+    (.close w)
+    (let [[f-ids* iv-ids*] (norm.data/read-lksm-ids (norm.jvm.ModelFile$Reader. path norm.jvm.ModelFile/LKSM_IDS))]
+      (map iv-ids* ["hello" "there" "my" "sir"]) => (map iv-ids ["hello" "there" "my" "sir"])
+      (map f-ids* [[0 0] [0 1] [0 2] [1 1] [1 nil] -3 2 3 :dpb-score]) => (map f-ids [[0 0] [0 1] [0 2] [1 1] [1 nil] -3 2 3 :dpb-score]))
+    (.delete (java.io.File. path))))
+
+(defn toy-model
+  "a liblinear model, and the ids to go with it, for exemplars made of the
+  words a-e at offsets -2, -1, 1 and 2"
+  [bias]
+  (let [r     (java.util.Random. 42)
+        f-ids (merge (zipmap (for [t [0 1] i (range 5)] [t i]) (range 1 11)) {-2 11 -1 12 1 13 2 14})
+        rows  (for [_ (range 300)] [(.nextInt r 5) (.nextInt r 5) ([-2 -1 1 2] (.nextInt r 4))])
+        p     (de.bwaldvogel.liblinear.Problem.)]
+    (set! (.l p) 300)
+    (set! (.n p) 15)
+    (set! (.bias p) bias)
+    (set! (.y p) (double-array (for [[g d o] rows] (if (< (mod (+ g (* 2 d) o) 5) 2) 1.0 0.0))))
+    (set! (.x p) (into-array
+                   (for [[g d o] rows]
+                     (into-array de.bwaldvogel.liblinear.Feature
+                       (concat (map #(de.bwaldvogel.liblinear.FeatureNode. % 1.0) (sort [(f-ids [0 g]) (f-ids [1 d]) (f-ids o)]))
+                               [(de.bwaldvogel.liblinear.FeatureNode. 15 bias)])))))
+    (de.bwaldvogel.liblinear.Linear/disableDebugOutput)
+    [(de.bwaldvogel.liblinear.Linear/train p (de.bwaldvogel.liblinear.Parameter. de.bwaldvogel.liblinear.SolverType/L2R_LR 1.0 0.01))
+     [f-ids (zipmap ["a" "b" "c" "d" "e"] (range)) [-2 -1 1 2]]]))
+
+(fact "an `LksmPredictor` classifies exemplars the same as liblinear does"
+  (let [[model [f-ids iv-ids :as ids]] (toy-model 1.0)
+        predictor (data/lksm-predictor model ids (keys iv-ids))
+        liblinear (fn [[g d o]]
+                    ({1.0 "pos" 0.0 "neg"}
+                      (de.bwaldvogel.liblinear.Linear/predict model
+                        (into-array de.bwaldvogel.liblinear.FeatureNode
+                          (concat
+                            (map #(de.bwaldvogel.liblinear.FeatureNode. % 1.0)
+                              (sort (filter identity (map f-ids [[0 (iv-ids g)] [1 (iv-ids d)] o]))))
+                            [(de.bwaldvogel.liblinear.FeatureNode. 15 1.0)])))))
+        ws        ["a" "b" "c" "d" "e" "zz"]
+        exemplars (for [g ws d ws o [-3 -2 -1 1 2 3]] [g d o])]
+    (map predictor exemplars) => (map liblinear exemplars)
+    (set (map predictor exemplars)) => #{"pos" "neg"}
+    (vec (.countPositive predictor ["a" "b" "zz"] [-1 1 2] ["a" "c" "e"]))
+    => (for [d ["a" "c" "e"]] (count (filter #{"pos"} (map liblinear [["a" d -1] ["b" d 1] ["zz" d 2]]))))))
+
+(fact "`ill-formed?` gives the same answers with an `LksmPredictor` as with any other fn"
+  (let [[model [_ iv-ids :as ids]] (toy-model 1.0)
+        predictor (data/lksm-predictor model ids (keys iv-ids))
+        dict      (trie/trie (map #(vector % 1) ["a" "b" "c" "d" "e"]))
+        tkns      ["a" "b" "x" "c" "zz" "e"]
+        cs        ["a" "b" "c" "d" "e"]]
+    (for [td (range 6)] (alise/ill-formed? dict predictor td cs tkns 2))
+    => (for [td (range 6)] (alise/ill-formed? dict #(predictor %) td cs tkns 2))))
+
+(fact "a model file that doesn't get closed never shows up, and doesn't clobber the old one"
+  (let [f    (java.io.File/createTempFile "lksm" ".bin")
+        path (str f)
+        kind norm.jvm.ModelFile/LKSM_IDS
+        w    (norm.jvm.ModelFile$Writer. path kind)]
+    (norm.data/write-lksm-ids! w [{[0 0] 1} {"hello" 0}])
+    (.close w)
+    (let [old  (.length f)
+          w    (norm.jvm.ModelFile$Writer. path kind)]
+      (.putLong w 42)
+      (.abort w)
+      (.length f) => old
+      (norm.jvm.ModelFile/isReadable f kind) => true
+      (.exists (java.io.File. (str path ".tmp"))) => false)
+    (.delete f)
+    (let [w (norm.jvm.ModelFile$Writer. path kind)]
+      (.putLong w 42)
+      (.exists f) => false
+      (.abort w))))
@@ -44,3 +44,26 @@
 (fact "`context-right` returns indexed n-gram context (but from the right)"
   (context-right 2 grams 3)
   => [[1 "fruit" "!"]])
+
+(fact "`feature-id-getter!` gives features ids in the order they're first seen, and counts them."
+  (let [ids (norm.jvm.IntTupleIds.)
+        feature-id* (feature-id-getter! ids)]
+    (map (comp feature-id* int-array) [[1 2] [-1 2 3] [1 2] [2 1] [] [1 2]]) => [0 1 0 2 3 0]
+    (seq (.frequencies ids)) => [3 1 1 1]
+    (map seq (.tuples ids)) => [[1 2] [-1 2 3] [2 1] nil]
+    (.get ids (int-array [2 1])) => 2
+    (.get ids (int-array [2 2])) => -1
+    (let [path (str (java.io.File/createTempFile "ids" ".bin"))]
+      (.save ids path)
+      (.get (norm.jvm.IntTupleIds/load path) (int-array [2 1])) => 2
+      (.delete (java.io.File. path)))))
+
+(fact "`make-sdvs!` turns the counts in a ContextAccumulator into sorted sparse vectors."
+  (let [acc (norm.jvm.ContextAccumulator. 2)]
+    (doseq [fid [7 3 7 100 3 7]] (.add acc 0 fid))
+    (let [sdvs (make-sdvs! identity 101 {"beans" 0 "fruit" 1} acc)
+          ^uk.ac.susx.mlcl.lib.collect.SparseDoubleVector beans (sdvs "beans")]
+      (seq (.keys beans)) => [3 7 100]
+      (seq (.values beans)) => [2.0 3.0 1.0]
+      (.cardinality beans) => 101
+      (.size (sdvs "fruit")) => 0)))
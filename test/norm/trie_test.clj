@@ -50,6 +50,52 @@
     (let [t (trie/trie [["beans" 10] ["beats" 15] ["beers" 32] ["meanies" 923]])]
       (into #{} (trie/find-within t "means" 2)) => #{"beans" "meanies" "beats"}))
 
+  (fact "`find-within` returns the nearest words first, and the more frequent ones first where distances are equal."
+    (let [t (trie/trie [["beans" 10] ["beats" 15] ["bears" 20] ["meanies" 923]])]
+      (trie/find-within t "beans" 2) => ["beans" "bears" "beats"]
+      (trie/find-within t "beans" -1) => []))
+
+  (fact "Searches can be split up and run in parallel, and come out exactly the same."
+    (let [rnd   (java.util.Random. 1)
+          words (distinct (for [_ (range 3000)]
+                            (apply str (for [_ (range (+ 1 (.nextInt rnd 8)))]
+                                         (char (+ 97 (.nextInt rnd 6)))))))
+          t     (trie/from-sorted (sort-by first (map #(vector % (.nextInt rnd 3)) words)))
+          f     (trie/freeze t)
+          pool  (trie/search-pool 3)
+          qs    ["abcdef" "fedcbaab" "aaaa" "bad"]
+          diffs (doall
+                  (for [tr [t f] q qs n [0 1 5] d [1 2 3]
+                        :when (not= (vec (.findNearest tr q n d)) (vec (.findNearestParallel tr q n d pool)))]
+                    [q n d]))]
+      (.shutdown pool)
+      diffs => empty?
+      (trie/find-within f "abcdef" 2 nil) => (trie/find-within f "abcdef" 2)))
+
+  (fact "`words` and `words-with-prefix` are lazy, and walk only as much of the trie as they need to."
+    (let [t (trie/trie [["beans" 1] ["bees" 4] ["hay" 4] ["hey" 3] ["hello" 5]])]
+      (trie/words t) => ["beans" "bees" "hay" "hello" "hey"]
+      (trie/words (trie/freeze t)) => ["beans" "bees" "hay" "hello" "hey"]
+      (trie/words-with-prefix t "he") => ["hello" "hey"]
+      (trie/words-with-prefix (trie/freeze t) "x") => empty?
+      (first (trie/words-with-prefix (trie/freeze t) "h")) => "hay"))
+
+  (fact "A cursor walks words without making strings, and can see the nodes they end at."
+    (let [t (trie/trie [["beans" 1] ["bees" 4] ["hay" 4] ["hey" 3] ["hello" 5]])
+          walk (fn [^norm.jvm.TrieCursor c]
+                 (loop [acc []]
+                   (if (.advance c)
+                     (recur (conj acc [(String. (.path c) 0 (.length c)) (.length c)]))
+                     acc)))]
+      (walk (.cursor t "be")) => [["beans" 5] ["bees" 4]]
+      (walk (.cursor (trie/freeze t) "he")) => [["hello" 5] ["hey" 3]]
+      (let [c (.cursor (trie/freeze t) "hey")]
+        (.advance c) => true
+        (.nodeTfreq (trie/freeze t) (.node c)) => 3)
+      (let [c (.cursor t "hay")]
+        (.advance c) => true
+        (.-_tfreq (.node c)) => 4)))
+
   (fact "`find-with-prefix` finds all words in the trie which share the given prefix string."
     (let [t (trie/trie [["beans" 1] ["bees" 4] ["hay" 4] ["hey" 3] ["hello" 5]])]
       (into #{} (trie/find-with-prefix t "be")) => #{"beans" "bees"}
@@ -67,3 +113,82 @@
     (let [t (trie/trie [["beans" 1] ["bees" 4] ["hay" 4] ["easy" 3] ["see?" 5]])]
       (into #{} (trie/find-with-suffix t "y")) => #{"hay" "easy"})))
 
+
+(facts "about building tries from sorted entries"
+  (let [entries [["" 2] ["bean" 3 :b] ["beans" 10] ["beans" 2 :bs] ["bees" 4] ["hay" 4 :h] ["meanies" 923]]
+        t       (trie/trie entries)]
+    (fact "from-sorted builds the same trie as conj-ing the entries one at a time."
+      (seq (trie/from-sorted entries)) => (seq t)
+      (trie/prefix-freq (trie/from-sorted entries) "be") => 19
+      (trie/prefix-freq (trie/from-sorted entries) "") => 948
+      (.verifyDepths (trie/from-sorted entries)) => true)
+
+    (fact "from-sorted-parallel does too."
+      (seq (trie/from-sorted-parallel entries)) => (seq t)
+      (count (trie/from-sorted-parallel entries)) => 6
+      (trie/prefix-freq (trie/from-sorted-parallel entries) "") => 948
+      (.verifyDepths (trie/from-sorted-parallel entries)) => true
+      (seq (trie/from-sorted-parallel [])) => nil)
+
+    (fact "the entries have to be sorted."
+      (trie/from-sorted [["b" 1] ["a" 1]]) => (throws IllegalArgumentException)
+      (trie/from-sorted-parallel [["b" 1] ["a" 1]]) => (throws IllegalArgumentException))))
+
+(facts "about frozen tries"
+  (let [t (trie/trie [["beans" 10 :b] ["beats" 15] ["bees" 4] ["hay" 4] ["meanies" 923]])
+        f (trie/freeze t)]
+    (fact "Frozen tries have the same entries as the trie they were made from."
+      (seq f) => (seq t)
+      (count f) => 5
+      (f "beans") => :b
+      (f "bea" :nope) => :nope)
+
+    (fact "Frozen tries support the same lookups as tries."
+      (trie/contains f "beans") => truthy
+      (trie/contains f "bea") => falsey
+      (trie/freq f "beats") => 15
+      (trie/prefix-freq f "be") => 29
+      (trie/find-within f "means" 2) => (trie/find-within t "means" 2)
+      (trie/find-nearest f "beanz" 3) => (trie/find-nearest t "beanz" 3)
+      (into #{} (trie/find-with-prefix f "be")) => #{"beans" "beats" "bees"}
+      (into #{} (trie/find-with-substr f "ea")) => #{"beans" "beats" "meanies"}
+      (into #{} (trie/find-with-chars f "es")) => (into #{} (trie/find-with-chars t "es"))
+      (into #{} (trie/find-with-suffix f "s")) => #{"beans" "beats" "bees" "meanies"})
+
+    (fact "Both kinds of trie can look up words from a span of a char array."
+      (let [cs (.toCharArray "the beans")]
+        (.contains f cs 4 9) => truthy
+        (.contains t cs 4 9) => truthy
+        (.contains f cs 4 7) => falsey
+        (.contains t cs 0 3) => falsey
+        (.valAt f cs 4 9 nil) => :b
+        (.valAt t cs 4 9 nil) => :b
+        (.valAt f cs 4 8 :nope) => :nope))
+
+    (fact "Words in frozen tries are numbered, shortest first and then alphabetically, and can be looked up by number or by node."
+      (let [ids (map #(.wordId f ^String %) (keys f))]
+        (sort ids) => (range (count f))
+        (map #(.wordAt f %) (sort ids)) => (sort-by (juxt count identity) (keys f))
+        (.word f (.endNode f "bea")) => "bea"
+        (.wordId f "bea") => -1
+        (.wordId f "nope") => -1
+        (seq (.findNearestNodes f "beanz" 3 Integer/MAX_VALUE)) => (map #(.endNode f ^String %) (trie/find-nearest f "beanz" 3))))
+
+    (fact "Frozen tries can't be changed."
+      (assoc f "foo" 1) => (throws UnsupportedOperationException)
+      (conj f ["foo" 1]) => (throws UnsupportedOperationException))
+
+    (fact "Frozen tries can be saved to a file and mapped back in, as long as their data is strings or numbers."
+      (let [path (str (java.io.File/createTempFile "trie" ".bin"))
+            t    (trie/trie [["beans" 10 "b"] ["beats" 15 ["be" "ats"]] ["bees" 4 7] ["hay" 4]])]
+        (.save (trie/freeze t) path)
+        (let [m (norm.jvm.FrozenTrie/load path)]
+          (seq m) => (seq t)
+          (m "beans") => "b"
+          (m "beats") => ["be" "ats"]
+          (m "bees") => 7
+          (m "hay" :nope) => nil
+          (trie/find-nearest m "beanz" 3) => (trie/find-nearest t "beanz" 3)
+          (= m (trie/freeze t)) => true)
+        (.save f path) => (throws IllegalArgumentException)
+        (.delete (java.io.File. path))))))
@@ -24,6 +24,20 @@
     (second (map f (unchunk (range))))
     (= 1 @acc) => truthy))
 
+(fact "`bounded-memoize` is like memoize, but only keeps so many results"
+  (let [calls (atom 0)
+        f (bounded-memoize 64 (fn [x] (swap! calls inc) (* x x)))
+        cache ^norm.jvm.BoundedCache (:cache (meta f))]
+    (f 3) => 9
+    (f 3) => 9
+    @calls => 1
+    (.hits cache) => 1
+    (.misses cache) => 1
+    (dorun (pmap f (range 1000)))
+    (<= (.size cache) 64) => truthy
+    (pos? (.evictions cache)) => truthy
+    (f 999) => 998001))
+
 (fact "`pmapall` is like pmap, but eager. i.e. it'll just keep processing the collection in a fixed-size threadpool regardless of how many elements have been consumed."
   (pmapall inc (range 10)) => (range 1 11))
 
@@ -91,6 +105,16 @@
     (mc 6) => nil
     (update-with deref (mc)) => (frequencies nums)))
 
+(fact "`string-counter` and `long-counter` count things from lots of threads without losing any."
+  (let [sc (string-counter)
+        lc (long-counter)
+        nums (vec (for [i (range 10000)] (mod (* i i) 97)))]
+    (dorun (pmap #(do (sc (str %) 1) (lc % 2)) nums))
+    (sc "1") => (get (frequencies nums) 1)
+    (sc "nope") => 0
+    (into {} (sc)) => (into {} (for [[k v] (frequencies nums)] [(str k) v]))
+    (into {} (lc)) => (into {} (for [[k v] (frequencies nums)] [k (* 2 v)]))))
+
 (fact "`update-with` maps f over the vals in the given map m."
   (update-with not {:likes-cats true :likes-dogs false}) => {:likes-cats false :likes-dogs true})
 
@@ -1,5 +1,7 @@
 (ns norm.words-test
-  (:require [norm.trie :as trie])
+  (:require [norm.trie :as trie]
+            [clojure.java.io :as jio]
+            [clojure.data.json :as json])
   (:use midje.sweet norm.words))
 
 (fact "`levenshtein` returns the levenshtein distance between two strings"
@@ -16,6 +18,22 @@
   (common-suffix-length "smelly" "smelly") => 6
   (common-suffix-length "jesus" "brian") => 0)
 
+(fact "`levenshtein-within` gives up once the distance is over its bound"
+  (levenshtein-within "teeth" "teets" 1) => 1
+  (levenshtein-within "jesus" "brian" 2) => 3
+  (levenshtein-within "jesus" "jesusbrian" 2) => 3)
+
+(fact "`levenshtein-all` and `longest-common-subsequence-all` compare one word against many"
+  (levenshtein-all "beats" ["beans" "beers" "pleats" "bananas" ""]) => [1 2 2 4 5]
+  (longest-common-subsequence-all "beans" ["bees" "mike" "jesus"]) => [3 1 2])
+
+(fact "long words get the same answers as short ones"
+  (let [a (apply str (repeat 30 "ab"))
+        b (apply str (repeat 40 "ba"))]
+    (levenshtein (str a "c") (str b "c")) => 20
+    (levenshtein (str a a) (str b b)) => 40
+    (longest-common-subsequence (str a a) (str b b)) => 120))
+
 (fact "`longest-common-subsequence` returns the length of the longest common subsequence between two strings (not necessarily contiguous)"
   (longest-common-subsequence "mike" "me") => 2
   (longest-common-subsequence "beans" "bees") => 3
@@ -29,6 +47,15 @@
   (word-tokenise "hello @user hope ur havin' nice tues #tuesdaygreetings")
   => ["hello" "hope" "ur" "havin'" "nice" "tues"])
 
+(fact "`tokenise` gives exactly the same tokens as Twokenize did"
+  (with-open [r (jio/reader "test/norm/data/tokenise.golden.json")]
+    (doall
+      (for [line (line-seq r)
+            :let [{:strs [text tokens]} (json/read-str line)]
+            :when (not= tokens (vec (norm.jvm.TweetTokenizer/tokenize text)))]
+        text)))
+  => empty?)
+
 (fact "`remove-punct-repetition` is like remove-repetition but only for punctuation"
   (remove-punct-repetition "heeeeeellloooooo!!!!!!!!!") => "heeeeeellloooooo!!!")
 
@@ -56,8 +83,75 @@
     (raw-confusion-set dict dm-dict 1 0 "beans") => ["beats"]
     (into #{} (raw-confusion-set dict dm-dict 1 1 "beans")) => #{"beats" "bananas" "panninis"}))
 
+(fact "`sounds-like` works the same on a PhoneticIndex, which keeps ids of words in a frozen dict rather than the words themselves."
+  (let [dict (trie/freeze (trie/trie (map #(vector % 1) ["beats" "bananas" "hello" "panninis" "pans"])))
+        codes (group-by double-metaphone (keys dict))
+        dm-dict (trie/trie (for [[c ws] codes] [c 1 ws]))
+        index (norm.jvm.PhoneticIndex. dict
+                (into-array String (sort (keys codes)))
+                (into-array (map #(into-array String (codes %)) (sort (keys codes)))))
+        path (str (java.io.File/createTempFile "dm-dict" ".bin"))]
+    (.numCodes index) => (count codes)
+    (sounds-like index 1 "beans") => (sounds-like dm-dict 1 "beans")
+    (sounds-like index 2 "helo") => (sounds-like dm-dict 2 "helo")
+    (.save index path)
+    (sounds-like (norm.jvm.PhoneticIndex/load path dict) 1 "beans") => (sounds-like dm-dict 1 "beans")
+    (norm.jvm.PhoneticIndex/load path (trie/freeze (trie/trie [["beats" 1]]))) => (throws java.io.IOException)
+    (.delete (java.io.File. path))))
+
 (fact "`lm-ranked-confusion-set` just takes a function that returns a confusion set for a word, then ranks that confusion set based on context with a language model."
   (let [lm (fn [[w1 w2 w3]] (case w2 "stipend" 0.5 "stooped" 0.9 "stupid" 1.0))
         get-cs (fn [w] ["stipend" "stooped" "stupid"])]
     (lm-ranked-confusion-set lm get-cs ["some" "stoopid" "tokens"] 1) ;ranking "stupid"'s confusion set
-    => ["stupid" "stooped" "stipend"]))
+    => ["stupid" "stooped" "stipend"]
+    (lm-ranked-confusion-set lm get-cs ["some" "stoopid" "tokens"] 1 (constantly 2))
+    => ["stupid" "stooped"]))
+
+(defn kneser-ney-lm
+  "a trigram lm of the given lines, of the kind made by f"
+  [f lines]
+  (let [path (java.io.File/createTempFile "twt-c" ".txt")]
+    (spit path (clojure.string/join "\n" lines))
+    (try
+      (f [(str path)]
+         (doto (edu.berkeley.nlp.lm.StringWordIndexer.)
+           (.setStartSymbol "<s>") (.setEndSymbol "</s>") (.setUnkSymbol "<unk>"))
+         3
+         (edu.berkeley.nlp.lm.ConfigOptions.))
+      (finally (.delete path)))))
+
+(fact "an `LmScorer` ranks confusion sets exactly the same as scoring each candidate's sentence would"
+  (let [lines ["some stupid tokens here" "some more stupid tokens" "the stupid dog" "some stooped man" "he stooped down"]
+        cs    ["stipend" "stooped" "stupid" "zzz" "tokens" "some"]
+        results (for [lm [(kneser-ney-lm #(edu.berkeley.nlp.lm.io.LmReaders/readKneserNeyLmFromTextFile %1 %2 %3 %4 false) lines)
+                          (kneser-ney-lm #(edu.berkeley.nlp.lm.io.LmReaders/readContextEncodedKneserNeyLmFromTextFile %1 %2 %3 %4) lines)]
+                      tokens [["some" "x" "tokens"] ["x" "tokens"] ["some" "x"] ["x"]]
+                      :let [scorer (norm.jvm.LmScorer. lm)
+                            i      (.indexOf tokens "x")]]
+                  [(lm-ranked-confusion-set scorer (constantly cs) tokens i)
+                   (lm-ranked-confusion-set #(.scoreSentence lm %) (constantly cs) tokens i)
+                   (lm-ranked-confusion-set scorer (constantly cs) tokens i (constantly 2))
+                   (take 2 (lm-ranked-confusion-set #(.scoreSentence lm %) (constantly cs) tokens i))])]
+    (count results) => 8
+    (filter (fn [[a b c d]] (or (not= a b) (not= c d))) results) => empty?))
+
+(fact "`LmScorer/topK` gives the indices of the k highest scores, highest first, keeping ties in order"
+  (vec (norm.jvm.LmScorer/topK (float-array [1 3 3 2 0 3]) 4)) => [1 2 5 3]
+  (vec (norm.jvm.LmScorer/topK (float-array [1 2]) 5)) => [1 0]
+  (vec (norm.jvm.LmScorer/topK (float-array [1 2]) 0)) => [])
+
+(fact "`ssk` gives exactly the same answers as mallet's string kernel"
+  (let [mallet (cc.mallet.types.StringKernel.)
+        ws     ["beans" "bees" "beats" "b" "aaaaaaa" "abcabcabcabc" "mike" "me" "jesus" "brian" "naïve" "naive"]]
+    (for [a ws b ws] (ssk a b)) => (for [a ws b ws] (.K mallet a b))
+    (ssk-all "beans" ws) => (mapv #(.K mallet "beans" %) ws)))
+
+(fact "`ssk` agrees with mallet on repetitive strings, which have lots of matching pairs"
+  (let [mallet (cc.mallet.types.StringKernel.)
+        a      (fn [n] (apply str (repeat n "a")))
+        ; the last pair has 400 * 380 matching pairs, enough that counting
+        ; from them might not stay below 2^53, so it has to use the table
+        pairs  [[(a 16) (a 12)] [(a 30) (a 24)] ["hahahahahahahahaha" "hahahahahaha"]
+                [(apply str (repeat 16 "abba")) (apply str (repeat 12 "abba"))]
+                [(a 400) (a 380)]]]
+    (map (fn [[s t]] (ssk s t)) pairs) => (map (fn [[s t]] (.K mallet s t)) pairs)))